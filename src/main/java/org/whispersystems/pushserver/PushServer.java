@@ -5,21 +5,36 @@ import com.fasterxml.jackson.databind.DeserializationFeature;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.whispersystems.pushserver.auth.HashSecretCommand;
 import org.whispersystems.pushserver.auth.Server;
 import org.whispersystems.pushserver.auth.ServerAuthenticator;
 import org.whispersystems.pushserver.config.ApnConfiguration;
+import org.whispersystems.pushserver.config.CoalescingConfiguration;
 import org.whispersystems.pushserver.config.GcmConfiguration;
 import org.whispersystems.pushserver.controllers.FeedbackController;
 import org.whispersystems.pushserver.controllers.PushController;
+import org.whispersystems.pushserver.journal.JournalReplay;
+import org.whispersystems.pushserver.journal.PushJournal;
+import org.whispersystems.pushserver.limits.AdmissionController;
+import org.whispersystems.pushserver.mappers.RateLimitExceededExceptionMapper;
 import org.whispersystems.pushserver.providers.RedisClientFactory;
 import org.whispersystems.pushserver.providers.RedisHealthCheck;
+import org.whispersystems.pushserver.providers.SenderReadinessHealthCheck;
+import org.whispersystems.pushserver.providers.SmileMessageBodyProvider;
 import org.whispersystems.pushserver.senders.APNSender;
+import org.whispersystems.pushserver.senders.CoalescingGCMSender;
+import org.whispersystems.pushserver.senders.DuplicatePushFilter;
+import org.whispersystems.pushserver.senders.FcmSender;
 import org.whispersystems.pushserver.senders.GCMSender;
 import org.whispersystems.pushserver.senders.HttpGCMSender;
+import org.whispersystems.pushserver.senders.LaneExecutor;
+import org.whispersystems.pushserver.senders.PreflightValidator;
+import org.whispersystems.pushserver.senders.SenderLifecycle;
 import org.whispersystems.pushserver.senders.UnregisteredQueue;
 import org.whispersystems.pushserver.senders.XmppGCMSender;
 import org.whispersystems.pushserver.util.Constants;
 
+import java.security.GeneralSecurityException;
 import java.security.Security;
 import java.util.List;
 
@@ -39,7 +54,9 @@ public class PushServer extends Application<PushServerConfiguration> {
   }
 
   @Override
-  public void initialize(Bootstrap<PushServerConfiguration> bootstrap) {}
+  public void initialize(Bootstrap<PushServerConfiguration> bootstrap) {
+    bootstrap.addCommand(new HashSecretCommand());
+  }
 
   @Override
   public void run(PushServerConfiguration config, Environment environment) throws Exception {
@@ -51,42 +68,73 @@ public class PushServer extends Application<PushServerConfiguration> {
     List<Server>        servers             = config.getAuthenticationConfiguration().getServers();
     UnregisteredQueue   apnQueue            = new UnregisteredQueue(redisClient, environment.getObjectMapper(), servers, "apn");
     UnregisteredQueue   gcmQueue            = new UnregisteredQueue(redisClient, environment.getObjectMapper(), servers, "gcm");
+    LaneExecutor        laneExecutor        = new LaneExecutor(config.getLanesConfiguration());
+    AdmissionController admissionController = new AdmissionController(config.getAdmissionConfiguration(), config.getLanesConfiguration(), servers);
+    DuplicatePushFilter duplicateFilter     = new DuplicatePushFilter(config.getDeduplicationConfiguration(), redisClient);
+    PreflightValidator  preflightValidator  = new PreflightValidator(config.getPreflightConfiguration());
+    PushJournal         journal             = new PushJournal(config.getJournalConfiguration(), environment.getObjectMapper());
+
+    APNSender apnSender = initializeApnSender(redisClient, laneExecutor, apnQueue, config.getApnConfiguration(), config.getCoalescingConfiguration());
+    GCMSender gcmSender = initializeGcmSender(gcmQueue, laneExecutor, config.getGcmConfiguration(), config.getCoalescingConfiguration());
 
-    APNSender apnSender = initializeApnSender(redisClient, apnQueue, config.getApnConfiguration());
-    GCMSender gcmSender = initializeGcmSender(gcmQueue, config.getGcmConfiguration());
+    PushController pushController = new PushController(apnSender, gcmSender, admissionController, duplicateFilter,
+                                                       preflightValidator, journal, environment.getObjectMapper(),
+                                                       environment.getValidator());
 
-    environment.lifecycle().manage(apnSender);
-    environment.lifecycle().manage(gcmSender);
+    SenderLifecycle senders = new SenderLifecycle();
+    senders.add("apn", apnSender);
+    senders.add("gcm", gcmSender);
+
+    environment.lifecycle().manage(laneExecutor);
+    environment.lifecycle().manage(journal);
+    environment.lifecycle().manage(senders);
+    environment.lifecycle().manage(new JournalReplay(journal, apnSender, gcmSender));
 
     environment.jersey().register(AuthFactory.binder(new BasicAuthFactory<>(serverAuthenticator, "PushServer", Server.class)));
-    environment.jersey().register(new PushController(apnSender, gcmSender));
+    environment.jersey().register(pushController);
     environment.jersey().register(new FeedbackController(gcmQueue, apnQueue));
+    environment.jersey().register(new RateLimitExceededExceptionMapper());
+    environment.jersey().register(new SmileMessageBodyProvider(environment.getValidator()));
 
     environment.healthChecks().register("Redis", new RedisHealthCheck(redisClient));
+    environment.healthChecks().register("Senders", new SenderReadinessHealthCheck(senders));
   }
 
   private APNSender initializeApnSender(JedisPool redisClient,
+                                        LaneExecutor laneExecutor,
                                         UnregisteredQueue apnQueue,
-                                        ApnConfiguration configuration)
+                                        ApnConfiguration configuration,
+                                        CoalescingConfiguration coalescing)
   {
-    return new APNSender(redisClient, apnQueue,
-                         configuration.getPushCertificate(),
-                         configuration.getPushKey(),
-                         configuration.getVoipCertificate(),
-                         configuration.getVoipKey(),
-                         configuration.isFeedbackEnabled());
+    return new APNSender(redisClient, laneExecutor, apnQueue, configuration,
+                         coalescing.isEnabled() ? coalescing.getWindowMillis() : 0);
   }
 
   private GCMSender initializeGcmSender(UnregisteredQueue gcmQueue,
-                                        GcmConfiguration configuration)
+                                        LaneExecutor laneExecutor,
+                                        GcmConfiguration configuration,
+                                        CoalescingConfiguration coalescing)
+      throws GeneralSecurityException
   {
-    if (configuration.isXmpp()) {
+    GCMSender sender;
+
+    if (configuration.getFcm().isEnabled()) {
+      logger.info("Using FCM HTTP v1 Interface.");
+      sender = new FcmSender(gcmQueue, configuration, coalescing.isEnabled());
+    } else if (configuration.isXmpp()) {
       logger.info("Using XMPP GCM Interface.");
-      return new XmppGCMSender(gcmQueue, configuration.getSenderId(), configuration.getApiKey());
+      sender = new XmppGCMSender(gcmQueue, configuration, coalescing.isEnabled());
     } else {
       logger.info("Using HTTP GCM Interface.");
-      return new HttpGCMSender(gcmQueue, configuration.getApiKey(), configuration.getRedphoneApiKey());
+      sender = new HttpGCMSender(gcmQueue, laneExecutor, configuration, coalescing.isEnabled());
     }
+
+    if (coalescing.isEnabled()) {
+      logger.info("Coalescing GCM pushes within " + coalescing.getWindowMillis() + "ms.");
+      sender = new CoalescingGCMSender(sender, coalescing.getWindowMillis());
+    }
+
+    return sender;
   }
 
   public static void main(String[] args) throws Exception {
@@ -1,9 +1,15 @@
 package org.whispersystems.pushserver;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
+import org.whispersystems.pushserver.config.AdmissionConfiguration;
 import org.whispersystems.pushserver.config.ApnConfiguration;
 import org.whispersystems.pushserver.config.AuthenticationConfiguration;
+import org.whispersystems.pushserver.config.CoalescingConfiguration;
+import org.whispersystems.pushserver.config.DeduplicationConfiguration;
 import org.whispersystems.pushserver.config.GcmConfiguration;
+import org.whispersystems.pushserver.config.JournalConfiguration;
+import org.whispersystems.pushserver.config.LanesConfiguration;
+import org.whispersystems.pushserver.config.PreflightConfiguration;
 import org.whispersystems.pushserver.config.RedisConfiguration;
 
 import javax.validation.Valid;
@@ -32,7 +38,37 @@ public class PushServerConfiguration extends Configuration {
   @Valid
   @NotNull
   private GcmConfiguration gcm;
-  
+
+  @JsonProperty
+  @Valid
+  @NotNull
+  private AdmissionConfiguration admission = new AdmissionConfiguration();
+
+  @JsonProperty
+  @Valid
+  @NotNull
+  private DeduplicationConfiguration deduplication = new DeduplicationConfiguration();
+
+  @JsonProperty
+  @Valid
+  @NotNull
+  private CoalescingConfiguration coalescing = new CoalescingConfiguration();
+
+  @JsonProperty
+  @Valid
+  @NotNull
+  private LanesConfiguration lanes = new LanesConfiguration();
+
+  @JsonProperty
+  @Valid
+  @NotNull
+  private PreflightConfiguration preflight = new PreflightConfiguration();
+
+  @JsonProperty
+  @Valid
+  @NotNull
+  private JournalConfiguration journal = new JournalConfiguration();
+
   public AuthenticationConfiguration getAuthenticationConfiguration() {
     return authentication;
   }
@@ -48,4 +84,28 @@ public class PushServerConfiguration extends Configuration {
   public GcmConfiguration getGcmConfiguration() {
     return gcm;
   }
+
+  public AdmissionConfiguration getAdmissionConfiguration() {
+    return admission;
+  }
+
+  public DeduplicationConfiguration getDeduplicationConfiguration() {
+    return deduplication;
+  }
+
+  public CoalescingConfiguration getCoalescingConfiguration() {
+    return coalescing;
+  }
+
+  public LanesConfiguration getLanesConfiguration() {
+    return lanes;
+  }
+
+  public PreflightConfiguration getPreflightConfiguration() {
+    return preflight;
+  }
+
+  public JournalConfiguration getJournalConfiguration() {
+    return journal;
+  }
 }
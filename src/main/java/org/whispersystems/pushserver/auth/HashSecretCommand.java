@@ -0,0 +1,26 @@
+package org.whispersystems.pushserver.auth;
+
+import net.sourceforge.argparse4j.inf.Namespace;
+import net.sourceforge.argparse4j.inf.Subparser;
+
+import io.dropwizard.cli.Command;
+import io.dropwizard.setup.Bootstrap;
+
+public class HashSecretCommand extends Command {
+
+  public HashSecretCommand() {
+    super("hashsecret", "Hash a server password for use in the authentication configuration.");
+  }
+
+  @Override
+  public void configure(Subparser subparser) {
+    subparser.addArgument("secret")
+             .required(true)
+             .help("The password to hash");
+  }
+
+  @Override
+  public void run(Bootstrap<?> bootstrap, Namespace namespace) {
+    System.out.println(HashedSecret.hash(namespace.getString("secret")));
+  }
+}
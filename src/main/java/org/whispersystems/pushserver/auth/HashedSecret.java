@@ -0,0 +1,65 @@
+package org.whispersystems.pushserver.auth;
+
+import com.google.common.io.BaseEncoding;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+/**
+ * Server secrets may be configured either in plaintext or as
+ * "pbkdf2:<iterations>:<base64 salt>:<base64 hash>".
+ */
+public class HashedSecret {
+
+  private static final String PREFIX     = "pbkdf2:";
+  private static final String ALGORITHM  = "PBKDF2WithHmacSHA1";
+  private static final int    ITERATIONS = 20000;
+  private static final int    SALT_BYTES = 16;
+  private static final int    HASH_BITS  = 256;
+
+  public static String hash(String secret) {
+    byte[] salt = new byte[SALT_BYTES];
+    new SecureRandom().nextBytes(salt);
+
+    byte[] hash = derive(secret, salt, ITERATIONS, HASH_BITS);
+
+    return PREFIX + ITERATIONS + ":" +
+           BaseEncoding.base64().encode(salt) + ":" +
+           BaseEncoding.base64().encode(hash);
+  }
+
+  public static boolean isHashed(String stored) {
+    return stored.startsWith(PREFIX);
+  }
+
+  public static boolean verify(String stored, String candidate) {
+    if (!isHashed(stored)) {
+      return MessageDigest.isEqual(stored.getBytes(), candidate.getBytes());
+    }
+
+    String[] parts = stored.substring(PREFIX.length()).split(":");
+
+    if (parts.length != 3) {
+      throw new IllegalArgumentException("Malformed hashed secret");
+    }
+
+    int    iterations = Integer.parseInt(parts[0]);
+    byte[] salt       = BaseEncoding.base64().decode(parts[1]);
+    byte[] expected   = BaseEncoding.base64().decode(parts[2]);
+    byte[] actual     = derive(candidate, salt, iterations, expected.length * 8);
+
+    return MessageDigest.isEqual(expected, actual);
+  }
+
+  private static byte[] derive(String secret, byte[] salt, int iterations, int bits) {
+    try {
+      PBEKeySpec spec = new PBEKeySpec(secret.toCharArray(), salt, iterations, bits);
+      return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+    } catch (GeneralSecurityException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
@@ -3,6 +3,10 @@ package org.whispersystems.pushserver.auth;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.google.common.annotations.VisibleForTesting;
 import org.hibernate.validator.constraints.NotEmpty;
+import org.whispersystems.pushserver.config.RateLimitConfiguration;
+
+import javax.validation.Valid;
+import javax.validation.constraints.NotNull;
 
 public class Server {
 
@@ -14,6 +18,11 @@ public class Server {
   @NotEmpty
   private String password;
 
+  @JsonProperty
+  @Valid
+  @NotNull
+  private RateLimitConfiguration rateLimit = new RateLimitConfiguration();
+
   public Server() {}
 
   @VisibleForTesting
@@ -22,6 +31,13 @@ public class Server {
     this.password = password;
   }
 
+  @VisibleForTesting
+  public Server(String name, String password, RateLimitConfiguration rateLimit) {
+    this.name      = name;
+    this.password  = password;
+    this.rateLimit = rateLimit;
+  }
+
   public String getName() {
     return name;
   }
@@ -29,4 +45,8 @@ public class Server {
   public String getPassword() {
     return password;
   }
+
+  public RateLimitConfiguration getRateLimit() {
+    return rateLimit;
+  }
 }
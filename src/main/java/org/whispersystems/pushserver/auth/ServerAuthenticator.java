@@ -1,38 +1,119 @@
 package org.whispersystems.pushserver.auth;
 
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.RatioGauge;
+import com.codahale.metrics.SharedMetricRegistries;
 import com.google.common.base.Optional;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.whispersystems.pushserver.config.AuthenticationConfiguration;
+import org.whispersystems.pushserver.config.RateLimitConfiguration;
+import org.whispersystems.pushserver.limits.TokenBucket;
+import org.whispersystems.pushserver.util.Constants;
 
-import java.security.MessageDigest;
-import java.util.List;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
+import static com.codahale.metrics.MetricRegistry.name;
 import io.dropwizard.auth.AuthenticationException;
 import io.dropwizard.auth.Authenticator;
 import io.dropwizard.auth.basic.BasicCredentials;
 
+/**
+ * Checks basic auth credentials against the configured servers.  Successful
+ * verifications are cached, since hashed secrets are deliberately slow to
+ * check.  For the same reason wrong passwords are rate limited per server
+ * name, so that nobody who knows a name can make every request cost a
+ * PBKDF2 run; once the limit is hit, credentials that aren't already cached
+ * are refused without being checked.
+ */
 public class ServerAuthenticator implements Authenticator<BasicCredentials, Server> {
 
   private static final Logger logger = LoggerFactory.getLogger(ServerAuthenticator.class);
 
-  private final List<Server> servers;
+  private final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
+  private final Meter          cacheHits      = metricRegistry.meter(name(getClass(), "cache", "hits"));
+  private final Meter          cacheMisses    = metricRegistry.meter(name(getClass(), "cache", "misses"));
+  private final Meter          limited        = metricRegistry.meter(name(getClass(), "failures", "limited"));
+
+  private final Map<String, Server>      servers  = new HashMap<>();
+  private final Map<String, TokenBucket> failures = new HashMap<>();
+  private final Cache<HashCode, Server>  verified;
 
   public ServerAuthenticator(AuthenticationConfiguration configuration) {
-    this.servers = configuration.getServers();
+    RateLimitConfiguration failedAttempts = configuration.getFailedAttempts();
+
+    for (Server server : configuration.getServers()) {
+      servers.put(server.getName(), server);
+      failures.put(server.getName(), new TokenBucket("auth.failures." + server.getName(),
+                                                     failedAttempts.getBucketSize(),
+                                                     failedAttempts.getPermitsPerSecond()));
+    }
+
+    this.verified = CacheBuilder.newBuilder()
+                                .maximumSize(configuration.getCacheMaxEntries())
+                                .expireAfterWrite(configuration.getCacheTtlSeconds(), TimeUnit.SECONDS)
+                                .build();
+
+    String hitRatioName = name(getClass(), "cache", "hit_ratio");
+    metricRegistry.remove(hitRatioName);
+    metricRegistry.register(hitRatioName, new RatioGauge() {
+      @Override
+      protected Ratio getRatio() {
+        return Ratio.of(cacheHits.getCount(), cacheHits.getCount() + cacheMisses.getCount());
+      }
+    });
   }
 
   @Override
   public Optional<Server> authenticate(BasicCredentials credentials) throws AuthenticationException {
-    for (Server server : servers) {
-      if (MessageDigest.isEqual(server.getName().getBytes(), credentials.getUsername().getBytes()) &&
-          MessageDigest.isEqual(server.getPassword().getBytes(), credentials.getPassword().getBytes()))
-      {
-        return Optional.of(server);
+    HashCode credentialsDigest = Hashing.sha256().newHasher()
+                                        .putString(credentials.getUsername(), StandardCharsets.UTF_8)
+                                        .putByte((byte)':')
+                                        .putString(credentials.getPassword(), StandardCharsets.UTF_8)
+                                        .hash();
+
+    Server cached = verified.getIfPresent(credentialsDigest);
+
+    if (cached != null) {
+      cacheHits.mark();
+      return Optional.of(cached);
+    }
+
+    cacheMisses.mark();
+
+    Server server = servers.get(credentials.getUsername());
+
+    if (server == null) {
+      return Optional.absent();
+    }
+
+    TokenBucket failed = failures.get(server.getName());
+
+    if (failed.getAvailableTokens() <= 0) {
+      limited.mark();
+      return Optional.absent();
+    }
+
+    try {
+      if (!HashedSecret.verify(server.getPassword(), credentials.getPassword())) {
+        failed.tryAcquire();
+        return Optional.absent();
       }
+    } catch (IllegalArgumentException e) {
+      logger.warn("Bad secret configured for " + server.getName(), e);
+      return Optional.absent();
     }
 
-    return Optional.absent();
+    verified.put(credentialsDigest, server);
+    return Optional.of(server);
   }
 }
@@ -0,0 +1,70 @@
+package org.whispersystems.pushserver.config;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.annotations.VisibleForTesting;
+
+import javax.validation.constraints.DecimalMax;
+import javax.validation.constraints.DecimalMin;
+import javax.validation.constraints.Min;
+
+public class AdaptiveLimitConfiguration {
+
+  @JsonProperty
+  @Min(1)
+  private int initialLimit = 20;
+
+  @JsonProperty
+  @Min(1)
+  private int minLimit = 4;
+
+  @JsonProperty
+  @Min(1)
+  private int maxLimit = 500;
+
+  @JsonProperty
+  @Min(0)
+  private int maxPending = 20000;
+
+  @JsonProperty
+  @DecimalMin("1.0")
+  private double rttTolerance = 2.0;
+
+  @JsonProperty
+  @DecimalMin("0.1")
+  @DecimalMax("0.99")
+  private double backoffRatio = 0.9;
+
+  public AdaptiveLimitConfiguration() {}
+
+  @VisibleForTesting
+  public AdaptiveLimitConfiguration(int initialLimit, int minLimit, int maxLimit, int maxPending) {
+    this.initialLimit = initialLimit;
+    this.minLimit     = minLimit;
+    this.maxLimit     = maxLimit;
+    this.maxPending   = maxPending;
+  }
+
+  public int getInitialLimit() {
+    return initialLimit;
+  }
+
+  public int getMinLimit() {
+    return minLimit;
+  }
+
+  public int getMaxLimit() {
+    return maxLimit;
+  }
+
+  public int getMaxPending() {
+    return maxPending;
+  }
+
+  public double getRttTolerance() {
+    return rttTolerance;
+  }
+
+  public double getBackoffRatio() {
+    return backoffRatio;
+  }
+}
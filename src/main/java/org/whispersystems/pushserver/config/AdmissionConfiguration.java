@@ -0,0 +1,74 @@
+package org.whispersystems.pushserver.config;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.annotations.VisibleForTesting;
+
+import javax.validation.constraints.Min;
+
+public class AdmissionConfiguration {
+
+  @JsonProperty
+  @Min(1)
+  private int maxInFlightPerServer = 2000;
+
+  /**
+   * Call pushes have their own rate limit and in-flight allowance per server,
+   * apart from bulk traffic.  This is how many of the call lane's slots each
+   * server may hold.
+   */
+  @JsonProperty
+  @Min(1)
+  private int maxCallsInFlightPerServer = 250;
+
+  @JsonProperty
+  @Min(1)
+  private int maxInFlightApn = 5000;
+
+  @JsonProperty
+  @Min(1)
+  private int maxInFlightGcm = 5000;
+
+  @JsonProperty
+  @Min(1)
+  private int retryAfterSeconds = 1;
+
+  public AdmissionConfiguration() {}
+
+  @VisibleForTesting
+  public AdmissionConfiguration(int maxInFlightPerServer, int maxInFlightApn,
+                                int maxInFlightGcm, int retryAfterSeconds)
+  {
+    this.maxInFlightPerServer = maxInFlightPerServer;
+    this.maxInFlightApn       = maxInFlightApn;
+    this.maxInFlightGcm       = maxInFlightGcm;
+    this.retryAfterSeconds    = retryAfterSeconds;
+  }
+
+  @VisibleForTesting
+  public AdmissionConfiguration(int maxInFlightPerServer, int maxCallsInFlightPerServer, int maxInFlightApn,
+                                int maxInFlightGcm, int retryAfterSeconds)
+  {
+    this(maxInFlightPerServer, maxInFlightApn, maxInFlightGcm, retryAfterSeconds);
+    this.maxCallsInFlightPerServer = maxCallsInFlightPerServer;
+  }
+
+  public int getMaxInFlightPerServer() {
+    return maxInFlightPerServer;
+  }
+
+  public int getMaxCallsInFlightPerServer() {
+    return maxCallsInFlightPerServer;
+  }
+
+  public int getMaxInFlightApn() {
+    return maxInFlightApn;
+  }
+
+  public int getMaxInFlightGcm() {
+    return maxInFlightGcm;
+  }
+
+  public int getRetryAfterSeconds() {
+    return retryAfterSeconds;
+  }
+}
@@ -17,7 +17,13 @@
 package org.whispersystems.pushserver.config;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.base.Optional;
 import org.hibernate.validator.constraints.NotEmpty;
+import org.whispersystems.pushserver.senders.ApnsHttp2Client;
+
+import javax.validation.Valid;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
 
 
 public class ApnConfiguration {
@@ -41,6 +47,44 @@ public class ApnConfiguration {
   @JsonProperty
   private boolean feedback = true;
 
+  /**
+   * Negotiating HTTP/2 with APNs needs ALPN, which Java 7 and Java 8 before
+   * 8u252 don't provide without an ALPN boot jar.  Leave this off unless the
+   * JVM supports it.
+   */
+  @JsonProperty
+  private boolean http2 = false;
+
+  /**
+   * The app's bundle id, sent as apns-topic on HTTP/2 pushes.  VoIP pushes
+   * use the bundle id with ".voip" appended.  Required for certificates that
+   * cover more than one topic.
+   */
+  @JsonProperty
+  private String bundleId;
+
+  @NotEmpty
+  @JsonProperty
+  private String http2Endpoint = ApnsHttp2Client.PRODUCTION_ENDPOINT;
+
+  @JsonProperty
+  @Min(1)
+  private int maxConcurrentStreams = 1000;
+
+  @JsonProperty
+  @Min(1)
+  private int connections = 4;
+
+  @JsonProperty
+  @Valid
+  @NotNull
+  private WriteBehindConfiguration mappingWrites = new WriteBehindConfiguration();
+
+  @JsonProperty
+  @Valid
+  @NotNull
+  private NearCacheConfiguration mappingCache = new NearCacheConfiguration();
+
   public String getPushCertificate() {
     return pushCertificate;
   }
@@ -60,4 +104,36 @@ public class ApnConfiguration {
   public boolean isFeedbackEnabled() {
     return feedback;
   }
+
+  public boolean isHttp2() {
+    return http2;
+  }
+
+  public Optional<String> getPushTopic() {
+    return Optional.fromNullable(bundleId);
+  }
+
+  public Optional<String> getVoipTopic() {
+    return bundleId == null ? Optional.<String>absent() : Optional.of(bundleId + ".voip");
+  }
+
+  public String getHttp2Endpoint() {
+    return http2Endpoint;
+  }
+
+  public int getMaxConcurrentStreams() {
+    return maxConcurrentStreams;
+  }
+
+  public int getConnections() {
+    return connections;
+  }
+
+  public WriteBehindConfiguration getMappingWrites() {
+    return mappingWrites;
+  }
+
+  public NearCacheConfiguration getMappingCache() {
+    return mappingCache;
+  }
 }
@@ -4,6 +4,8 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 import org.whispersystems.pushserver.auth.Server;
 
 import javax.validation.Valid;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
 import java.util.List;
 
 public class AuthenticationConfiguration {
@@ -12,8 +14,36 @@ public class AuthenticationConfiguration {
   @Valid
   private List<Server> servers;
 
+  @JsonProperty
+  @Min(1)
+  private int cacheTtlSeconds = 300;
+
+  @JsonProperty
+  @Min(1)
+  private int cacheMaxEntries = 1000;
+
+  /**
+   * Wrong passwords allowed per server name before further attempts are
+   * refused without being checked.
+   */
+  @JsonProperty
+  @Valid
+  @NotNull
+  private RateLimitConfiguration failedAttempts = new RateLimitConfiguration(10, 1);
 
   public List<Server> getServers() {
     return servers;
   }
+
+  public int getCacheTtlSeconds() {
+    return cacheTtlSeconds;
+  }
+
+  public int getCacheMaxEntries() {
+    return cacheMaxEntries;
+  }
+
+  public RateLimitConfiguration getFailedAttempts() {
+    return failedAttempts;
+  }
 }
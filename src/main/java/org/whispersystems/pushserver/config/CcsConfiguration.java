@@ -0,0 +1,87 @@
+package org.whispersystems.pushserver.config;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.annotations.VisibleForTesting;
+import org.hibernate.validator.constraints.NotEmpty;
+
+import javax.validation.constraints.Max;
+import javax.validation.constraints.Min;
+
+public class CcsConfiguration {
+
+  @JsonProperty
+  @NotEmpty
+  private String host = "gcm.googleapis.com";
+
+  @JsonProperty
+  @Min(1)
+  private int port = 5235;
+
+  @JsonProperty
+  @Min(1)
+  private int connections = 4;
+
+  /**
+   * Unacknowledged messages allowed per connection.  CCS drops connections
+   * that exceed 100.
+   */
+  @JsonProperty
+  @Min(1)
+  @Max(100)
+  private int windowSize = 100;
+
+  @JsonProperty
+  @Min(0)
+  private int maxQueued = 20000;
+
+  /**
+   * How long a sent message may go without an ack or nack before it is
+   * failed and its window slot released.
+   */
+  @JsonProperty
+  @Min(1)
+  private long ackTimeoutMillis = 30000;
+
+  public CcsConfiguration() {}
+
+  @VisibleForTesting
+  public CcsConfiguration(String host, int port, int connections, int windowSize, int maxQueued) {
+    this.host        = host;
+    this.port        = port;
+    this.connections = connections;
+    this.windowSize  = windowSize;
+    this.maxQueued   = maxQueued;
+  }
+
+  @VisibleForTesting
+  public CcsConfiguration(String host, int port, int connections, int windowSize, int maxQueued,
+                          long ackTimeoutMillis)
+  {
+    this(host, port, connections, windowSize, maxQueued);
+    this.ackTimeoutMillis = ackTimeoutMillis;
+  }
+
+  public String getHost() {
+    return host;
+  }
+
+  public int getPort() {
+    return port;
+  }
+
+  public int getConnections() {
+    return connections;
+  }
+
+  public int getWindowSize() {
+    return windowSize;
+  }
+
+  public int getMaxQueued() {
+    return maxQueued;
+  }
+
+  public long getAckTimeoutMillis() {
+    return ackTimeoutMillis;
+  }
+}
@@ -0,0 +1,23 @@
+package org.whispersystems.pushserver.config;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import javax.validation.constraints.Min;
+
+public class CoalescingConfiguration {
+
+  @JsonProperty
+  private boolean enabled = false;
+
+  @JsonProperty
+  @Min(1)
+  private int windowMillis = 500;
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public int getWindowMillis() {
+    return windowMillis;
+  }
+}
@@ -0,0 +1,49 @@
+package org.whispersystems.pushserver.config;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.annotations.VisibleForTesting;
+
+import javax.validation.constraints.Min;
+
+public class DeduplicationConfiguration {
+
+  @JsonProperty
+  private boolean enabled = false;
+
+  @JsonProperty
+  @Min(1)
+  private int windowSeconds = 10;
+
+  @JsonProperty
+  @Min(1)
+  private int maxEntries = 100000;
+
+  @JsonProperty
+  private boolean redis = false;
+
+  public DeduplicationConfiguration() {}
+
+  @VisibleForTesting
+  public DeduplicationConfiguration(boolean enabled, int windowSeconds, int maxEntries, boolean redis) {
+    this.enabled       = enabled;
+    this.windowSeconds = windowSeconds;
+    this.maxEntries    = maxEntries;
+    this.redis         = redis;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public int getWindowSeconds() {
+    return windowSeconds;
+  }
+
+  public int getMaxEntries() {
+    return maxEntries;
+  }
+
+  public boolean isRedis() {
+    return redis;
+  }
+}
@@ -0,0 +1,33 @@
+package org.whispersystems.pushserver.config;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.annotations.VisibleForTesting;
+
+import javax.validation.constraints.Min;
+
+public class ExecutorConfiguration {
+
+  @JsonProperty
+  @Min(1)
+  private int workers = 8;
+
+  @JsonProperty
+  @Min(1)
+  private int queueSize = 10000;
+
+  public ExecutorConfiguration() {}
+
+  @VisibleForTesting
+  public ExecutorConfiguration(int workers, int queueSize) {
+    this.workers   = workers;
+    this.queueSize = queueSize;
+  }
+
+  public int getWorkers() {
+    return workers;
+  }
+
+  public int getQueueSize() {
+    return queueSize;
+  }
+}
@@ -0,0 +1,70 @@
+package org.whispersystems.pushserver.config;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.annotations.VisibleForTesting;
+import org.hibernate.validator.constraints.NotEmpty;
+
+import javax.validation.Valid;
+import javax.validation.constraints.Min;
+
+public class FcmConfiguration {
+
+  public static final String PRODUCTION_ENDPOINT = "https://fcm.googleapis.com";
+
+  @JsonProperty
+  private boolean enabled = false;
+
+  @JsonProperty
+  @NotEmpty
+  private String endpoint = PRODUCTION_ENDPOINT;
+
+  @JsonProperty
+  @Min(1)
+  private int maxConcurrentStreams = 1000;
+
+  @JsonProperty
+  @Valid
+  private FcmProjectConfiguration signal;
+
+  @JsonProperty
+  @Valid
+  private FcmProjectConfiguration redphone;
+
+  public FcmConfiguration() {}
+
+  @VisibleForTesting
+  public FcmConfiguration(String endpoint, FcmProjectConfiguration signal, FcmProjectConfiguration redphone) {
+    this(endpoint, 1000, signal, redphone);
+  }
+
+  @VisibleForTesting
+  public FcmConfiguration(String endpoint, int maxConcurrentStreams,
+                          FcmProjectConfiguration signal, FcmProjectConfiguration redphone)
+  {
+    this.enabled              = true;
+    this.endpoint             = endpoint;
+    this.maxConcurrentStreams = maxConcurrentStreams;
+    this.signal               = signal;
+    this.redphone             = redphone;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public String getEndpoint() {
+    return endpoint;
+  }
+
+  public int getMaxConcurrentStreams() {
+    return maxConcurrentStreams;
+  }
+
+  public FcmProjectConfiguration getSignal() {
+    return signal;
+  }
+
+  public FcmProjectConfiguration getRedphone() {
+    return redphone;
+  }
+}
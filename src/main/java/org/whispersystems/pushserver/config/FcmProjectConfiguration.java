@@ -0,0 +1,36 @@
+package org.whispersystems.pushserver.config;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.annotations.VisibleForTesting;
+import org.hibernate.validator.constraints.NotEmpty;
+
+public class FcmProjectConfiguration {
+
+  @JsonProperty
+  @NotEmpty
+  private String projectId;
+
+  /**
+   * The service account key for the project, as the JSON document the
+   * Firebase console hands out.
+   */
+  @JsonProperty
+  @NotEmpty
+  private String serviceAccount;
+
+  public FcmProjectConfiguration() {}
+
+  @VisibleForTesting
+  public FcmProjectConfiguration(String projectId, String serviceAccount) {
+    this.projectId      = projectId;
+    this.serviceAccount = serviceAccount;
+  }
+
+  public String getProjectId() {
+    return projectId;
+  }
+
+  public String getServiceAccount() {
+    return serviceAccount;
+  }
+}
@@ -19,6 +19,7 @@ package org.whispersystems.pushserver.config;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import org.hibernate.validator.constraints.NotEmpty;
 
+import javax.validation.Valid;
 import javax.validation.constraints.NotNull;
 
 public class GcmConfiguration {
@@ -38,6 +39,36 @@ public class GcmConfiguration {
   @JsonProperty
   private boolean xmpp = false;
 
+  @JsonProperty
+  @Valid
+  @NotNull
+  private CcsConfiguration ccs = new CcsConfiguration();
+
+  @JsonProperty
+  @Valid
+  @NotNull
+  private ExecutorConfiguration callbacks = new ExecutorConfiguration();
+
+  @JsonProperty
+  @Valid
+  @NotNull
+  private AdaptiveLimitConfiguration concurrency = new AdaptiveLimitConfiguration();
+
+  @JsonProperty
+  @Valid
+  @NotNull
+  private MulticastConfiguration multicast = new MulticastConfiguration();
+
+  @JsonProperty
+  @Valid
+  @NotNull
+  private RetryConfiguration retries = new RetryConfiguration();
+
+  @JsonProperty
+  @Valid
+  @NotNull
+  private FcmConfiguration fcm = new FcmConfiguration();
+
   public String getApiKey() {
     return apiKey;
   }
@@ -50,7 +81,31 @@ public class GcmConfiguration {
     return xmpp;
   }
 
+  public CcsConfiguration getCcs() {
+    return ccs;
+  }
+
   public String getRedphoneApiKey() {
     return redphoneApiKey;
   }
+
+  public ExecutorConfiguration getCallbacks() {
+    return callbacks;
+  }
+
+  public AdaptiveLimitConfiguration getConcurrency() {
+    return concurrency;
+  }
+
+  public MulticastConfiguration getMulticast() {
+    return multicast;
+  }
+
+  public RetryConfiguration getRetries() {
+    return retries;
+  }
+
+  public FcmConfiguration getFcm() {
+    return fcm;
+  }
 }
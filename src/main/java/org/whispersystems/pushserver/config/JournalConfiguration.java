@@ -0,0 +1,50 @@
+package org.whispersystems.pushserver.config;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.annotations.VisibleForTesting;
+import org.hibernate.validator.constraints.NotEmpty;
+
+import javax.validation.constraints.Min;
+
+public class JournalConfiguration {
+
+  @JsonProperty
+  private boolean enabled = false;
+
+  @JsonProperty
+  @NotEmpty
+  private String directory = "journal";
+
+  @JsonProperty
+  @Min(4096)
+  private int segmentSize = 64 * 1024 * 1024;
+
+  @JsonProperty
+  @Min(1)
+  private int syncIntervalMillis = 10;
+
+  public JournalConfiguration() {}
+
+  @VisibleForTesting
+  public JournalConfiguration(String directory, int segmentSize) {
+    this.enabled     = true;
+    this.directory   = directory;
+    this.segmentSize = segmentSize;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public String getDirectory() {
+    return directory;
+  }
+
+  public int getSegmentSize() {
+    return segmentSize;
+  }
+
+  public int getSyncIntervalMillis() {
+    return syncIntervalMillis;
+  }
+}
@@ -0,0 +1,42 @@
+package org.whispersystems.pushserver.config;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.annotations.VisibleForTesting;
+
+import javax.validation.constraints.Min;
+
+public class LaneConfiguration {
+
+  @JsonProperty
+  @Min(1)
+  private int workers;
+
+  @JsonProperty
+  @Min(1)
+  private int queueSize;
+
+  @JsonProperty
+  @Min(1)
+  private int maxInFlight;
+
+  public LaneConfiguration() {}
+
+  @VisibleForTesting
+  public LaneConfiguration(int workers, int queueSize, int maxInFlight) {
+    this.workers     = workers;
+    this.queueSize   = queueSize;
+    this.maxInFlight = maxInFlight;
+  }
+
+  public int getWorkers() {
+    return workers;
+  }
+
+  public int getQueueSize() {
+    return queueSize;
+  }
+
+  public int getMaxInFlight() {
+    return maxInFlight;
+  }
+}
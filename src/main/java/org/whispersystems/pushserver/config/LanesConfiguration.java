@@ -0,0 +1,34 @@
+package org.whispersystems.pushserver.config;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import org.whispersystems.pushserver.senders.PushLane;
+
+import javax.validation.Valid;
+import javax.validation.constraints.NotNull;
+
+public class LanesConfiguration {
+
+  @JsonProperty
+  @Valid
+  @NotNull
+  private LaneConfiguration call = new LaneConfiguration(4, 1000, 1000);
+
+  @JsonProperty
+  @Valid
+  @NotNull
+  private LaneConfiguration message = new LaneConfiguration(8, 10000, 5000);
+
+  @JsonProperty
+  @Valid
+  @NotNull
+  private LaneConfiguration receipt = new LaneConfiguration(4, 10000, 5000);
+
+  public LaneConfiguration getLane(PushLane lane) {
+    switch (lane) {
+      case CALL:    return call;
+      case MESSAGE: return message;
+      case RECEIPT: return receipt;
+      default:      throw new AssertionError("Unknown lane: " + lane);
+    }
+  }
+}
@@ -0,0 +1,41 @@
+package org.whispersystems.pushserver.config;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import javax.validation.constraints.Max;
+import javax.validation.constraints.Min;
+
+public class MulticastConfiguration {
+
+  @JsonProperty
+  private boolean enabled = false;
+
+  @JsonProperty
+  @Min(1)
+  private int windowMillis = 20;
+
+  @JsonProperty
+  @Min(2)
+  @Max(1000)
+  private int maxRecipients = 1000;
+
+  @JsonProperty
+  @Min(1)
+  private int maxConcurrentRequests = 10;
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public int getWindowMillis() {
+    return windowMillis;
+  }
+
+  public int getMaxRecipients() {
+    return maxRecipients;
+  }
+
+  public int getMaxConcurrentRequests() {
+    return maxConcurrentRequests;
+  }
+}
@@ -0,0 +1,43 @@
+package org.whispersystems.pushserver.config;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.annotations.VisibleForTesting;
+
+import javax.validation.constraints.Max;
+import javax.validation.constraints.Min;
+
+public class NearCacheConfiguration {
+
+  @JsonProperty
+  private boolean enabled = true;
+
+  @JsonProperty
+  @Min(1)
+  private int maxEntries = 100000;
+
+  @JsonProperty
+  @Min(1)
+  @Max(1800)
+  private int refreshSeconds = 900;
+
+  public NearCacheConfiguration() {}
+
+  @VisibleForTesting
+  public NearCacheConfiguration(boolean enabled, int maxEntries, int refreshSeconds) {
+    this.enabled        = enabled;
+    this.maxEntries     = maxEntries;
+    this.refreshSeconds = refreshSeconds;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public int getMaxEntries() {
+    return maxEntries;
+  }
+
+  public int getRefreshSeconds() {
+    return refreshSeconds;
+  }
+}
@@ -0,0 +1,47 @@
+package org.whispersystems.pushserver.config;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.annotations.VisibleForTesting;
+
+import javax.validation.constraints.Min;
+
+public class PreflightConfiguration {
+
+  @JsonProperty
+  private boolean enabled = true;
+
+  @JsonProperty
+  @Min(1)
+  private int apnMaxPayloadBytes = 4096;
+
+  @JsonProperty
+  @Min(1)
+  private int voipMaxPayloadBytes = 5120;
+
+  @JsonProperty
+  @Min(1)
+  private int gcmMaxPayloadBytes = 4096;
+
+  public PreflightConfiguration() {}
+
+  @VisibleForTesting
+  public PreflightConfiguration(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public int getApnMaxPayloadBytes() {
+    return apnMaxPayloadBytes;
+  }
+
+  public int getVoipMaxPayloadBytes() {
+    return voipMaxPayloadBytes;
+  }
+
+  public int getGcmMaxPayloadBytes() {
+    return gcmMaxPayloadBytes;
+  }
+}
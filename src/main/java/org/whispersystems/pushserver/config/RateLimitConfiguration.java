@@ -0,0 +1,33 @@
+package org.whispersystems.pushserver.config;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.annotations.VisibleForTesting;
+
+import javax.validation.constraints.Min;
+
+public class RateLimitConfiguration {
+
+  @JsonProperty
+  @Min(1)
+  private int bucketSize = 10000;
+
+  @JsonProperty
+  @Min(1)
+  private double permitsPerSecond = 2000;
+
+  public RateLimitConfiguration() {}
+
+  @VisibleForTesting
+  public RateLimitConfiguration(int bucketSize, double permitsPerSecond) {
+    this.bucketSize       = bucketSize;
+    this.permitsPerSecond = permitsPerSecond;
+  }
+
+  public int getBucketSize() {
+    return bucketSize;
+  }
+
+  public double getPermitsPerSecond() {
+    return permitsPerSecond;
+  }
+}
@@ -0,0 +1,51 @@
+package org.whispersystems.pushserver.config;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.annotations.VisibleForTesting;
+
+import javax.validation.constraints.Min;
+
+public class RetryConfiguration {
+
+  @JsonProperty
+  @Min(1)
+  private int maxAttempts = 5;
+
+  @JsonProperty
+  @Min(1)
+  private long baseDelayMillis = 1000;
+
+  @JsonProperty
+  @Min(1)
+  private long maxDelayMillis = 60000;
+
+  @JsonProperty
+  @Min(0)
+  private int maxInFlight = 10000;
+
+  public RetryConfiguration() {}
+
+  @VisibleForTesting
+  public RetryConfiguration(int maxAttempts, long baseDelayMillis, long maxDelayMillis, int maxInFlight) {
+    this.maxAttempts     = maxAttempts;
+    this.baseDelayMillis = baseDelayMillis;
+    this.maxDelayMillis  = maxDelayMillis;
+    this.maxInFlight     = maxInFlight;
+  }
+
+  public int getMaxAttempts() {
+    return maxAttempts;
+  }
+
+  public long getBaseDelayMillis() {
+    return baseDelayMillis;
+  }
+
+  public long getMaxDelayMillis() {
+    return maxDelayMillis;
+  }
+
+  public int getMaxInFlight() {
+    return maxInFlight;
+  }
+}
@@ -0,0 +1,42 @@
+package org.whispersystems.pushserver.config;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.annotations.VisibleForTesting;
+
+import javax.validation.constraints.Min;
+
+public class WriteBehindConfiguration {
+
+  @JsonProperty
+  @Min(1)
+  private int bufferSize = 50000;
+
+  @JsonProperty
+  @Min(1)
+  private int batchSize = 500;
+
+  @JsonProperty
+  @Min(1)
+  private int flushIntervalMillis = 100;
+
+  public WriteBehindConfiguration() {}
+
+  @VisibleForTesting
+  public WriteBehindConfiguration(int bufferSize, int batchSize, int flushIntervalMillis) {
+    this.bufferSize          = bufferSize;
+    this.batchSize           = batchSize;
+    this.flushIntervalMillis = flushIntervalMillis;
+  }
+
+  public int getBufferSize() {
+    return bufferSize;
+  }
+
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  public int getFlushIntervalMillis() {
+    return flushIntervalMillis;
+  }
+}
@@ -4,6 +4,7 @@ import com.codahale.metrics.annotation.Timed;
 
 import org.whispersystems.pushserver.auth.Server;
 import org.whispersystems.pushserver.entities.UnregisteredEventList;
+import org.whispersystems.pushserver.providers.SmileMessageBodyProvider;
 import org.whispersystems.pushserver.senders.UnregisteredQueue;
 
 import javax.ws.rs.GET;
@@ -26,7 +27,7 @@ public class FeedbackController {
 
   @Timed
   @GET
-  @Produces(MediaType.APPLICATION_JSON)
+  @Produces({MediaType.APPLICATION_JSON, SmileMessageBodyProvider.APPLICATION_SMILE})
   @Path("/gcm/")
   public UnregisteredEventList getUnregisteredGcmDevices(@Auth Server server) {
     return new UnregisteredEventList(gcmQueue.get(server.getName()));
@@ -34,7 +35,7 @@ public class FeedbackController {
 
   @Timed
   @GET
-  @Produces(MediaType.APPLICATION_JSON)
+  @Produces({MediaType.APPLICATION_JSON, SmileMessageBodyProvider.APPLICATION_SMILE})
   @Path("/apn/")
   public UnregisteredEventList getUnregisteredApnDevices(@Auth Server server) {
     return new UnregisteredEventList(apnQueue.get(server.getName()));
@@ -1,48 +1,484 @@
 package org.whispersystems.pushserver.controllers;
 
 import com.codahale.metrics.annotation.Timed;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Optional;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import org.whispersystems.pushserver.auth.Server;
 import org.whispersystems.pushserver.entities.ApnMessage;
+import org.whispersystems.pushserver.entities.ApnMessageList;
 import org.whispersystems.pushserver.entities.GcmMessage;
+import org.whispersystems.pushserver.entities.GcmMessageList;
+import org.whispersystems.pushserver.entities.PushResult;
+import org.whispersystems.pushserver.entities.PushResultList;
+import org.whispersystems.pushserver.journal.PushJournal;
+import org.whispersystems.pushserver.limits.AdmissionController;
+import org.whispersystems.pushserver.limits.AdmissionController.Permit;
+import org.whispersystems.pushserver.limits.RateLimitExceededException;
+import org.whispersystems.pushserver.providers.SmileMessageBodyProvider;
 import org.whispersystems.pushserver.senders.APNSender;
+import org.whispersystems.pushserver.senders.DuplicatePushFilter;
 import org.whispersystems.pushserver.senders.GCMSender;
+import org.whispersystems.pushserver.senders.PreflightValidator;
 import org.whispersystems.pushserver.senders.TransientPushFailureException;
 
+import javax.validation.ConstraintViolation;
 import javax.validation.Valid;
+import javax.validation.Validator;
 import javax.ws.rs.Consumes;
+import javax.ws.rs.POST;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import io.dropwizard.auth.Auth;
+import io.dropwizard.validation.ConstraintViolations;
 
 @Path("/api/v1/push")
 public class PushController {
 
-  private final APNSender apnSender;
-  private final GCMSender gcmSender;
+  public static final String APPLICATION_NDJSON = "application/x-ndjson";
 
-  public PushController(APNSender apnSender, GCMSender gcmSender) {
-    this.apnSender = apnSender;
-    this.gcmSender = gcmSender;
+  private static final long ASYNC_TIMEOUT_SECONDS = 30;
+
+  private final APNSender           apnSender;
+  private final GCMSender           gcmSender;
+  private final AdmissionController admissionController;
+  private final DuplicatePushFilter duplicateFilter;
+  private final PreflightValidator  preflightValidator;
+  private final PushJournal         journal;
+  private final ObjectMapper        objectMapper;
+  private final Validator           validator;
+
+  public PushController(APNSender apnSender, GCMSender gcmSender,
+                        AdmissionController admissionController,
+                        DuplicatePushFilter duplicateFilter,
+                        PreflightValidator preflightValidator,
+                        PushJournal journal,
+                        ObjectMapper objectMapper, Validator validator)
+  {
+    this.apnSender           = apnSender;
+    this.gcmSender           = gcmSender;
+    this.admissionController = admissionController;
+    this.duplicateFilter     = duplicateFilter;
+    this.preflightValidator  = preflightValidator;
+    this.journal             = journal;
+    this.objectMapper        = objectMapper;
+    this.validator           = validator;
   }
 
   @Timed
   @PUT
-  @Consumes(MediaType.APPLICATION_JSON)
+  @Consumes({MediaType.APPLICATION_JSON, SmileMessageBodyProvider.APPLICATION_SMILE})
   @Path("/gcm")
-  public void sendGcmPush(@Auth Server server, @Valid GcmMessage gcmMessage) {
-    gcmSender.sendMessage(gcmMessage);
+  public void sendGcmPush(@Auth Server server, @Valid GcmMessage gcmMessage)
+      throws RateLimitExceededException
+  {
+    sendGcm(server, gcmMessage);
   }
 
   @Timed
   @PUT
-  @Consumes(MediaType.APPLICATION_JSON)
+  @Consumes({MediaType.APPLICATION_JSON, SmileMessageBodyProvider.APPLICATION_SMILE})
   @Path("/apn")
   public void sendApnPush(@Auth Server server, @Valid ApnMessage apnMessage)
-      throws TransientPushFailureException
+      throws TransientPushFailureException, RateLimitExceededException
+  {
+    sendApn(server, apnMessage);
+  }
+
+  @Timed
+  @PUT
+  @Consumes({MediaType.APPLICATION_JSON, SmileMessageBodyProvider.APPLICATION_SMILE})
+  @Produces({MediaType.APPLICATION_JSON, SmileMessageBodyProvider.APPLICATION_SMILE})
+  @Path("/gcm/batch")
+  public PushResultList sendGcmPushes(@Auth Server server, @Valid GcmMessageList gcmMessages) {
+    List<PushResult> results = new LinkedList<>();
+
+    for (GcmMessage gcmMessage : gcmMessages.getMessages()) {
+      try {
+        results.add(getResultIfKnown(sendGcm(server, gcmMessage)));
+      } catch (RateLimitExceededException e) {
+        results.add(PushResult.rateLimited(e.getMessage()));
+      }
+    }
+
+    return new PushResultList(results);
+  }
+
+  @Timed
+  @PUT
+  @Consumes({MediaType.APPLICATION_JSON, SmileMessageBodyProvider.APPLICATION_SMILE})
+  @Produces({MediaType.APPLICATION_JSON, SmileMessageBodyProvider.APPLICATION_SMILE})
+  @Path("/apn/batch")
+  public PushResultList sendApnPushes(@Auth Server server, @Valid ApnMessageList apnMessages) {
+    List<PushResult> results  = new ArrayList<>(apnMessages.getMessages().size());
+    List<ApnMessage> admitted = new LinkedList<>();
+    List<Permit>     permits  = new LinkedList<>();
+
+    try {
+      for (ApnMessage apnMessage : apnMessages.getMessages()) {
+        Optional<String> rejection = preflightValidator.validate(apnMessage);
+
+        if (rejection.isPresent()) {
+          results.add(PushResult.failure(rejection.get()));
+          continue;
+        }
+
+        try {
+          Permit permit = admissionController.acquireApn(server, apnMessage);
+          permits.add(permit);
+
+          if (duplicateFilter.isDuplicate(apnMessage)) {
+            results.add(PushResult.duplicate());
+          } else {
+            admitted.add(apnMessage);
+            results.add(null);
+          }
+        } catch (RateLimitExceededException e) {
+          results.add(PushResult.rateLimited(e.getMessage()));
+        }
+      }
+
+      if (!admitted.isEmpty()) {
+        List<Long> entries = new ArrayList<>(admitted.size());
+
+        for (ApnMessage message : admitted) {
+          entries.add(journal.append(message));
+        }
+
+        List<ListenableFuture<PushResult>> delivered;
+
+        try {
+          delivered = apnSender.sendMessages(admitted);
+        } catch (RuntimeException e) {
+          for (long entry : entries) {
+            journal.done(entry);
+          }
+
+          throw e;
+        }
+
+        Iterator<ApnMessage>                   messages  = admitted.iterator();
+        Iterator<Long>                         journaled = entries.iterator();
+        Iterator<ListenableFuture<PushResult>> sent      = delivered.iterator();
+
+        for (int i = 0; i < results.size(); i++) {
+          if (results.get(i) == null) {
+            final ApnMessage             message = messages.next();
+            ListenableFuture<PushResult> result  = sent.next();
+
+            journal.doneOnCompletion(journaled.next(), result);
+            forgetOnTransientFailure(result, new Runnable() {
+              @Override
+              public void run() {
+                duplicateFilter.forget(message);
+              }
+            });
+
+            results.set(i, getResultIfKnown(result));
+          }
+        }
+      }
+    } finally {
+      for (Permit permit : permits) {
+        permit.release();
+      }
+    }
+
+    return new PushResultList(results);
+  }
+
+  @Timed
+  @PUT
+  @Consumes({MediaType.APPLICATION_JSON, SmileMessageBodyProvider.APPLICATION_SMILE})
+  @Produces({MediaType.APPLICATION_JSON, SmileMessageBodyProvider.APPLICATION_SMILE})
+  @Path("/gcm/async")
+  public void sendGcmPushAsync(@Auth Server server, @Valid GcmMessage gcmMessage,
+                               @Suspended AsyncResponse asyncResponse)
+      throws RateLimitExceededException
+  {
+    resumeOnCompletion(sendGcm(server, gcmMessage), asyncResponse);
+  }
+
+  @Timed
+  @PUT
+  @Consumes({MediaType.APPLICATION_JSON, SmileMessageBodyProvider.APPLICATION_SMILE})
+  @Produces({MediaType.APPLICATION_JSON, SmileMessageBodyProvider.APPLICATION_SMILE})
+  @Path("/apn/async")
+  public void sendApnPushAsync(@Auth Server server, @Valid final ApnMessage apnMessage,
+                               @Suspended AsyncResponse asyncResponse)
+      throws RateLimitExceededException
+  {
+    Optional<String> rejection = preflightValidator.validate(apnMessage);
+
+    if (rejection.isPresent()) {
+      asyncResponse.resume(PushResult.failure(rejection.get()));
+      return;
+    }
+
+    Permit permit = admissionController.acquireApn(server, apnMessage);
+
+    if (duplicateFilter.isDuplicate(apnMessage)) {
+      permit.release();
+      asyncResponse.resume(PushResult.duplicate());
+      return;
+    }
+
+    long entry = journal.append(apnMessage);
+
+    try {
+      ListenableFuture<PushResult> result = apnSender.sendMessageAsync(apnMessage);
+      journal.doneOnCompletion(entry, result);
+      permit.releaseOnCompletion(result);
+      forgetOnTransientFailure(result, new Runnable() {
+        @Override
+        public void run() {
+          duplicateFilter.forget(apnMessage);
+        }
+      });
+      resumeOnCompletion(result, asyncResponse);
+    } catch (RuntimeException e) {
+      permit.release();
+      journal.done(entry);
+      duplicateFilter.forget(apnMessage);
+      throw e;
+    }
+  }
+
+  @Timed
+  @POST
+  @Consumes(APPLICATION_NDJSON)
+  @Produces(APPLICATION_NDJSON)
+  @Path("/gcm/stream")
+  public StreamingOutput streamGcmPushes(@Auth final Server server, InputStream messages) {
+    return new MessageStreamingOutput<GcmMessage>(messages, GcmMessage.class) {
+      @Override
+      protected PushResult send(GcmMessage message) {
+        try {
+          return getResultIfKnown(sendGcm(server, message));
+        } catch (RateLimitExceededException e) {
+          return PushResult.rateLimited(e.getMessage());
+        }
+      }
+    };
+  }
+
+  @Timed
+  @POST
+  @Consumes(APPLICATION_NDJSON)
+  @Produces(APPLICATION_NDJSON)
+  @Path("/apn/stream")
+  public StreamingOutput streamApnPushes(@Auth final Server server, InputStream messages) {
+    return new MessageStreamingOutput<ApnMessage>(messages, ApnMessage.class) {
+      @Override
+      protected PushResult send(ApnMessage message) {
+        try {
+          return sendApn(server, message);
+        } catch (TransientPushFailureException e) {
+          return PushResult.transientFailure(e.getMessage());
+        } catch (RateLimitExceededException e) {
+          return PushResult.rateLimited(e.getMessage());
+        }
+      }
+    };
+  }
+
+  private ListenableFuture<PushResult> sendGcm(Server server, final GcmMessage message)
+      throws RateLimitExceededException
   {
-    apnSender.sendMessage(apnMessage);
+    Optional<String> rejection = preflightValidator.validate(message);
+
+    if (rejection.isPresent()) {
+      return Futures.immediateFuture(PushResult.failure(rejection.get()));
+    }
+
+    Permit permit = admissionController.acquireGcm(server, message);
+
+    if (duplicateFilter.isDuplicate(message)) {
+      permit.release();
+      return Futures.immediateFuture(PushResult.duplicate());
+    }
+
+    long entry = journal.append(message);
+
+    try {
+      ListenableFuture<PushResult> result = gcmSender.sendMessage(message);
+      journal.doneOnCompletion(entry, result);
+      permit.releaseOnCompletion(result);
+      forgetOnTransientFailure(result, new Runnable() {
+        @Override
+        public void run() {
+          duplicateFilter.forget(message);
+        }
+      });
+      return result;
+    } catch (RuntimeException e) {
+      permit.release();
+      journal.done(entry);
+      duplicateFilter.forget(message);
+      throw e;
+    }
+  }
+
+  private PushResult sendApn(Server server, ApnMessage message)
+      throws TransientPushFailureException, RateLimitExceededException
+  {
+    Optional<String> rejection = preflightValidator.validate(message);
+
+    if (rejection.isPresent()) {
+      return PushResult.failure(rejection.get());
+    }
+
+    Permit permit = admissionController.acquireApn(server, message);
+    long   entry  = PushJournal.NO_ENTRY;
+
+    try {
+      if (duplicateFilter.isDuplicate(message)) {
+        return PushResult.duplicate();
+      }
+
+      entry = journal.append(message);
+      journal.doneOnCompletion(entry, apnSender.sendMessage(message));
+      return PushResult.accepted();
+    } catch (TransientPushFailureException | RuntimeException e) {
+      journal.done(entry);
+      duplicateFilter.forget(message);
+      throw e;
+    } finally {
+      permit.release();
+    }
+  }
+
+  private PushResult getResultIfKnown(ListenableFuture<PushResult> result) {
+    if (result.isDone()) return Futures.getUnchecked(result);
+    else                 return PushResult.accepted();
+  }
+
+  private void forgetOnTransientFailure(ListenableFuture<PushResult> result, final Runnable forget) {
+    Futures.addCallback(result, new FutureCallback<PushResult>() {
+      @Override
+      public void onSuccess(PushResult result) {
+        if (PushResult.STATUS_TRANSIENT.equals(result.getStatus())) {
+          forget.run();
+        }
+      }
+
+      @Override
+      public void onFailure(Throwable throwable) {
+        forget.run();
+      }
+    });
+  }
+
+  private void resumeOnCompletion(ListenableFuture<PushResult> result, final AsyncResponse asyncResponse) {
+    asyncResponse.setTimeout(ASYNC_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+    Futures.addCallback(result, new FutureCallback<PushResult>() {
+      @Override
+      public void onSuccess(PushResult result) {
+        asyncResponse.resume(result);
+      }
+
+      @Override
+      public void onFailure(Throwable throwable) {
+        asyncResponse.resume(throwable);
+      }
+    });
+  }
+
+  /**
+   * Reads newline-delimited messages off the request body one at a time, handing
+   * each to a sender as soon as it has been parsed, and writes back one status
+   * line per message.  Neither the request nor the response is ever held in memory
+   * as a whole.
+   */
+  private abstract class MessageStreamingOutput<T> implements StreamingOutput {
+
+    private final InputStream messages;
+    private final Class<T>    type;
+
+    private MessageStreamingOutput(InputStream messages, Class<T> type) {
+      this.messages = messages;
+      this.type     = type;
+    }
+
+    protected abstract PushResult send(T message);
+
+    @Override
+    public void write(OutputStream output) throws IOException {
+      JsonParser    parser    = objectMapper.getFactory().createParser(messages);
+      JsonGenerator generator = objectMapper.getFactory().createGenerator(output);
+      int           line      = 0;
+
+      generator.setRootValueSeparator(null);
+
+      try {
+        JsonToken token;
+
+        while ((token = parser.nextToken()) != null) {
+          line++;
+
+          if (token != JsonToken.START_OBJECT) {
+            writeResult(generator, line, PushResult.failure("Expected JSON object"));
+            break;
+          }
+
+          T message;
+
+          try {
+            message = objectMapper.readValue(parser, type);
+          } catch (JsonProcessingException e) {
+            writeResult(generator, line, PushResult.failure(e.getOriginalMessage()));
+            break;
+          }
+
+          Set<ConstraintViolation<T>> violations = validator.validate(message);
+
+          if (!violations.isEmpty()) {
+            writeResult(generator, line, PushResult.failure(ConstraintViolations.format(violations).get(0)));
+          } else {
+            writeResult(generator, line, send(message));
+          }
+        }
+      } finally {
+        generator.close();
+        parser.close();
+      }
+    }
+
+    private void writeResult(JsonGenerator generator, int line, PushResult result) throws IOException {
+      generator.writeStartObject();
+      generator.writeNumberField("line", line);
+      generator.writeStringField("status", result.getStatus());
+
+      if (result.getReason() != null) {
+        generator.writeStringField("reason", result.getReason());
+      }
+
+      generator.writeEndObject();
+      generator.writeRaw('\n');
+      generator.flush();
+    }
   }
 
 }
@@ -0,0 +1,31 @@
+package org.whispersystems.pushserver.entities;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.annotations.VisibleForTesting;
+
+import javax.validation.Valid;
+import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Size;
+import java.util.List;
+
+public class ApnMessageList {
+
+  public static final int MAX_MESSAGES = 1000;
+
+  @JsonProperty
+  @NotNull
+  @Valid
+  @Size(max = MAX_MESSAGES)
+  private List<ApnMessage> messages;
+
+  public ApnMessageList() {}
+
+  @VisibleForTesting
+  public ApnMessageList(List<ApnMessage> messages) {
+    this.messages = messages;
+  }
+
+  public List<ApnMessage> getMessages() {
+    return messages;
+  }
+}
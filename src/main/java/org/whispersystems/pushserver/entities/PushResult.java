@@ -0,0 +1,86 @@
+package org.whispersystems.pushserver.entities;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class PushResult {
+
+  public static final String STATUS_ACCEPTED     = "accepted";
+  public static final String STATUS_SUCCESS      = "success";
+  public static final String STATUS_UNREGISTERED = "unregistered";
+  public static final String STATUS_CANONICAL    = "canonical";
+  public static final String STATUS_TRANSIENT    = "transient";
+  public static final String STATUS_FAILURE      = "failure";
+  public static final String STATUS_RATE_LIMITED = "rate_limited";
+  public static final String STATUS_DUPLICATE    = "duplicate";
+
+  @JsonProperty
+  private String status;
+
+  @JsonProperty
+  private String reason;
+
+  @JsonProperty
+  private String canonicalId;
+
+  public PushResult() {}
+
+  public PushResult(String status) {
+    this(status, null);
+  }
+
+  public PushResult(String status, String reason) {
+    this(status, reason, null);
+  }
+
+  public PushResult(String status, String reason, String canonicalId) {
+    this.status      = status;
+    this.reason      = reason;
+    this.canonicalId = canonicalId;
+  }
+
+  public static PushResult accepted() {
+    return new PushResult(STATUS_ACCEPTED);
+  }
+
+  public static PushResult success() {
+    return new PushResult(STATUS_SUCCESS);
+  }
+
+  public static PushResult unregistered() {
+    return new PushResult(STATUS_UNREGISTERED);
+  }
+
+  public static PushResult canonical(String canonicalId) {
+    return new PushResult(STATUS_CANONICAL, null, canonicalId);
+  }
+
+  public static PushResult transientFailure(String reason) {
+    return new PushResult(STATUS_TRANSIENT, reason);
+  }
+
+  public static PushResult failure(String reason) {
+    return new PushResult(STATUS_FAILURE, reason);
+  }
+
+  public static PushResult rateLimited(String reason) {
+    return new PushResult(STATUS_RATE_LIMITED, reason);
+  }
+
+  public static PushResult duplicate() {
+    return new PushResult(STATUS_DUPLICATE);
+  }
+
+  public String getStatus() {
+    return status;
+  }
+
+  public String getReason() {
+    return reason;
+  }
+
+  public String getCanonicalId() {
+    return canonicalId;
+  }
+}
@@ -0,0 +1,23 @@
+package org.whispersystems.pushserver.entities;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.List;
+
+public class PushResultList {
+
+  @JsonProperty
+  private List<PushResult> results;
+
+  public PushResultList() {}
+
+  public PushResultList(List<PushResult> results) {
+    this.results = results;
+  }
+
+  @VisibleForTesting
+  public List<PushResult> getResults() {
+    return results;
+  }
+}
@@ -0,0 +1,43 @@
+package org.whispersystems.pushserver.journal;
+
+import org.whispersystems.pushserver.entities.ApnMessage;
+import org.whispersystems.pushserver.entities.GcmMessage;
+import org.whispersystems.pushserver.senders.APNSender;
+import org.whispersystems.pushserver.senders.GCMSender;
+
+import io.dropwizard.lifecycle.Managed;
+
+/**
+ * Resends whatever the {@link PushJournal} recovered once the senders are up.
+ * Managed after the senders so that they have started before it runs.
+ */
+public class JournalReplay implements Managed {
+
+  private final PushJournal journal;
+  private final APNSender   apnSender;
+  private final GCMSender   gcmSender;
+
+  public JournalReplay(PushJournal journal, APNSender apnSender, GCMSender gcmSender) {
+    this.journal   = journal;
+    this.apnSender = apnSender;
+    this.gcmSender = gcmSender;
+  }
+
+  @Override
+  public void start() {
+    journal.replay(new PushJournal.Handler() {
+      @Override
+      public void replay(long entry, ApnMessage message) {
+        journal.doneOnCompletion(entry, apnSender.sendMessageAsync(message));
+      }
+
+      @Override
+      public void replay(long entry, GcmMessage message) {
+        journal.doneOnCompletion(entry, gcmSender.sendMessage(message));
+      }
+    });
+  }
+
+  @Override
+  public void stop() {}
+}
@@ -0,0 +1,515 @@
+package org.whispersystems.pushserver.journal;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.codahale.metrics.Timer;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.whispersystems.pushserver.config.JournalConfiguration;
+import org.whispersystems.pushserver.entities.ApnMessage;
+import org.whispersystems.pushserver.entities.GcmMessage;
+import org.whispersystems.pushserver.util.Constants;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import io.dropwizard.lifecycle.Managed;
+
+/**
+ * An append-only journal of accepted pushes, kept in memory-mapped segment
+ * files on local disk.
+ *
+ * A push is appended before it is handed to a sender and marked done once
+ * the provider has answered, so anything still outstanding when the process
+ * dies is replayed on the next start.  Appends only copy into the mapping,
+ * which the kernel keeps even if the JVM is killed; the mapped pages are
+ * forced to disk together every syncIntervalMillis.
+ *
+ * Each record is [length][crc32][type][entry id][payload], with the length
+ * written last so a torn write reads back as the end of the segment.  Done
+ * markers go to the active segment, and segments are deleted oldest first
+ * once every push written to them is done, so a marker is never deleted
+ * while the push it completes is still on disk.  A deleted segment is
+ * unmapped by the sync thread after its next pass, so the file's disk space
+ * and address space go back right away instead of whenever the GC collects
+ * the mapping.
+ *
+ * When disabled, or if an append fails, pushes are sent without a journal
+ * entry rather than being refused.
+ */
+public class PushJournal implements Managed {
+
+  public static final long NO_ENTRY = -1;
+
+  public interface Handler {
+    public void replay(long entry, ApnMessage message);
+    public void replay(long entry, GcmMessage message);
+  }
+
+  private static final byte APN  = 1;
+  private static final byte GCM  = 2;
+  private static final byte DONE = 3;
+
+  private static final int     HEADER_SIZE  = 4 + 4;
+  private static final int     BODY_HEADER  = 1 + 8;
+  private static final byte[]  EMPTY        = new byte[0];
+  private static final Pattern SEGMENT_NAME = Pattern.compile("journal-(\\d+)\\.log");
+
+  private final Logger logger = LoggerFactory.getLogger(PushJournal.class);
+
+  private final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
+  private final Meter          appended       = metricRegistry.meter(name(PushJournal.class, "appended"));
+  private final Meter          completed      = metricRegistry.meter(name(PushJournal.class, "completed"));
+  private final Meter          appendFailed   = metricRegistry.meter(name(PushJournal.class, "append_failed"));
+  private final Meter          replayed       = metricRegistry.meter(name(PushJournal.class, "replayed"));
+  private final Timer          syncTimer      = metricRegistry.timer(name(PushJournal.class, "sync"));
+
+  private final Object                 lock      = new Object();
+  private final TreeMap<Long, Segment> segments  = new TreeMap<>();
+  private final List<Segment>          unsynced  = new LinkedList<>();
+  private final List<Segment>          retired   = new LinkedList<>();
+  private final Map<Long, Record>      recovered = new LinkedHashMap<>();
+
+  private final ObjectMapper objectMapper;
+  private final boolean      enabled;
+  private final File         directory;
+  private final int          segmentSize;
+  private final int          syncIntervalMillis;
+
+  private Segment                  active;
+  private ScheduledExecutorService syncer;
+
+  public PushJournal(JournalConfiguration configuration, ObjectMapper objectMapper) {
+    this.objectMapper       = objectMapper;
+    this.enabled            = configuration.isEnabled();
+    this.directory          = new File(configuration.getDirectory());
+    this.segmentSize        = configuration.getSegmentSize();
+    this.syncIntervalMillis = configuration.getSyncIntervalMillis();
+
+    register(name(PushJournal.class, "outstanding"), new Gauge<Integer>() {
+      @Override
+      public Integer getValue() {
+        return getOutstanding();
+      }
+    });
+
+    register(name(PushJournal.class, "segments"), new Gauge<Integer>() {
+      @Override
+      public Integer getValue() {
+        synchronized (lock) {
+          return segments.size();
+        }
+      }
+    });
+  }
+
+  public long append(ApnMessage message) {
+    return append(APN, message);
+  }
+
+  public long append(GcmMessage message) {
+    return append(GCM, message);
+  }
+
+  public void done(long entry) {
+    if (entry == NO_ENTRY) return;
+
+    synchronized (lock) {
+      try {
+        reserve(0).write(DONE, entry, EMPTY);
+      } catch (IOException e) {
+        logger.warn("Journal done marker failed", e);
+      }
+
+      Segment owner = segments.get(entry >>> 32);
+
+      if (owner != null) {
+        owner.outstanding--;
+      }
+
+      completed.mark();
+      reclaim();
+    }
+  }
+
+  public void doneOnCompletion(final long entry, ListenableFuture<?> result) {
+    if (entry == NO_ENTRY) return;
+
+    result.addListener(new Runnable() {
+      @Override
+      public void run() {
+        done(entry);
+      }
+    }, MoreExecutors.directExecutor());
+  }
+
+  /**
+   * Hands every push that was still outstanding at the last shutdown to the
+   * handler.  The handler is responsible for marking each entry done.
+   */
+  public void replay(Handler handler) {
+    Map<Long, Record> pending;
+
+    synchronized (lock) {
+      pending = new LinkedHashMap<>(recovered);
+      recovered.clear();
+    }
+
+    for (Map.Entry<Long, Record> entry : pending.entrySet()) {
+      try {
+        if (entry.getValue().type == APN) {
+          handler.replay(entry.getKey(), objectMapper.readValue(entry.getValue().payload, ApnMessage.class));
+        } else {
+          handler.replay(entry.getKey(), objectMapper.readValue(entry.getValue().payload, GcmMessage.class));
+        }
+
+        replayed.mark();
+      } catch (IOException | RuntimeException e) {
+        logger.warn("Dropping unreadable journal entry " + entry.getKey(), e);
+        done(entry.getKey());
+      }
+    }
+
+    if (!pending.isEmpty()) {
+      logger.info("Replayed " + pending.size() + " journaled pushes");
+    }
+  }
+
+  public int getOutstanding() {
+    synchronized (lock) {
+      int outstanding = 0;
+
+      for (Segment segment : segments.values()) {
+        outstanding += segment.outstanding;
+      }
+
+      return outstanding;
+    }
+  }
+
+  @Override
+  public void start() throws IOException {
+    if (!enabled) return;
+
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Unable to create journal directory " + directory);
+    }
+
+    synchronized (lock) {
+      recover();
+    }
+
+    syncer = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("journal-sync").build());
+    syncer.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        sync();
+      }
+    }, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public void stop() {
+    if (!enabled) return;
+
+    syncer.shutdown();
+
+    try {
+      syncer.awaitTermination(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    sync();
+  }
+
+  private long append(byte type, Object message) {
+    if (!enabled) return NO_ENTRY;
+
+    try {
+      byte[] payload = objectMapper.writeValueAsBytes(message);
+
+      synchronized (lock) {
+        Segment segment = reserve(payload.length);
+        long    entry   = segment.nextEntry();
+
+        segment.write(type, entry, payload);
+        segment.outstanding++;
+        appended.mark();
+
+        return entry;
+      }
+    } catch (IOException e) {
+      logger.warn("Journal append failed", e);
+      appendFailed.mark();
+      return NO_ENTRY;
+    }
+  }
+
+  private Segment reserve(int payloadLength) throws IOException {
+    int size = HEADER_SIZE + BODY_HEADER + payloadLength;
+
+    if (size > segmentSize) {
+      throw new IOException("Journal record too large: " + size);
+    }
+
+    if (active.remaining() < size) {
+      unsynced.add(active);
+
+      active = Segment.create(directory, active.sequence + 1, segmentSize);
+      segments.put(active.sequence, active);
+
+      reclaim();
+    }
+
+    return active;
+  }
+
+  private void reclaim() {
+    while (!segments.isEmpty()) {
+      Segment oldest = segments.firstEntry().getValue();
+
+      if (oldest == active || oldest.outstanding > 0) {
+        return;
+      }
+
+      segments.remove(oldest.sequence);
+      unsynced.remove(oldest);
+      retired.add(oldest);
+
+      if (!oldest.file.delete()) {
+        logger.warn("Unable to delete journal segment " + oldest.file);
+      }
+    }
+  }
+
+  /**
+   * Forces dirty segments to disk, then unmaps the ones reclaimed since the
+   * last pass.  Only this runs outside the lock on a segment's mapping, so a
+   * retired segment can't be unmapped while it is being forced.
+   */
+  private void sync() {
+    List<Segment> dirty;
+    List<Segment> unmapped;
+
+    synchronized (lock) {
+      dirty = new ArrayList<>(unsynced);
+      dirty.add(active);
+      unsynced.clear();
+    }
+
+    try (Timer.Context timer = syncTimer.time()) {
+      for (Segment segment : dirty) {
+        segment.buffer.force();
+      }
+    }
+
+    synchronized (lock) {
+      unmapped = new ArrayList<>(retired);
+      retired.clear();
+    }
+
+    for (Segment segment : unmapped) {
+      if (!unmap(segment.buffer)) {
+        logger.warn("Unable to unmap journal segment " + segment.file + ", leaving it to the GC");
+      }
+    }
+  }
+
+  /**
+   * Releases a mapping without waiting for the GC.  There is no public API
+   * for this, so it goes through Unsafe.invokeCleaner on Java 9 and later,
+   * and through the buffer's cleaner before that.  The buffer must not be
+   * touched again afterwards.
+   */
+  private static boolean unmap(MappedByteBuffer buffer) {
+    try {
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      Method   invoke      = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+      Field    theUnsafe   = unsafeClass.getDeclaredField("theUnsafe");
+
+      theUnsafe.setAccessible(true);
+      invoke.invoke(theUnsafe.get(null), buffer);
+      return true;
+    } catch (NoSuchMethodException e) {
+      // Java 8 and earlier
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      return false;
+    }
+
+    try {
+      Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+      cleanerMethod.setAccessible(true);
+
+      Object cleaner = cleanerMethod.invoke(buffer);
+
+      if (cleaner == null) {
+        return false;
+      }
+
+      cleaner.getClass().getMethod("clean").invoke(cleaner);
+      return true;
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      return false;
+    }
+  }
+
+  private void recover() throws IOException {
+    File[] files = directory.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return SEGMENT_NAME.matcher(name).matches();
+      }
+    });
+
+    long last = 0;
+
+    for (File file : files == null ? new File[0] : files) {
+      Matcher matcher = SEGMENT_NAME.matcher(file.getName());
+      matcher.matches();
+
+      Segment segment = Segment.open(file, Long.parseLong(matcher.group(1)));
+      segments.put(segment.sequence, segment);
+      last = Math.max(last, segment.sequence);
+    }
+
+    for (Segment segment : segments.values()) {
+      segment.scan(recovered);
+    }
+
+    for (Long entry : recovered.keySet()) {
+      segments.get(entry >>> 32).outstanding++;
+    }
+
+    active = Segment.create(directory, last + 1, segmentSize);
+    segments.put(active.sequence, active);
+
+    reclaim();
+  }
+
+  private void register(String name, Gauge<?> gauge) {
+    metricRegistry.remove(name);
+    metricRegistry.register(name, gauge);
+  }
+
+  private static class Record {
+    private final byte   type;
+    private final byte[] payload;
+
+    private Record(byte type, byte[] payload) {
+      this.type    = type;
+      this.payload = payload;
+    }
+  }
+
+  private static class Segment {
+
+    private final long             sequence;
+    private final File             file;
+    private final MappedByteBuffer buffer;
+
+    private int outstanding;
+    private int count;
+
+    private Segment(long sequence, File file, MappedByteBuffer buffer) {
+      this.sequence = sequence;
+      this.file     = file;
+      this.buffer   = buffer;
+    }
+
+    public static Segment create(File directory, long sequence, int size) throws IOException {
+      File file = new File(directory, "journal-" + sequence + ".log");
+
+      try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+        raf.setLength(size);
+        return new Segment(sequence, file, raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size));
+      }
+    }
+
+    public static Segment open(File file, long sequence) throws IOException {
+      try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+        return new Segment(sequence, file, raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()));
+      }
+    }
+
+    public long nextEntry() {
+      return (sequence << 32) | (count++ & 0xFFFFFFFFL);
+    }
+
+    public int remaining() {
+      return buffer.remaining();
+    }
+
+    public void write(byte type, long entry, byte[] payload) {
+      byte[] body  = ByteBuffer.allocate(BODY_HEADER + payload.length).put(type).putLong(entry).put(payload).array();
+      CRC32  crc   = new CRC32();
+      int    start = buffer.position();
+
+      crc.update(body);
+
+      buffer.position(start + HEADER_SIZE);
+      buffer.put(body);
+      buffer.putInt(start + 4, (int) crc.getValue());
+      buffer.putInt(start, body.length);
+    }
+
+    public void scan(Map<Long, Record> recovered) {
+      ByteBuffer reader = buffer.duplicate();
+
+      while (reader.remaining() >= HEADER_SIZE) {
+        int length   = reader.getInt();
+        int checksum = reader.getInt();
+
+        if (length < BODY_HEADER || length > reader.remaining()) {
+          return;
+        }
+
+        byte[] body = new byte[length];
+        reader.get(body);
+
+        CRC32 crc = new CRC32();
+        crc.update(body);
+
+        if ((int) crc.getValue() != checksum) {
+          return;
+        }
+
+        ByteBuffer parsed  = ByteBuffer.wrap(body);
+        byte       type    = parsed.get();
+        long       entry   = parsed.getLong();
+        byte[]     payload = new byte[parsed.remaining()];
+
+        parsed.get(payload);
+
+        if (type == DONE) recovered.remove(entry);
+        else              recovered.put(entry, new Record(type, payload));
+      }
+    }
+  }
+}
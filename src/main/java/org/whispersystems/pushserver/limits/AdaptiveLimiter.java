@@ -0,0 +1,156 @@
+package org.whispersystems.pushserver.limits;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import org.whispersystems.pushserver.config.AdaptiveLimitConfiguration;
+import org.whispersystems.pushserver.util.Constants;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * An in-flight limit that tunes itself from observed round trips (AIMD).
+ *
+ * Every healthy sample grows the limit by one permit per limit's worth of
+ * samples, while the limit is actually being used.  A dropped request, or a
+ * smoothed RTT more than rttTolerance times the long-run baseline RTT, shrinks
+ * the limit by backoffRatio, but at most once per round trip: only a sample
+ * sent after the last decrease took effect can cause another, so a burst of
+ * slow or dropped responses to requests already in flight costs one backoff.
+ * Comparing smoothed against baseline RTT, rather than each sample against
+ * the fastest one seen, keeps the normal long tail of provider latency from
+ * reading as congestion, and lets a lasting change in latency slowly become
+ * the new baseline.
+ */
+public class AdaptiveLimiter {
+
+  private static final double RTT_SMOOTHING      = 0.1;
+  private static final double BASELINE_SMOOTHING = 0.01;
+
+  private final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
+
+  private final AtomicInteger inFlight = new AtomicInteger(0);
+  private final Meter         drops;
+  private final int           minLimit;
+  private final int           maxLimit;
+  private final double        rttTolerance;
+  private final double        backoffRatio;
+
+  private volatile double limit;
+  private volatile double smoothedRttNanos;
+  private volatile double baselineRttNanos;
+
+  private boolean decreased;
+  private long    lastDecreaseNanos;
+
+  public AdaptiveLimiter(String name, AdaptiveLimitConfiguration configuration) {
+    this.minLimit     = configuration.getMinLimit();
+    this.maxLimit     = Math.max(configuration.getMinLimit(), configuration.getMaxLimit());
+    this.rttTolerance = configuration.getRttTolerance();
+    this.backoffRatio = configuration.getBackoffRatio();
+    this.limit        = Math.max(minLimit, Math.min(maxLimit, configuration.getInitialLimit()));
+    this.drops        = metricRegistry.meter(name(AdaptiveLimiter.class, name, "drops"));
+
+    register(name(AdaptiveLimiter.class, name, "limit"), new Gauge<Integer>() {
+      @Override
+      public Integer getValue() {
+        return getLimit();
+      }
+    });
+
+    register(name(AdaptiveLimiter.class, name, "in_flight"), new Gauge<Integer>() {
+      @Override
+      public Integer getValue() {
+        return inFlight.get();
+      }
+    });
+
+    register(name(AdaptiveLimiter.class, name, "rtt"), new Gauge<Double>() {
+      @Override
+      public Double getValue() {
+        return smoothedRttNanos / (double)TimeUnit.MILLISECONDS.toNanos(1);
+      }
+    });
+
+    register(name(AdaptiveLimiter.class, name, "baseline_rtt"), new Gauge<Double>() {
+      @Override
+      public Double getValue() {
+        return baselineRttNanos / (double)TimeUnit.MILLISECONDS.toNanos(1);
+      }
+    });
+  }
+
+  public boolean tryAcquire() {
+    while (true) {
+      int current = inFlight.get();
+
+      if (current >= getLimit()) {
+        return false;
+      }
+
+      if (inFlight.compareAndSet(current, current + 1)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Returns a permit taken with {@link #tryAcquire()} and feeds its outcome
+   * back into the limit.
+   *
+   * @param startedNanos when the request was sent, on the same clock for
+   *                     every sample (such as System.nanoTime()).
+   * @param rttNanos     how long it took to complete.
+   */
+  public synchronized void release(long startedNanos, long rttNanos, boolean dropped) {
+    int outstanding = inFlight.getAndDecrement();
+
+    if (dropped) {
+      drops.mark();
+    } else if (smoothedRttNanos == 0) {
+      smoothedRttNanos = rttNanos;
+      baselineRttNanos = rttNanos;
+    } else {
+      smoothedRttNanos += RTT_SMOOTHING * (rttNanos - smoothedRttNanos);
+      baselineRttNanos += BASELINE_SMOOTHING * (rttNanos - baselineRttNanos);
+    }
+
+    if (dropped || smoothedRttNanos > baselineRttNanos * rttTolerance) {
+      if (!decreased || startedNanos - lastDecreaseNanos >= 0) {
+        limit             = Math.max(minLimit, limit * backoffRatio);
+        lastDecreaseNanos = startedNanos + rttNanos;
+        decreased         = true;
+      }
+    } else if (outstanding * 2 >= limit) {
+      limit = Math.min(maxLimit, limit + 1.0 / limit);
+    }
+  }
+
+  /**
+   * Returns a permit that was never used, without counting it as a sample.
+   */
+  public void cancel() {
+    inFlight.decrementAndGet();
+  }
+
+  public int getLimit() {
+    return (int)limit;
+  }
+
+  public int getInFlight() {
+    return inFlight.get();
+  }
+
+  public long getBaselineRttNanos() {
+    return (long)baselineRttNanos;
+  }
+
+  private void register(String name, Gauge<?> gauge) {
+    metricRegistry.remove(name);
+    metricRegistry.register(name, gauge);
+  }
+}
@@ -0,0 +1,174 @@
+package org.whispersystems.pushserver.limits;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.whispersystems.pushserver.auth.Server;
+import org.whispersystems.pushserver.config.AdmissionConfiguration;
+import org.whispersystems.pushserver.config.LanesConfiguration;
+import org.whispersystems.pushserver.entities.ApnMessage;
+import org.whispersystems.pushserver.entities.GcmMessage;
+import org.whispersystems.pushserver.senders.PushLane;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class AdmissionController {
+
+  private final Map<String, InFlightLimiter> serverLimiters = new HashMap<>();
+  private final Map<String, TokenBucket>     serverBuckets  = new HashMap<>();
+
+  private final Map<String, InFlightLimiter> serverCallLimiters = new HashMap<>();
+  private final Map<String, TokenBucket>     serverCallBuckets  = new HashMap<>();
+
+  private final Map<PushLane, InFlightLimiter> apnLaneLimiters = new EnumMap<>(PushLane.class);
+  private final Map<PushLane, InFlightLimiter> gcmLaneLimiters = new EnumMap<>(PushLane.class);
+
+  private final InFlightLimiter apnLimiter;
+  private final InFlightLimiter gcmLimiter;
+  private final int             retryAfterSeconds;
+
+  public AdmissionController(AdmissionConfiguration configuration, LanesConfiguration lanes, List<Server> servers) {
+    for (Server server : servers) {
+      serverLimiters.put(server.getName(), new InFlightLimiter("server." + server.getName(),
+                                                               configuration.getMaxInFlightPerServer()));
+      serverBuckets.put(server.getName(), new TokenBucket("server." + server.getName(),
+                                                          server.getRateLimit().getBucketSize(),
+                                                          server.getRateLimit().getPermitsPerSecond()));
+      serverCallLimiters.put(server.getName(), new InFlightLimiter("server." + server.getName() + ".call",
+                                                                   configuration.getMaxCallsInFlightPerServer()));
+      serverCallBuckets.put(server.getName(), new TokenBucket("server." + server.getName() + ".call",
+                                                              server.getRateLimit().getBucketSize(),
+                                                              server.getRateLimit().getPermitsPerSecond()));
+    }
+
+    for (PushLane lane : PushLane.values()) {
+      int maxInFlight = lanes.getLane(lane).getMaxInFlight();
+      apnLaneLimiters.put(lane, new InFlightLimiter("apn." + lane.getName(), maxInFlight));
+      gcmLaneLimiters.put(lane, new InFlightLimiter("gcm." + lane.getName(), maxInFlight));
+    }
+
+    this.apnLimiter        = new InFlightLimiter("apn", configuration.getMaxInFlightApn());
+    this.gcmLimiter        = new InFlightLimiter("gcm", configuration.getMaxInFlightGcm());
+    this.retryAfterSeconds = configuration.getRetryAfterSeconds();
+  }
+
+  public Permit acquireApn(Server server, ApnMessage message) throws RateLimitExceededException {
+    PushLane lane = PushLane.of(message);
+    return acquire(server, lane, apnLaneLimiters.get(lane), apnLimiter);
+  }
+
+  public Permit acquireGcm(Server server, GcmMessage message) throws RateLimitExceededException {
+    PushLane lane = PushLane.of(message);
+    return acquire(server, lane, gcmLaneLimiters.get(lane), gcmLimiter);
+  }
+
+  private Permit acquire(Server server, PushLane lane, InFlightLimiter laneLimiter, InFlightLimiter providerLimiter)
+      throws RateLimitExceededException
+  {
+    if (lane == PushLane.CALL) {
+      return acquireCall(server, laneLimiter, providerLimiter);
+    }
+
+    InFlightLimiter serverLimiter = serverLimiters.get(server.getName());
+    TokenBucket     serverBucket  = serverBuckets.get(server.getName());
+
+    if (serverLimiter == null || serverBucket == null) {
+      throw new AssertionError("No limiter for server: " + server.getName());
+    }
+
+    checkRate(server, serverBucket);
+
+    if (!serverLimiter.tryAcquire()) {
+      throw new RateLimitExceededException("Too many pushes in flight for " + server.getName(), retryAfterSeconds);
+    }
+
+    if (!laneLimiter.tryAcquire()) {
+      serverLimiter.release();
+      throw new RateLimitExceededException("Too many " + lane.getName() + " pushes in flight", retryAfterSeconds);
+    }
+
+    if (!providerLimiter.tryAcquire()) {
+      laneLimiter.release();
+      serverLimiter.release();
+      throw new RateLimitExceededException("Too many pushes in flight", retryAfterSeconds);
+    }
+
+    return new Permit(serverLimiter, laneLimiter, providerLimiter);
+  }
+
+  /**
+   * Calls draw from their own rate limit and in-flight budget, so a server
+   * that exhausts its allowance with bulk traffic can still ring.  The call
+   * bucket has the same size and rate as the server's bulk bucket, so calls
+   * can't be used to get around it, and each server is capped at its own
+   * share of the call lane, so one flooding server can't take the lane from
+   * the others.  Calls still count against the provider's in-flight cap.
+   */
+  private Permit acquireCall(Server server, InFlightLimiter laneLimiter, InFlightLimiter providerLimiter)
+      throws RateLimitExceededException
+  {
+    InFlightLimiter serverCallLimiter = serverCallLimiters.get(server.getName());
+    TokenBucket     serverCallBucket  = serverCallBuckets.get(server.getName());
+
+    if (serverCallLimiter == null || serverCallBucket == null) {
+      throw new AssertionError("No call limiter for server: " + server.getName());
+    }
+
+    checkRate(server, serverCallBucket);
+
+    if (!serverCallLimiter.tryAcquire()) {
+      throw new RateLimitExceededException("Too many call pushes in flight for " + server.getName(), retryAfterSeconds);
+    }
+
+    if (!laneLimiter.tryAcquire()) {
+      serverCallLimiter.release();
+      throw new RateLimitExceededException("Too many call pushes in flight", retryAfterSeconds);
+    }
+
+    if (!providerLimiter.tryAcquire()) {
+      laneLimiter.release();
+      serverCallLimiter.release();
+      throw new RateLimitExceededException("Too many pushes in flight", retryAfterSeconds);
+    }
+
+    return new Permit(serverCallLimiter, laneLimiter, providerLimiter);
+  }
+
+  private void checkRate(Server server, TokenBucket bucket) throws RateLimitExceededException {
+    if (!bucket.tryAcquire()) {
+      long retryAfter = TimeUnit.NANOSECONDS.toSeconds(bucket.getNanosUntilAvailable()) + 1;
+      throw new RateLimitExceededException("Rate limit exceeded for " + server.getName(), (int)retryAfter);
+    }
+  }
+
+  public static class Permit {
+
+    private final AtomicBoolean     released = new AtomicBoolean(false);
+    private final InFlightLimiter[] limiters;
+
+    private Permit(InFlightLimiter... limiters) {
+      this.limiters = limiters;
+    }
+
+    public void release() {
+      if (released.compareAndSet(false, true)) {
+        for (InFlightLimiter limiter : limiters) {
+          limiter.release();
+        }
+      }
+    }
+
+    public void releaseOnCompletion(ListenableFuture<?> future) {
+      future.addListener(new Runnable() {
+        @Override
+        public void run() {
+          release();
+        }
+      }, MoreExecutors.directExecutor());
+    }
+  }
+}
@@ -0,0 +1,61 @@
+package org.whispersystems.pushserver.limits;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import org.whispersystems.pushserver.util.Constants;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Bounds the number of pushes that may be outstanding at once for a single
+ * server or provider.  A permit is taken when a push is accepted and returned
+ * once the push has been handed off or has resolved.
+ */
+public class InFlightLimiter {
+
+  private final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
+
+  private final AtomicInteger inFlight = new AtomicInteger(0);
+  private final Meter         rejected;
+  private final int           maxInFlight;
+
+  public InFlightLimiter(String name, int maxInFlight) {
+    this.maxInFlight = maxInFlight;
+    this.rejected    = metricRegistry.meter(name(InFlightLimiter.class, name, "rejected"));
+
+    metricRegistry.remove(name(InFlightLimiter.class, name, "in_flight"));
+    metricRegistry.register(name(InFlightLimiter.class, name, "in_flight"), new Gauge<Integer>() {
+      @Override
+      public Integer getValue() {
+        return inFlight.get();
+      }
+    });
+  }
+
+  public boolean tryAcquire() {
+    while (true) {
+      int current = inFlight.get();
+
+      if (current >= maxInFlight) {
+        rejected.mark();
+        return false;
+      }
+
+      if (inFlight.compareAndSet(current, current + 1)) {
+        return true;
+      }
+    }
+  }
+
+  public void release() {
+    inFlight.decrementAndGet();
+  }
+
+  public int getInFlight() {
+    return inFlight.get();
+  }
+}
@@ -0,0 +1,15 @@
+package org.whispersystems.pushserver.limits;
+
+public class RateLimitExceededException extends Exception {
+
+  private final int retryAfterSeconds;
+
+  public RateLimitExceededException(String message, int retryAfterSeconds) {
+    super(message);
+    this.retryAfterSeconds = retryAfterSeconds;
+  }
+
+  public int getRetryAfterSeconds() {
+    return retryAfterSeconds;
+  }
+}
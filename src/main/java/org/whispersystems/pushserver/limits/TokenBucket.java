@@ -0,0 +1,80 @@
+package org.whispersystems.pushserver.limits;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.google.common.base.Ticker;
+import org.whispersystems.pushserver.util.Constants;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * A lock-free token bucket.
+ *
+ * Rather than storing a token count and a last-refill timestamp, which would
+ * need to be updated together, the bucket is tracked as the single instant at
+ * which it will next be full.  Taking a token pushes that instant forward by one
+ * refill interval, and refilling is implicit in the passage of time, so every
+ * acquisition is a single compare-and-set on one AtomicLong.
+ */
+public class TokenBucket {
+
+  private final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
+
+  private final AtomicLong fullAt;
+  private final Ticker     ticker;
+  private final long       intervalNanos;
+  private final long       capacityNanos;
+
+  public TokenBucket(String name, int bucketSize, double permitsPerSecond) {
+    this(name, bucketSize, permitsPerSecond, Ticker.systemTicker());
+  }
+
+  public TokenBucket(String name, int bucketSize, double permitsPerSecond, Ticker ticker) {
+    this.ticker        = ticker;
+    this.intervalNanos = Math.max(1, (long)(TimeUnit.SECONDS.toNanos(1) / permitsPerSecond));
+    this.capacityNanos = intervalNanos * bucketSize;
+    this.fullAt        = new AtomicLong(ticker.read());
+
+    metricRegistry.remove(name(TokenBucket.class, name, "tokens"));
+    metricRegistry.register(name(TokenBucket.class, name, "tokens"), new Gauge<Long>() {
+      @Override
+      public Long getValue() {
+        return getAvailableTokens();
+      }
+    });
+  }
+
+  public boolean tryAcquire() {
+    while (true) {
+      long now     = ticker.read();
+      long current = fullAt.get();
+      long updated = Math.max(current, now) + intervalNanos;
+
+      if (updated - now > capacityNanos) {
+        return false;
+      }
+
+      if (fullAt.compareAndSet(current, updated)) {
+        return true;
+      }
+    }
+  }
+
+  public long getAvailableTokens() {
+    long now  = ticker.read();
+    long debt = Math.max(0, fullAt.get() - now);
+
+    return (capacityNanos - debt) / intervalNanos;
+  }
+
+  public long getNanosUntilAvailable() {
+    long now  = ticker.read();
+    long wait = Math.max(fullAt.get(), now) + intervalNanos - now - capacityNanos;
+
+    return Math.max(0, wait);
+  }
+}
@@ -0,0 +1,18 @@
+package org.whispersystems.pushserver.mappers;
+
+import org.whispersystems.pushserver.limits.RateLimitExceededException;
+
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.ExceptionMapper;
+import javax.ws.rs.ext.Provider;
+
+@Provider
+public class RateLimitExceededExceptionMapper implements ExceptionMapper<RateLimitExceededException> {
+  @Override
+  public Response toResponse(RateLimitExceededException e) {
+    return Response.status(429)
+                   .header(HttpHeaders.RETRY_AFTER, e.getRetryAfterSeconds())
+                   .build();
+  }
+}
@@ -0,0 +1,26 @@
+package org.whispersystems.pushserver.providers;
+
+import com.codahale.metrics.health.HealthCheck;
+import org.whispersystems.pushserver.senders.SenderLifecycle;
+
+import java.util.Map;
+
+public class SenderReadinessHealthCheck extends HealthCheck {
+
+  private final SenderLifecycle senders;
+
+  public SenderReadinessHealthCheck(SenderLifecycle senders) {
+    this.senders = senders;
+  }
+
+  @Override
+  protected Result check() throws Exception {
+    Map<String, String> notReady = senders.getNotReady();
+
+    if (notReady.isEmpty()) {
+      return Result.healthy();
+    }
+
+    return Result.unhealthy("Not ready: " + notReady);
+  }
+}
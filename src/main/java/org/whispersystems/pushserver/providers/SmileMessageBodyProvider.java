@@ -0,0 +1,44 @@
+package org.whispersystems.pushserver.providers;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+import javax.validation.Validator;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.ext.Provider;
+
+import io.dropwizard.jackson.Jackson;
+import io.dropwizard.jersey.jackson.JacksonMessageBodyProvider;
+
+/**
+ * Reads and writes entities as Jackson Smile, a binary encoding of the JSON
+ * data model.  Requests are validated exactly as JSON requests are.  Binary
+ * values sent for string fields, such as a raw message payload, arrive as the
+ * base64 string that the JSON encoding would have carried.
+ */
+@Provider
+@Consumes(SmileMessageBodyProvider.APPLICATION_SMILE)
+@Produces(SmileMessageBodyProvider.APPLICATION_SMILE)
+public class SmileMessageBodyProvider extends JacksonMessageBodyProvider {
+
+  public static final String    APPLICATION_SMILE      = "application/x-jackson-smile";
+  public static final MediaType APPLICATION_SMILE_TYPE = MediaType.valueOf(APPLICATION_SMILE);
+
+  public SmileMessageBodyProvider(Validator validator) {
+    this(Jackson.newObjectMapper(new SmileFactory()), validator);
+  }
+
+  public SmileMessageBodyProvider(ObjectMapper mapper, Validator validator) {
+    super(mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false), validator);
+  }
+
+  @Override
+  protected boolean hasMatchingMediaType(MediaType mediaType) {
+    return mediaType != null                                         &&
+           APPLICATION_SMILE_TYPE.getType().equals(mediaType.getType()) &&
+           APPLICATION_SMILE_TYPE.getSubtype().equals(mediaType.getSubtype());
+  }
+}
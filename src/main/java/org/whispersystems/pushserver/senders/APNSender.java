@@ -20,14 +20,22 @@ import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.SharedMetricRegistries;
 import com.google.common.base.Optional;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import com.notnoop.apns.APNS;
+import com.notnoop.apns.ApnsDelegate;
+import com.notnoop.apns.ApnsNotification;
 import com.notnoop.apns.ApnsService;
+import com.notnoop.apns.DeliveryError;
+import com.notnoop.apns.EnhancedApnsNotification;
 import com.notnoop.exceptions.NetworkIOException;
 import org.bouncycastle.openssl.PEMReader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.whispersystems.pushserver.config.ApnConfiguration;
 import org.whispersystems.pushserver.entities.ApnMessage;
-import org.whispersystems.pushserver.entities.UnregisteredEvent;
+import org.whispersystems.pushserver.entities.PushResult;
 import org.whispersystems.pushserver.util.Constants;
 
 import java.io.ByteArrayInputStream;
@@ -41,18 +49,22 @@ import java.security.NoSuchAlgorithmException;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import static com.codahale.metrics.MetricRegistry.name;
 import io.dropwizard.lifecycle.Managed;
-import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 
-public class APNSender implements Managed {
+public class APNSender implements Managed, Warmable {
 
   private final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
 
@@ -63,45 +75,150 @@ public class APNSender implements Managed {
 
   private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
 
-  private final JedisPool         jedisPool;
-  private final UnregisteredQueue unregisteredQueue;
-  private final String            pushCertificate;
-  private final String            pushKey;
-  private final String            voipCertificate;
-  private final String            voipKey;
-  private final boolean           feedbackEnabled;
+  private final ApnMappingWriter    mappingWriter;
+  private final ApnFeedbackResolver feedbackResolver;
+  private final LaneExecutor        laneExecutor;
+  private final UnregisteredQueue   unregisteredQueue;
+  private final String              pushCertificate;
+  private final String              pushKey;
+  private final String              voipCertificate;
+  private final String              voipKey;
+  private final boolean             feedbackEnabled;
+  private final boolean             http2;
+  private final String              http2Endpoint;
+  private final Optional<String>    pushTopic;
+  private final Optional<String>    voipTopic;
+  private final int                 maxConcurrentStreams;
+  private final int                 connections;
+
+  private final Optional<PushCoalescer<ApnMessage>> coalescer;
+
+  private final Map<Integer, SettableFuture<PushResult>> legacyPending = new ConcurrentHashMap<>();
 
   private ApnsService pushApnService;
   private ApnsService voipApnService;
 
-  public APNSender(JedisPool jedisPool, UnregisteredQueue unregisteredQueue,
-                   String pushCertificate, String pushKey,
-                   String voipCertificate, String voipKey,
-                   boolean feedbackEnabled)
+  private ApnsConnectionPool pushHttp2Pool;
+  private ApnsConnectionPool voipHttp2Pool;
+
+  public APNSender(JedisPool jedisPool, LaneExecutor laneExecutor, UnregisteredQueue unregisteredQueue,
+                   ApnConfiguration configuration, long coalesceWindowMillis)
   {
-    this.jedisPool         = jedisPool;
-    this.unregisteredQueue = unregisteredQueue;
-    this.pushCertificate   = pushCertificate;
-    this.pushKey           = pushKey;
-    this.voipCertificate   = voipCertificate;
-    this.voipKey           = voipKey;
-    this.feedbackEnabled   = feedbackEnabled;
+    this.mappingWriter        = new ApnMappingWriter(jedisPool, configuration.getMappingWrites(), configuration.getMappingCache());
+    this.feedbackResolver     = new ApnFeedbackResolver(jedisPool, unregisteredQueue);
+    this.laneExecutor         = laneExecutor;
+    this.unregisteredQueue    = unregisteredQueue;
+    this.pushCertificate      = configuration.getPushCertificate();
+    this.pushKey              = configuration.getPushKey();
+    this.voipCertificate      = configuration.getVoipCertificate();
+    this.voipKey              = configuration.getVoipKey();
+    this.feedbackEnabled      = configuration.isFeedbackEnabled();
+    this.http2                = configuration.isHttp2();
+    this.http2Endpoint        = configuration.getHttp2Endpoint();
+    this.pushTopic            = configuration.getPushTopic();
+    this.voipTopic            = configuration.getVoipTopic();
+    this.maxConcurrentStreams = configuration.getMaxConcurrentStreams();
+    this.connections          = configuration.getConnections();
+
+    if (coalesceWindowMillis > 0) {
+      this.coalescer = Optional.of(new PushCoalescer<>("apn", coalesceWindowMillis, new PushCoalescer.Delivery<ApnMessage>() {
+        @Override
+        public ListenableFuture<PushResult> deliver(ApnMessage message) {
+          return submit(message);
+        }
+      }));
+    } else {
+      this.coalescer = Optional.absent();
+    }
   }
 
-  public void sendMessage(ApnMessage message)
+  public ListenableFuture<PushResult> sendMessage(ApnMessage message)
       throws TransientPushFailureException
   {
-    try {
-      redisSet(message.getApnId(), message.getNumber(), message.getDeviceId());
+    if (isCoalesced(message)) {
+      return coalescer.get().coalesce(message.getApnId().toLowerCase(), message);
+    }
+
+    mappingWriter.write(message.getApnId(), message.getNumber(), message.getDeviceId());
+    return push(message);
+  }
+
+  public ListenableFuture<PushResult> sendMessageAsync(final ApnMessage message) {
+    if (isCoalesced(message)) {
+      return coalescer.get().coalesce(message.getApnId().toLowerCase(), message);
+    }
+
+    return submit(message);
+  }
+
+  public List<ListenableFuture<PushResult>> sendMessages(List<ApnMessage> messages) {
+    List<ListenableFuture<PushResult>> results = new LinkedList<>();
+
+    for (ApnMessage message : messages) {
+      if (isCoalesced(message)) {
+        results.add(coalescer.get().coalesce(message.getApnId().toLowerCase(), message));
+        continue;
+      }
+
+      try {
+        mappingWriter.write(message.getApnId(), message.getNumber(), message.getDeviceId());
+        results.add(push(message));
+      } catch (TransientPushFailureException e) {
+        results.add(Futures.immediateFuture(PushResult.transientFailure(e.getMessage())));
+      }
+    }
+
+    return results;
+  }
+
+  private boolean isCoalesced(ApnMessage message) {
+    return coalescer.isPresent() && !message.isVoip();
+  }
+
+  private ListenableFuture<PushResult> submit(final ApnMessage message) {
+    return Futures.dereference(laneExecutor.submit(PushLane.of(message), new Callable<ListenableFuture<PushResult>>() {
+      @Override
+      public ListenableFuture<PushResult> call() {
+        try {
+          mappingWriter.write(message.getApnId(), message.getNumber(), message.getDeviceId());
+          return push(message);
+        } catch (TransientPushFailureException e) {
+          return Futures.immediateFuture(PushResult.transientFailure(e.getMessage()));
+        }
+      }
+    }));
+  }
 
+  private ListenableFuture<PushResult> push(ApnMessage message) throws TransientPushFailureException {
+    if (http2) {
       if (message.isVoip()) {
-        voipApnService.push(message.getApnId(), message.getMessage(), new Date(message.getExpirationTime()));
         voipMeter.mark();
+        return voipHttp2Pool.push(message, "voip");
       } else {
-        pushApnService.push(message.getApnId(), message.getMessage(), new Date(message.getExpirationTime()));
         pushMeter.mark();
+        return pushHttp2Pool.push(message, "alert");
       }
+    }
+
+    EnhancedApnsNotification   notification = new EnhancedApnsNotification(EnhancedApnsNotification.INCREMENT_ID(),
+                                                                            (int) (message.getExpirationTime() / 1000),
+                                                                            message.getApnId(), message.getMessage());
+    SettableFuture<PushResult> result       = SettableFuture.create();
+
+    legacyPending.put(notification.getIdentifier(), result);
+
+    try {
+      if (message.isVoip()) {
+        voipApnService.push(notification);
+        voipMeter.mark();
+      } else {
+        pushApnService.push(notification);
+        pushMeter.mark();
+      }
+
+      return result;
     } catch (NetworkIOException nioe) {
+      legacyPending.remove(notification.getIdentifier());
       logger.warn("Network Error", nioe);
       failureMeter.mark();
       throw new TransientPushFailureException(nioe);
@@ -135,13 +252,27 @@ public class APNSender implements Managed {
     byte[] pushKeyStore = initializeKeyStore(pushCertificate, pushKey);
     byte[] voipKeyStore = initializeKeyStore(voipCertificate, voipKey);
 
+    mappingWriter.start();
+
+    if (http2) {
+      this.pushHttp2Pool = new ApnsConnectionPool("push", connections, http2Endpoint, pushTopic, pushKeyStore, "insecure",
+                                                  maxConcurrentStreams, unregisteredQueue);
+      this.voipHttp2Pool = new ApnsConnectionPool("voip", connections, http2Endpoint, voipTopic, voipKeyStore, "insecure",
+                                                  maxConcurrentStreams, unregisteredQueue);
+      return;
+    }
+
     this.pushApnService = APNS.newService()
                               .withCert(new ByteArrayInputStream(pushKeyStore), "insecure")
+                              .withDelegate(new LegacyDelegate())
+                              .asPool(connections)
                               .asQueued()
                               .withProductionDestination().build();
 
     this.voipApnService = APNS.newService()
                               .withCert(new ByteArrayInputStream(voipKeyStore), "insecure")
+                              .withDelegate(new LegacyDelegate())
+                              .asPool(connections)
                               .asQueued()
                               .withProductionDestination().build();
 
@@ -151,22 +282,73 @@ public class APNSender implements Managed {
   }
 
   @Override
-  public void stop() throws Exception {
-    pushApnService.stop();
-    voipApnService.stop();
+  public void warmUp() throws Exception {
+    if (http2) {
+      Futures.allAsList(Arrays.<ListenableFuture<List<Void>>>asList(pushHttp2Pool.warmUp(), voipHttp2Pool.warmUp()))
+             .get(30, TimeUnit.SECONDS);
+    } else {
+      // notnoop opens each pooled connection on its first push and has no way
+      // to open them sooner, so the best the legacy API allows is checking the
+      // certificate and endpoint over the same socket factory.
+      pushApnService.testConnection();
+      voipApnService.testConnection();
+    }
   }
 
-  private void redisSet(String registrationId, String number, int deviceId) {
-    try (Jedis jedis = jedisPool.getResource()) {
-      jedis.set("APN-" + registrationId.toLowerCase(), number + "." + deviceId);
-      jedis.expire("APN-" + registrationId.toLowerCase(), (int) TimeUnit.HOURS.toSeconds(1));
+  @Override
+  public void stop() throws Exception {
+    if (coalescer.isPresent()) {
+      coalescer.get().stop();
+    }
+
+    if (http2) {
+      pushHttp2Pool.stop();
+      voipHttp2Pool.stop();
+    } else {
+      pushApnService.stop();
+      voipApnService.stop();
     }
+
+    mappingWriter.stop();
   }
 
-  private Optional<String> redisGet(String registrationId) {
-    try (Jedis jedis = jedisPool.getResource()) {
-      String number = jedis.get("APN-" + registrationId.toLowerCase());
-      return Optional.fromNullable(number);
+  /**
+   * Completes a legacy push once notnoop has written it to a gateway
+   * connection, not when it is put on notnoop's in-memory queue, so a
+   * journaled push stays outstanding until APNs has it.  Pushes still queued
+   * at shutdown are left incomplete on purpose, so they're replayed.
+   */
+  private class LegacyDelegate implements ApnsDelegate {
+
+    @Override
+    public void messageSent(ApnsNotification notification, boolean resent) {
+      complete(notification, PushResult.accepted());
+    }
+
+    @Override
+    public void messageSendFailed(ApnsNotification notification, Throwable e) {
+      logger.warn("APN send failed", e);
+      failureMeter.mark();
+      complete(notification, PushResult.transientFailure(e.getMessage()));
+    }
+
+    @Override
+    public void connectionClosed(DeliveryError error, int identifier) {
+      logger.warn("APN connection closed: " + error + " (" + identifier + ")");
+    }
+
+    @Override
+    public void cacheLengthExceeded(int newCacheLength) {}
+
+    @Override
+    public void notificationsResent(int resendCount) {}
+
+    private void complete(ApnsNotification notification, PushResult result) {
+      SettableFuture<PushResult> pending = legacyPending.remove(notification.getIdentifier());
+
+      if (pending != null) {
+        pending.set(result);
+      }
     }
   }
 
@@ -177,26 +359,7 @@ public class APNSender implements Managed {
       Map<String, Date> inactiveDevices = pushApnService.getInactiveDevices();
       inactiveDevices.putAll(voipApnService.getInactiveDevices());
 
-      for (String registrationId : inactiveDevices.keySet()) {
-        Optional<String> device = redisGet(registrationId);
-
-        if (device.isPresent()) {
-          logger.warn("Got APN unregistered notice!");
-          String[] parts    = device.get().split(".", 2);
-
-          if (parts.length == 2) {
-            String number    = parts[0];
-            int    deviceId  = Integer.parseInt(parts[1]);
-            long   timestamp = inactiveDevices.get(registrationId).getTime();
-
-            unregisteredQueue.put(new UnregisteredEvent(registrationId, null, number, deviceId, timestamp));
-          } else {
-            logger.warn("APN unregister event for device with no parts: " + device.get());
-          }
-        } else {
-          logger.warn("APN unregister event received for uncached ID: " + registrationId);
-        }
-      }
+      feedbackResolver.resolve(inactiveDevices);
     }
   }
 }
@@ -0,0 +1,190 @@
+package org.whispersystems.pushserver.senders;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import org.whispersystems.gcm.server.Message;
+import org.whispersystems.gcm.server.Result;
+import org.whispersystems.gcm.server.Sender;
+import org.whispersystems.pushserver.config.AdaptiveLimitConfiguration;
+import org.whispersystems.pushserver.limits.AdaptiveLimiter;
+import org.whispersystems.pushserver.util.Constants;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Puts an {@link AdaptiveLimiter} in front of a GCM {@link Sender}.  Requests
+ * beyond the current limit wait in a bounded queue and are dispatched as
+ * earlier ones complete; once that queue is full they fail immediately as a
+ * transient failure rather than piling onto a degraded provider.
+ *
+ * Other requests to the same provider, such as multicast sends, can be put
+ * through the same limit and queue with {@link #send(Request)}.
+ */
+public class AdaptiveSender {
+
+  private final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
+
+  private final Queue<Pending<?>> pending      = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger     pendingCount = new AtomicInteger(0);
+
+  private final Delivery        delivery;
+  private final AdaptiveLimiter limiter;
+  private final Ticker          ticker;
+  private final int             maxPending;
+  private final Meter           overflow;
+
+  public AdaptiveSender(String name, final Sender sender, AdaptiveLimitConfiguration configuration) {
+    this(name, new Delivery() {
+      @Override
+      public ListenableFuture<Result> send(Message message, Object context) {
+        return sender.send(message, context);
+      }
+
+      @Override
+      public void stop() throws IOException {
+        sender.stop();
+      }
+    }, configuration, Ticker.systemTicker());
+  }
+
+  @VisibleForTesting
+  public AdaptiveSender(String name, Delivery delivery, AdaptiveLimitConfiguration configuration, Ticker ticker) {
+    this.delivery   = delivery;
+    this.limiter    = new AdaptiveLimiter("gcm." + name, configuration);
+    this.ticker     = ticker;
+    this.maxPending = configuration.getMaxPending();
+    this.overflow   = metricRegistry.meter(name(AdaptiveSender.class, name, "overflow"));
+
+    String pendingName = name(AdaptiveSender.class, name, "pending");
+    metricRegistry.remove(pendingName);
+    metricRegistry.register(pendingName, new Gauge<Integer>() {
+      @Override
+      public Integer getValue() {
+        return pendingCount.get();
+      }
+    });
+  }
+
+  public ListenableFuture<Result> send(final Message message, final Object context) {
+    return send(new Request<Result>() {
+      @Override
+      public ListenableFuture<Result> send() {
+        return delivery.send(message, context);
+      }
+
+      @Override
+      public boolean isDropped(Result result) {
+        return result.isThrottled()                        ||
+               "Unavailable".equals(result.getError())     ||
+               "InternalServerError".equals(result.getError());
+      }
+    });
+  }
+
+  public <T> ListenableFuture<T> send(Request<T> request) {
+    if (pendingCount.incrementAndGet() > maxPending && limiter.getInFlight() >= limiter.getLimit()) {
+      pendingCount.decrementAndGet();
+      overflow.mark();
+      return Futures.immediateFailedFuture(new SenderOverloadedException("GCM sender backlog full"));
+    }
+
+    SettableFuture<T> future = SettableFuture.create();
+    pending.add(new Pending<>(request, future));
+    drain();
+
+    return future;
+  }
+
+  public void stop() throws IOException {
+    delivery.stop();
+  }
+
+  @VisibleForTesting
+  public AdaptiveLimiter getLimiter() {
+    return limiter;
+  }
+
+  private void drain() {
+    while (!pending.isEmpty() && limiter.tryAcquire()) {
+      Pending<?> next = pending.poll();
+
+      if (next == null) {
+        limiter.cancel();
+        continue;
+      }
+
+      pendingCount.decrementAndGet();
+      dispatch(next);
+    }
+  }
+
+  private <T> void dispatch(final Pending<T> pending) {
+    final long started = ticker.read();
+
+    ListenableFuture<T> response;
+
+    try {
+      response = pending.request.send();
+    } catch (RuntimeException e) {
+      response = Futures.immediateFailedFuture(e);
+    }
+
+    Futures.addCallback(response, new FutureCallback<T>() {
+      @Override
+      public void onSuccess(T result) {
+        complete(started, pending.request.isDropped(result));
+        pending.future.set(result);
+      }
+
+      @Override
+      public void onFailure(Throwable throwable) {
+        complete(started, true);
+        pending.future.setException(throwable);
+      }
+    }, MoreExecutors.directExecutor());
+  }
+
+  private void complete(long started, boolean dropped) {
+    limiter.release(started, ticker.read() - started, dropped);
+    drain();
+  }
+
+  public interface Delivery {
+    public ListenableFuture<Result> send(Message message, Object context);
+    public void stop() throws IOException;
+  }
+
+  /**
+   * A request counted against the limit from when it is sent until its
+   * future completes.  Failures, and results the provider dropped, count as
+   * drops.
+   */
+  public interface Request<T> {
+    public ListenableFuture<T> send();
+    public boolean isDropped(T result);
+  }
+
+  private static class Pending<T> {
+    private final Request<T>        request;
+    private final SettableFuture<T> future;
+
+    private Pending(Request<T> request, SettableFuture<T> future) {
+      this.request = request;
+      this.future  = future;
+    }
+  }
+}
@@ -0,0 +1,105 @@
+package org.whispersystems.pushserver.senders;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.codahale.metrics.Timer;
+import com.google.common.collect.Iterables;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.whispersystems.pushserver.entities.UnregisteredEvent;
+import org.whispersystems.pushserver.util.Constants;
+
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+
+/**
+ * Turns the inactive devices reported by the APN feedback service into
+ * {@link UnregisteredEvent}s.  Registrations are looked up with one MGET per
+ * chunk, and each chunk's events are queued in a single batch.
+ */
+public class ApnFeedbackResolver {
+
+  private static final int CHUNK_SIZE = 500;
+
+  private final Logger logger = LoggerFactory.getLogger(ApnFeedbackResolver.class);
+
+  private final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
+  private final Timer          cycleTimer     = metricRegistry.timer(name(getClass(), "cycle"));
+  private final Histogram      inactive       = metricRegistry.histogram(name(getClass(), "inactive"));
+  private final Meter          resolved       = metricRegistry.meter(name(getClass(), "resolved"));
+  private final Meter          uncached       = metricRegistry.meter(name(getClass(), "uncached"));
+  private final Meter          malformed      = metricRegistry.meter(name(getClass(), "malformed"));
+
+  private final JedisPool         jedisPool;
+  private final UnregisteredQueue unregisteredQueue;
+
+  public ApnFeedbackResolver(JedisPool jedisPool, UnregisteredQueue unregisteredQueue) {
+    this.jedisPool         = jedisPool;
+    this.unregisteredQueue = unregisteredQueue;
+  }
+
+  public void resolve(Map<String, Date> inactiveDevices) {
+    try (Timer.Context timer = cycleTimer.time()) {
+      inactive.update(inactiveDevices.size());
+
+      for (List<String> chunk : Iterables.partition(inactiveDevices.keySet(), CHUNK_SIZE)) {
+        List<UnregisteredEvent> events  = new LinkedList<>();
+        List<String>            devices = lookup(chunk);
+
+        for (int i = 0; i < chunk.size(); i++) {
+          String registrationId = chunk.get(i);
+          String device         = devices.get(i);
+
+          if (device == null) {
+            logger.warn("APN unregister event received for uncached ID: " + registrationId);
+            uncached.mark();
+            continue;
+          }
+
+          String[] parts = device.split("\\.", 2);
+
+          try {
+            if (parts.length != 2) {
+              throw new NumberFormatException("No device id");
+            }
+
+            String number    = parts[0];
+            int    deviceId  = Integer.parseInt(parts[1]);
+            long   timestamp = inactiveDevices.get(registrationId).getTime();
+
+            events.add(new UnregisteredEvent(registrationId, null, number, deviceId, timestamp));
+          } catch (NumberFormatException e) {
+            logger.warn("APN unregister event for device with no parts: " + device);
+            malformed.mark();
+          }
+        }
+
+        if (!events.isEmpty()) {
+          logger.warn("Got " + events.size() + " APN unregistered notices!");
+          unregisteredQueue.put(events);
+          resolved.mark(events.size());
+        }
+      }
+    }
+  }
+
+  private List<String> lookup(List<String> registrationIds) {
+    String[] keys = new String[registrationIds.size()];
+
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = "APN-" + registrationIds.get(i).toLowerCase();
+    }
+
+    try (Jedis jedis = jedisPool.getResource()) {
+      return jedis.mget(keys);
+    }
+  }
+}
@@ -0,0 +1,229 @@
+package org.whispersystems.pushserver.senders;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.codahale.metrics.RatioGauge;
+import com.codahale.metrics.Timer;
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.whispersystems.pushserver.config.NearCacheConfiguration;
+import org.whispersystems.pushserver.config.WriteBehindConfiguration;
+import org.whispersystems.pushserver.util.Constants;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.exceptions.JedisException;
+
+/**
+ * Writes APN registration to device mappings to Redis behind the send path.
+ * Mappings are buffered and flushed as one pipelined batch of SETEX commands
+ * when the batch fills or the flush interval passes.  When the buffer is full,
+ * new mappings are dropped; the next push to that device writes them again.
+ * <p>
+ * A near cache remembers recently written mappings, so an unchanged mapping
+ * is only rewritten to refresh its TTL once per refresh interval.
+ */
+public class ApnMappingWriter {
+
+  public static final int MAPPING_TTL_SECONDS = (int) TimeUnit.HOURS.toSeconds(1);
+
+  private final Logger logger = LoggerFactory.getLogger(ApnMappingWriter.class);
+
+  private final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
+  private final Meter          dropped        = metricRegistry.meter(name(getClass(), "dropped"));
+  private final Meter          failed         = metricRegistry.meter(name(getClass(), "failed"));
+  private final Histogram      batchSizes     = metricRegistry.histogram(name(getClass(), "batch_size"));
+  private final Timer          flushTimer     = metricRegistry.timer(name(getClass(), "flush"));
+  private final Meter          written        = metricRegistry.meter(name(getClass(), "written"));
+  private final Meter          skipped        = metricRegistry.meter(name(getClass(), "skipped"));
+
+  private final JedisPool              jedisPool;
+  private final BlockingQueue<Mapping> buffer;
+  private final int                    batchSize;
+  private final long                   flushIntervalMillis;
+
+  private final Optional<Cache<String, String>> recentlyWritten;
+
+  private Thread           flusher;
+  private volatile boolean running;
+
+  public ApnMappingWriter(JedisPool jedisPool, WriteBehindConfiguration configuration,
+                          NearCacheConfiguration cacheConfiguration)
+  {
+    this.jedisPool           = jedisPool;
+    this.buffer              = new ArrayBlockingQueue<>(configuration.getBufferSize());
+    this.batchSize           = configuration.getBatchSize();
+    this.flushIntervalMillis = configuration.getFlushIntervalMillis();
+
+    if (cacheConfiguration.isEnabled()) {
+      this.recentlyWritten = Optional.of(CacheBuilder.newBuilder()
+                                                     .maximumSize(cacheConfiguration.getMaxEntries())
+                                                     .expireAfterWrite(cacheConfiguration.getRefreshSeconds(), TimeUnit.SECONDS)
+                                                     .<String, String>build());
+    } else {
+      this.recentlyWritten = Optional.absent();
+    }
+
+    String skipRatioName = name(getClass(), "skip_ratio");
+    metricRegistry.remove(skipRatioName);
+    metricRegistry.register(skipRatioName, new RatioGauge() {
+      @Override
+      protected Ratio getRatio() {
+        return Ratio.of(skipped.getCount(), skipped.getCount() + written.getCount());
+      }
+    });
+
+    String depthName = name(getClass(), "buffer_depth");
+    metricRegistry.remove(depthName);
+    metricRegistry.register(depthName, new Gauge<Integer>() {
+      @Override
+      public Integer getValue() {
+        return buffer.size();
+      }
+    });
+  }
+
+  public void write(String registrationId, String number, int deviceId) {
+    String key   = "APN-" + registrationId.toLowerCase();
+    String value = number + "." + deviceId;
+
+    if (recentlyWritten.isPresent()) {
+      ConcurrentMap<String, String> cache    = recentlyWritten.get().asMap();
+      String                        previous = cache.putIfAbsent(key, value);
+
+      if (value.equals(previous)) {
+        skipped.mark();
+        return;
+      }
+
+      if (previous != null) {
+        cache.put(key, value);
+      }
+    }
+
+    if (buffer.offer(new Mapping(key, value))) {
+      written.mark();
+    } else {
+      dropped.mark();
+      forget(key);
+    }
+  }
+
+  public void start() {
+    running = true;
+    flusher = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        while (running || !buffer.isEmpty()) {
+          try {
+            List<Mapping> batch = collect();
+            if (!batch.isEmpty()) flush(batch);
+          } catch (RuntimeException e) {
+            logger.warn("Mapping flush failed", e);
+          }
+        }
+      }
+    }, "apn-mapping-writer");
+
+    flusher.setDaemon(true);
+    flusher.start();
+  }
+
+  /**
+   * Wakes the flusher, which writes out everything still buffered before it
+   * exits.
+   */
+  public void stop() throws InterruptedException {
+    running = false;
+    flusher.interrupt();
+    flusher.join();
+  }
+
+  private List<Mapping> collect() {
+    List<Mapping> batch = new ArrayList<>(batchSize);
+
+    try {
+      Mapping first = buffer.poll(flushIntervalMillis, TimeUnit.MILLISECONDS);
+
+      if (first == null) {
+        return batch;
+      }
+
+      batch.add(first);
+
+      long deadline = System.currentTimeMillis() + flushIntervalMillis;
+
+      while (batch.size() < batchSize) {
+        buffer.drainTo(batch, batchSize - batch.size());
+
+        long remaining = deadline - System.currentTimeMillis();
+
+        if (batch.size() >= batchSize || remaining <= 0 || !running) {
+          break;
+        }
+
+        Mapping next = buffer.poll(remaining, TimeUnit.MILLISECONDS);
+
+        if (next == null) break;
+        else              batch.add(next);
+      }
+    } catch (InterruptedException e) {
+      buffer.drainTo(batch, batchSize - batch.size());
+    }
+
+    return batch;
+  }
+
+  private void flush(List<Mapping> batch) {
+    try (Timer.Context timer = flushTimer.time();
+         Jedis         jedis = jedisPool.getResource())
+    {
+      Pipeline pipeline = jedis.pipelined();
+
+      for (Mapping mapping : batch) {
+        pipeline.setex(mapping.key, MAPPING_TTL_SECONDS, mapping.value);
+      }
+
+      pipeline.sync();
+      batchSizes.update(batch.size());
+    } catch (JedisException e) {
+      logger.warn("Failed to write APN mappings", e);
+      failed.mark(batch.size());
+
+      for (Mapping mapping : batch) {
+        forget(mapping.key);
+      }
+    }
+  }
+
+  private void forget(String key) {
+    if (recentlyWritten.isPresent()) {
+      recentlyWritten.get().invalidate(key);
+    }
+  }
+
+  private static class Mapping {
+    private final String key;
+    private final String value;
+
+    private Mapping(String key, String value) {
+      this.key   = key;
+      this.value = value;
+    }
+  }
+}
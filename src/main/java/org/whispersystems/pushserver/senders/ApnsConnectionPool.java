@@ -0,0 +1,187 @@
+package org.whispersystems.pushserver.senders;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.whispersystems.pushserver.entities.ApnMessage;
+import org.whispersystems.pushserver.entities.PushResult;
+import org.whispersystems.pushserver.util.Constants;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Spreads APNs traffic for one certificate across several HTTP/2 connections.
+ * Each push goes to the healthy connection with the fewest pushes in flight.
+ * A connection that fails repeatedly is dropped, reconnected, and left out
+ * of rotation until a cool down passes.
+ */
+public class ApnsConnectionPool {
+
+  private static final int  FAILURE_THRESHOLD = 3;
+  private static final long COOL_DOWN_MILLIS  = TimeUnit.SECONDS.toMillis(5);
+
+  private final Logger logger = LoggerFactory.getLogger(ApnsConnectionPool.class);
+
+  private final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
+
+  private final List<Connection> connections = new LinkedList<>();
+  private final AtomicInteger    next        = new AtomicInteger(0);
+
+  public ApnsConnectionPool(String name, int size, String endpoint, Optional<String> topic,
+                            byte[] keyStore, String keyStorePassword,
+                            int maxConcurrentStreams, UnregisteredQueue unregisteredQueue)
+      throws GeneralSecurityException, IOException
+  {
+    for (int i = 0; i < size; i++) {
+      String connectionName = name + "." + i;
+      connections.add(new Connection(connectionName, new ApnsHttp2Client(connectionName, endpoint, topic, keyStore, keyStorePassword,
+                                                                         maxConcurrentStreams, unregisteredQueue)));
+    }
+  }
+
+  @VisibleForTesting
+  public ApnsConnectionPool(String name, List<ApnsHttp2Client> clients) {
+    int i = 0;
+
+    for (ApnsHttp2Client client : clients) {
+      connections.add(new Connection(name + "." + i++, client));
+    }
+  }
+
+  public ListenableFuture<PushResult> push(ApnMessage message, String pushType) {
+    return select().push(message, pushType);
+  }
+
+  public ListenableFuture<List<Void>> warmUp() {
+    List<ListenableFuture<Void>> warmed = new LinkedList<>();
+
+    for (Connection connection : connections) {
+      warmed.add(connection.client.warmUp());
+    }
+
+    return Futures.allAsList(warmed);
+  }
+
+  public void stop() {
+    for (Connection connection : connections) {
+      connection.client.stop();
+    }
+  }
+
+  @VisibleForTesting
+  Connection select() {
+    long       now    = System.currentTimeMillis();
+    int        offset = Math.abs(next.getAndIncrement() % connections.size());
+    Connection best   = null;
+
+    for (int i = 0; i < connections.size(); i++) {
+      Connection candidate = connections.get((offset + i) % connections.size());
+
+      if (!candidate.isAvailable(now)) {
+        continue;
+      }
+
+      if (best == null || candidate.inFlight.get() < best.inFlight.get()) {
+        best = candidate;
+      }
+    }
+
+    return best != null ? best : connections.get(offset);
+  }
+
+  @VisibleForTesting
+  class Connection {
+
+    private final AtomicInteger inFlight            = new AtomicInteger(0);
+    private final AtomicInteger consecutiveFailures = new AtomicInteger(0);
+
+    private final String          name;
+    private final ApnsHttp2Client client;
+    private final Meter           sent;
+
+    private volatile long unavailableUntil = 0;
+
+    private Connection(String name, ApnsHttp2Client client) {
+      this.name   = name;
+      this.client = client;
+      this.sent   = metricRegistry.meter(name(ApnsConnectionPool.class, name, "sent"));
+
+      String inFlightName = name(ApnsConnectionPool.class, name, "in_flight");
+      metricRegistry.remove(inFlightName);
+      metricRegistry.register(inFlightName, new Gauge<Integer>() {
+        @Override
+        public Integer getValue() {
+          return inFlight.get();
+        }
+      });
+
+      String healthyName = name(ApnsConnectionPool.class, name, "healthy");
+      metricRegistry.remove(healthyName);
+      metricRegistry.register(healthyName, new Gauge<Boolean>() {
+        @Override
+        public Boolean getValue() {
+          return isAvailable(System.currentTimeMillis());
+        }
+      });
+    }
+
+    boolean isAvailable(long now) {
+      return consecutiveFailures.get() < FAILURE_THRESHOLD || now >= unavailableUntil;
+    }
+
+    ListenableFuture<PushResult> push(ApnMessage message, String pushType) {
+      inFlight.incrementAndGet();
+      sent.mark();
+
+      final SettableFuture<PushResult> completed = SettableFuture.create();
+
+      Futures.addCallback(client.push(message, pushType), new FutureCallback<PushResult>() {
+        @Override
+        public void onSuccess(PushResult result) {
+          inFlight.decrementAndGet();
+
+          if (PushResult.STATUS_TRANSIENT.equals(result.getStatus())) recordFailure();
+          else                                                         consecutiveFailures.set(0);
+
+          completed.set(result);
+        }
+
+        @Override
+        public void onFailure(Throwable throwable) {
+          inFlight.decrementAndGet();
+          recordFailure();
+
+          completed.setException(throwable);
+        }
+      });
+
+      return completed;
+    }
+
+    private void recordFailure() {
+      long now = System.currentTimeMillis();
+
+      if (consecutiveFailures.incrementAndGet() >= FAILURE_THRESHOLD && now >= unavailableUntil) {
+        logger.warn("APNs connection " + name + " unhealthy, reconnecting");
+        unavailableUntil = now + COOL_DOWN_MILLIS;
+        client.reconnect();
+      }
+    }
+  }
+}
@@ -0,0 +1,250 @@
+package org.whispersystems.pushserver.senders;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.whispersystems.pushserver.entities.ApnMessage;
+import org.whispersystems.pushserver.entities.PushResult;
+import org.whispersystems.pushserver.entities.UnregisteredEvent;
+import org.whispersystems.pushserver.util.Constants;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * A client for the APNs HTTP/2 provider API.  Notifications are multiplexed as
+ * concurrent streams over a single connection, and each one completes with the
+ * status APNs returned for it.
+ */
+public class ApnsHttp2Client {
+
+  public static final String PRODUCTION_ENDPOINT = "https://api.push.apple.com";
+
+  private static final MediaType JSON = MediaType.parse("application/json");
+
+  private final Logger logger = LoggerFactory.getLogger(ApnsHttp2Client.class);
+
+  private final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
+
+  private final Meter success;
+  private final Meter unregistered;
+  private final Meter failure;
+  private final Meter transientFailure;
+
+  private volatile OkHttpClient   client;
+  private final String            endpoint;
+  private final Optional<String>  topic;
+  private final UnregisteredQueue unregisteredQueue;
+
+  public ApnsHttp2Client(String name, String endpoint, Optional<String> topic, byte[] keyStore, String keyStorePassword,
+                         int maxConcurrentStreams, UnregisteredQueue unregisteredQueue)
+      throws GeneralSecurityException, IOException
+  {
+    this(name, endpoint, topic, maxConcurrentStreams, unregisteredQueue,
+         createTlsClient(keyStore, keyStorePassword).protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1)));
+  }
+
+  @VisibleForTesting
+  public ApnsHttp2Client(String name, String endpoint, int maxConcurrentStreams,
+                         UnregisteredQueue unregisteredQueue, OkHttpClient.Builder builder)
+  {
+    this(name, endpoint, Optional.<String>absent(), maxConcurrentStreams, unregisteredQueue, builder);
+  }
+
+  @VisibleForTesting
+  public ApnsHttp2Client(String name, String endpoint, Optional<String> topic, int maxConcurrentStreams,
+                         UnregisteredQueue unregisteredQueue, OkHttpClient.Builder builder)
+  {
+    this.client            = builder.readTimeout(30, TimeUnit.SECONDS).build();
+    this.endpoint          = endpoint;
+    this.topic             = topic;
+    this.unregisteredQueue = unregisteredQueue;
+    this.success           = metricRegistry.meter(name(ApnsHttp2Client.class, name, "success"));
+    this.unregistered      = metricRegistry.meter(name(ApnsHttp2Client.class, name, "unregistered"));
+    this.failure           = metricRegistry.meter(name(ApnsHttp2Client.class, name, "failure"));
+    this.transientFailure  = metricRegistry.meter(name(ApnsHttp2Client.class, name, "transient"));
+
+    this.client.dispatcher().setMaxRequests(maxConcurrentStreams);
+    this.client.dispatcher().setMaxRequestsPerHost(maxConcurrentStreams);
+  }
+
+  public ListenableFuture<PushResult> push(final ApnMessage message, String pushType) {
+    final SettableFuture<PushResult> result = SettableFuture.create();
+
+    Request.Builder request = new Request.Builder().url(endpoint + "/3/device/" + message.getApnId())
+                                                   .header("apns-expiration", String.valueOf(TimeUnit.MILLISECONDS.toSeconds(message.getExpirationTime())))
+                                                   .header("apns-priority", "10")
+                                                   .header("apns-push-type", pushType)
+                                                   .post(RequestBody.create(JSON, message.getMessage()));
+
+    if (topic.isPresent()) {
+      request.header("apns-topic", topic.get());
+    }
+
+    client.newCall(request.build()).enqueue(new Callback() {
+      @Override
+      public void onFailure(Call call, IOException e) {
+        logger.warn("APNs request failed", e);
+        transientFailure.mark();
+        result.set(PushResult.transientFailure(e.getMessage()));
+      }
+
+      @Override
+      public void onResponse(Call call, Response response) throws IOException {
+        try (ResponseBody body = response.body()) {
+          result.set(handleResponse(message, response.code(), body == null ? null : body.string()));
+        }
+      }
+    });
+
+    return result;
+  }
+
+  public ListenableFuture<Void> warmUp() {
+    final SettableFuture<Void> connected = SettableFuture.create();
+
+    client.newCall(new Request.Builder().url(endpoint + "/").build()).enqueue(new Callback() {
+      @Override
+      public void onFailure(Call call, IOException e) {
+        connected.setException(e);
+      }
+
+      @Override
+      public void onResponse(Call call, Response response) {
+        response.close();
+        connected.set(null);
+      }
+    });
+
+    return connected;
+  }
+
+  /**
+   * Replaces the connection.  Evicting alone only closes idle connections,
+   * and an unhealthy one still has streams on it, so new pushes move to a
+   * fresh pool and whatever is stuck on the old connection is cancelled.
+   */
+  public void reconnect() {
+    OkHttpClient previous   = this.client;
+    Dispatcher   dispatcher = new Dispatcher();
+
+    dispatcher.setMaxRequests(previous.dispatcher().getMaxRequests());
+    dispatcher.setMaxRequestsPerHost(previous.dispatcher().getMaxRequestsPerHost());
+
+    this.client = previous.newBuilder()
+                          .connectionPool(new ConnectionPool())
+                          .dispatcher(dispatcher)
+                          .build();
+
+    previous.dispatcher().cancelAll();
+    previous.dispatcher().executorService().shutdown();
+    previous.connectionPool().evictAll();
+  }
+
+  public void stop() {
+    client.dispatcher().executorService().shutdown();
+    client.connectionPool().evictAll();
+  }
+
+  private PushResult handleResponse(ApnMessage message, int status, String body) {
+    if (status == 200) {
+      success.mark();
+      return PushResult.success();
+    }
+
+    String reason = getReason(body);
+
+    if (status == 410) {
+      logger.warn("Got APN unregistered notice!");
+      unregisteredQueue.put(new UnregisteredEvent(message.getApnId(), null, message.getNumber(),
+                                                  message.getDeviceId(), System.currentTimeMillis()));
+      unregistered.mark();
+      return PushResult.unregistered();
+    }
+
+    if (status == 429 || status >= 500) {
+      logger.warn("Transient APNs error: " + status + " " + reason);
+      transientFailure.mark();
+      return PushResult.transientFailure(reason);
+    }
+
+    logger.warn("APNs rejected notification: " + status + " " + reason);
+    failure.mark();
+    return PushResult.failure(reason);
+  }
+
+  private String getReason(String body) {
+    if (body == null || body.isEmpty()) {
+      return null;
+    }
+
+    Object parsed = JSONValue.parse(body);
+
+    if (parsed instanceof JSONObject) {
+      Object reason = ((JSONObject) parsed).get("reason");
+      if (reason != null) return reason.toString();
+    }
+
+    return null;
+  }
+
+  private static OkHttpClient.Builder createTlsClient(byte[] keyStoreBytes, String keyStorePassword)
+      throws GeneralSecurityException, IOException
+  {
+    KeyStore keyStore = KeyStore.getInstance("pkcs12");
+    keyStore.load(new ByteArrayInputStream(keyStoreBytes), keyStorePassword.toCharArray());
+
+    KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+    keyManagerFactory.init(keyStore, keyStorePassword.toCharArray());
+
+    TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+    trustManagerFactory.init((KeyStore) null);
+
+    X509TrustManager trustManager = null;
+
+    for (TrustManager candidate : trustManagerFactory.getTrustManagers()) {
+      if (candidate instanceof X509TrustManager) {
+        trustManager = (X509TrustManager) candidate;
+      }
+    }
+
+    if (trustManager == null) {
+      throw new GeneralSecurityException("No X509TrustManager available");
+    }
+
+    SSLContext context = SSLContext.getInstance("TLS");
+    context.init(keyManagerFactory.getKeyManagers(), new TrustManager[] {trustManager}, null);
+
+    return new OkHttpClient.Builder().sslSocketFactory(context.getSocketFactory(), trustManager);
+  }
+}
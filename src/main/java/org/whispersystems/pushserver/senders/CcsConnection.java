@@ -0,0 +1,513 @@
+package org.whispersystems.pushserver.senders;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.jivesoftware.smack.ConnectionConfiguration;
+import org.jivesoftware.smack.ConnectionListener;
+import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.SmackException;
+import org.jivesoftware.smack.XMPPConnection;
+import org.jivesoftware.smack.XMPPException;
+import org.jivesoftware.smack.filter.PacketTypeFilter;
+import org.jivesoftware.smack.packet.DefaultPacketExtension;
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.packet.PacketExtension;
+import org.jivesoftware.smack.provider.PacketExtensionProvider;
+import org.jivesoftware.smack.provider.ProviderManager;
+import org.jivesoftware.smack.tcp.XMPPTCPConnection;
+import org.jivesoftware.smack.util.StringUtils;
+import org.json.simple.JSONValue;
+import org.json.simple.parser.ParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.whispersystems.pushserver.util.Constants;
+import org.whispersystems.pushserver.util.Util;
+import org.xmlpull.v1.XmlPullParser;
+
+import javax.net.SocketFactory;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * A single connection to GCM's Cloud Connection Server.
+ *
+ * CCS allows a limited window of downstream messages to be outstanding on a
+ * connection before it starts throttling and dropping them.  A message holds
+ * a slot from {@link #reserve} until its ack or nack arrives, and anything
+ * still unacknowledged is resent when the connection is re-established.
+ *
+ * When CCS announces it is draining a connection, a replacement is opened on
+ * a separate thread and new messages stop going to the old one, which stays
+ * open until the messages already sent on it are acknowledged.  Only the
+ * ones it loses by closing first are resent.
+ */
+public class CcsConnection implements PacketListener {
+
+  public interface Listener {
+    /**
+     * A message arrived from CCS.  For acks and nacks the window slot has
+     * already been released.
+     */
+    public void onPacket(CcsConnection connection, Map<String, Object> message);
+
+    /**
+     * The connection has (re)authenticated and can take messages.
+     */
+    public void onAvailable(CcsConnection connection);
+  }
+
+  private static final String GCM_ELEMENT_NAME = "gcm";
+  private static final String GCM_NAMESPACE    = "google:mobile:data";
+
+  private final Logger logger = LoggerFactory.getLogger(CcsConnection.class);
+
+  private final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
+
+  private final Map<String, String> unacked = new ConcurrentHashMap<>();
+
+  /**
+   * Ids of unacknowledged messages that were sent on {@link #drainingConnection}.
+   */
+  private final Set<String> drainingIds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  private final AtomicBoolean reconnecting = new AtomicBoolean(false);
+
+  private final String        name;
+  private final String        host;
+  private final int           port;
+  private final long          senderId;
+  private final String        apiKey;
+  private final int           windowSize;
+  private final SocketFactory socketFactory;
+  private final Listener        listener;
+  private final ExecutorService reconnector;
+
+  private volatile XMPPTCPConnection connection;
+  private volatile XMPPTCPConnection drainingConnection;
+  private volatile boolean           stopped;
+
+  public CcsConnection(String name, String host, int port, long senderId, String apiKey,
+                       int windowSize, SocketFactory socketFactory, Listener listener)
+  {
+    this.name          = name;
+    this.host          = host;
+    this.port          = port;
+    this.senderId      = senderId;
+    this.apiKey        = apiKey;
+    this.windowSize    = windowSize;
+    this.socketFactory = socketFactory;
+    this.listener      = listener;
+    this.reconnector   = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setNameFormat("ccs-reconnect-" + name)
+                                                                                   .setDaemon(true)
+                                                                                   .build());
+
+    ProviderManager.addExtensionProvider(GCM_ELEMENT_NAME, GCM_NAMESPACE,
+                                         new GcmPacketExtensionProvider());
+
+    String unackedName = name(CcsConnection.class, name, "unacked");
+    metricRegistry.remove(unackedName);
+    metricRegistry.register(unackedName, new Gauge<Integer>() {
+      @Override
+      public Integer getValue() {
+        return unacked.size();
+      }
+    });
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public boolean isAvailable() {
+    XMPPTCPConnection connection = this.connection;
+    return !stopped && connection != null && connection.isAuthenticated();
+  }
+
+  public int getUnacked() {
+    return unacked.size();
+  }
+
+  public int getFreeWindow() {
+    return windowSize - unacked.size() + drainingIds.size();
+  }
+
+  /**
+   * Takes a window slot for a message, given as the complete stanza from
+   * {@link GcmStanzaEncoder}.  Callers must serialize reservations across the
+   * pool so two of them can't claim the last slot.
+   */
+  public void reserve(String messageId, String stanza) {
+    unacked.put(messageId, stanza);
+  }
+
+  /**
+   * Gives up a window slot without an ack, for a message that has timed out.
+   */
+  public boolean release(String messageId) {
+    boolean released = unacked.remove(messageId) != null;
+    onAcknowledged(messageId);
+
+    return released;
+  }
+
+  /**
+   * Writes a reserved message.  If the connection is down it stays reserved
+   * and goes out again on reconnect.
+   */
+  public void transmit(String messageId) {
+    String stanza = unacked.get(messageId);
+
+    if (stanza != null) {
+      sendPacket(new EncodedStanza(stanza));
+    }
+  }
+
+  public void connect() throws XMPPException, IOException, SmackException {
+    this.connection = connect(senderId, apiKey);
+  }
+
+  public void disconnect() throws SmackException.NotConnectedException {
+    this.stopped = true;
+    this.reconnector.shutdownNow();
+
+    retireDraining();
+
+    if (this.connection != null) {
+      this.connection.disconnect();
+    }
+  }
+
+  @Override
+  public void processPacket(Packet packet) {
+    Message            incomingMessage = (Message) packet;
+    GcmPacketExtension gcmPacket       = (GcmPacketExtension) incomingMessage.getExtension(GCM_NAMESPACE);
+
+    if (gcmPacket == null) {
+      return;
+    }
+
+    try {
+      Map<String, Object> jsonObject  = (Map<String, Object>) JSONValue.parseWithException(gcmPacket.getJson());
+      Object              messageType = jsonObject.get("message_type");
+
+      if ("ack".equals(messageType) || "nack".equals(messageType)) {
+        Object messageId = jsonObject.get("message_id");
+
+        if (messageId != null) {
+          unacked.remove(messageId.toString());
+          onAcknowledged(messageId.toString());
+        }
+      } else if ("control".equals(messageType) && "CONNECTION_DRAINING".equals(jsonObject.get("control_type"))) {
+        logger.warn("GCM Connection " + name + " is draining! Initiating reconnect...");
+        startDraining();
+        return;
+      }
+
+      listener.onPacket(this, jsonObject);
+    } catch (ParseException e) {
+      logger.warn("GCMClient", "Received unparsable message", e);
+    } catch (Exception e) {
+      logger.warn("GCMClient", "Failed to process packet", e);
+    }
+  }
+
+  /**
+   * Sends a message that doesn't count against the window, such as an ack
+   * for an upstream message.
+   */
+  public void send(String json) {
+    XMPPTCPConnection connection = this.connection;
+    if (connection == null) connection = this.drainingConnection;
+
+    sendPacket(connection, new GcmPacketExtension(json).toPacket());
+  }
+
+  private void sendPacket(Packet packet) {
+    sendPacket(this.connection, packet);
+  }
+
+  private void sendPacket(XMPPTCPConnection connection, Packet packet) {
+
+    if (connection == null) {
+      logger.warn("GCM XMPP " + name + " not connected");
+      return;
+    }
+
+    try {
+      connection.sendPacket(packet);
+    } catch (SmackException.NotConnectedException e) {
+      logger.warn("GCMClient", "No connection", e);
+    }
+  }
+
+  private void resendUnacked() {
+    logger.warn("GCM XMPP " + name + " resending... Pending Size: " + unacked.size());
+
+    for (Map.Entry<String, String> entry : new HashMap<>(unacked).entrySet()) {
+      if (!drainingIds.contains(entry.getKey())) {
+        sendPacket(new EncodedStanza(entry.getValue()));
+      }
+    }
+  }
+
+  /**
+   * Moves the current connection aside to finish its outstanding messages and
+   * opens a replacement without holding up the thread delivering packets.
+   */
+  private synchronized void startDraining() {
+    XMPPTCPConnection previous = this.connection;
+
+    if (previous == null || stopped) {
+      return;
+    }
+
+    retireDraining();
+
+    this.drainingConnection = previous;
+    this.drainingIds.addAll(unacked.keySet());
+    this.connection = null;
+
+    if (drainingIds.isEmpty()) {
+      retireDraining();
+    }
+
+    scheduleReconnect();
+  }
+
+  /**
+   * Closes the draining connection, if there is one.  Anything it didn't get
+   * an ack for is resent on the current connection, or on the next one if
+   * there isn't one yet.
+   */
+  private void retireDraining() {
+    XMPPTCPConnection previous;
+    List<String>      lost;
+
+    synchronized (this) {
+      previous = this.drainingConnection;
+
+      if (previous == null) {
+        return;
+      }
+
+      this.drainingConnection = null;
+
+      lost = new LinkedList<>(drainingIds);
+      drainingIds.clear();
+    }
+
+    disconnectQuietly(previous);
+
+    if (isAvailable()) {
+      for (String messageId : lost) {
+        transmit(messageId);
+      }
+    }
+  }
+
+  private void onAcknowledged(String messageId) {
+    if (drainingIds.remove(messageId) && drainingIds.isEmpty()) {
+      retireDraining();
+    }
+  }
+
+  private void scheduleReconnect() {
+    if (stopped || !reconnecting.compareAndSet(false, true)) {
+      return;
+    }
+
+    reconnector.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          reconnect();
+        } finally {
+          reconnecting.set(false);
+        }
+      }
+    });
+  }
+
+  private void reconnect() {
+    XMPPTCPConnection previous = this.connection;
+    this.connection = null;
+
+    if (previous != null) {
+      disconnectQuietly(previous);
+    }
+
+    while (!stopped) {
+      try {
+        this.connection = connect(senderId, apiKey);
+        return;
+      } catch (XMPPException | IOException | SmackException e) {
+        logger.warn("GCMClient", "Reconnecting", e);
+        Util.sleep(1000);
+      }
+    }
+  }
+
+  private XMPPTCPConnection connect(long senderId, String apiKey)
+      throws XMPPException, IOException, SmackException
+  {
+    ConnectionConfiguration config = new ConnectionConfiguration(host, port);
+    config.setSecurityMode(ConnectionConfiguration.SecurityMode.enabled);
+    config.setReconnectionAllowed(true);
+    config.setRosterLoadedAtLogin(false);
+    config.setSendPresence(false);
+    config.setSocketFactory(socketFactory);
+
+    XMPPTCPConnection connection = new XMPPTCPConnection(config);
+    connection.connect();
+
+    connection.addConnectionListener(new LoggingConnectionListener(connection));
+    connection.addPacketListener(this, new PacketTypeFilter(Message.class));
+
+    this.connection = connection;
+
+    connection.login(senderId + "@gcm.googleapis.com", apiKey);
+
+    return connection;
+  }
+
+  private void disconnectQuietly(XMPPTCPConnection connection) {
+    try {
+      connection.disconnect();
+    } catch (SmackException.NotConnectedException e) {
+      logger.warn("GCMClient", "Disconnect attempt", e);
+    }
+  }
+
+  private static class GcmPacketExtensionProvider implements PacketExtensionProvider {
+    @Override
+    public PacketExtension parseExtension(XmlPullParser xmlPullParser) throws Exception {
+      String json = xmlPullParser.nextText();
+      return new GcmPacketExtension(json);
+    }
+  }
+
+  private static final class GcmPacketExtension extends DefaultPacketExtension {
+
+    private final String json;
+
+    public GcmPacketExtension(String json) {
+      super(GCM_ELEMENT_NAME, GCM_NAMESPACE);
+      this.json = json;
+    }
+
+    public String getJson() {
+      return json;
+    }
+
+    @Override
+    public String toXML() {
+      return String.format("<%s xmlns=\"%s\">%s</%s>", GCM_ELEMENT_NAME, GCM_NAMESPACE,
+                           StringUtils.escapeForXML(json), GCM_ELEMENT_NAME);
+    }
+
+    public Packet toPacket() {
+      Message message = new Message();
+      message.addExtension(this);
+      return message;
+    }
+  }
+
+  /**
+   * A stanza that was encoded ahead of time, written as is.
+   */
+  private static final class EncodedStanza extends Packet {
+
+    private final String stanza;
+
+    private EncodedStanza(String stanza) {
+      this.stanza = stanza;
+    }
+
+    @Override
+    public CharSequence toXML() {
+      return stanza;
+    }
+  }
+
+  private class LoggingConnectionListener implements ConnectionListener {
+
+    private final XMPPTCPConnection connection;
+
+    private LoggingConnectionListener(XMPPTCPConnection connection) {
+      this.connection = connection;
+    }
+
+    @Override
+    public void connected(XMPPConnection xmppConnection) {
+      logger.warn("GCM XMPP " + name + " Connected.");
+    }
+
+    @Override
+    public void authenticated(XMPPConnection xmppConnection) {
+      logger.warn("GCM XMPP " + name + " Authenticated.");
+      reconnectionSuccessful();
+    }
+
+    @Override
+    public void reconnectionSuccessful() {
+      if (connection != CcsConnection.this.connection) {
+        logger.warn("GCM XMPP " + name + " Closing replaced connection.");
+        disconnectQuietly(connection);
+        return;
+      }
+
+      resendUnacked();
+      listener.onAvailable(CcsConnection.this);
+    }
+
+    @Override
+    public void reconnectionFailed(Exception e) {
+      logger.warn("GCM XMPP " + name + " Reconnection failed!", e);
+
+      if (!stopped && connection == CcsConnection.this.connection) {
+        scheduleReconnect();
+      }
+    }
+
+    @Override
+    public void reconnectingIn(int seconds) {
+      logger.warn(String.format("GCM XMPP %s Reconnecting in %d secs", name, seconds));
+    }
+
+    @Override
+    public void connectionClosedOnError(Exception e) {
+      logger.warn("GCM XMPP " + name + " Connection closed on error. Pending Size: " + unacked.size());
+
+      if (connection == drainingConnection) {
+        retireDraining();
+      }
+    }
+
+    @Override
+    public void connectionClosed() {
+      logger.warn("GCM XMPP " + name + " Connection closed. Pending Size: " + unacked.size());
+
+      if (connection == drainingConnection) {
+        retireDraining();
+      }
+
+      if (!stopped && connection == CcsConnection.this.connection) {
+        scheduleReconnect();
+      }
+    }
+  }
+}
@@ -0,0 +1,55 @@
+package org.whispersystems.pushserver.senders;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import org.whispersystems.pushserver.entities.GcmMessage;
+import org.whispersystems.pushserver.entities.PushResult;
+
+/**
+ * Folds bursts of GCM pushes to the same registration into a single push.
+ * Call and RedPhone pushes bypass the window and are sent immediately.
+ */
+public class CoalescingGCMSender implements GCMSender {
+
+  private final GCMSender                 delegate;
+  private final PushCoalescer<GcmMessage> coalescer;
+
+  public CoalescingGCMSender(final GCMSender delegate, long windowMillis) {
+    this.delegate  = delegate;
+    this.coalescer = new PushCoalescer<>("gcm", windowMillis, new PushCoalescer.Delivery<GcmMessage>() {
+      @Override
+      public ListenableFuture<PushResult> deliver(GcmMessage message) {
+        return delegate.sendMessage(message);
+      }
+    });
+  }
+
+  @Override
+  public ListenableFuture<PushResult> sendMessage(GcmMessage message) {
+    if (message.isCall() || message.isRedphone()) {
+      return delegate.sendMessage(message);
+    }
+
+    return coalescer.coalesce(getDestination(message), message);
+  }
+
+  @Override
+  public void start() throws Exception {
+    delegate.start();
+  }
+
+  @Override
+  public void warmUp() throws Exception {
+    delegate.warmUp();
+  }
+
+  @Override
+  public void stop() throws Exception {
+    coalescer.stop();
+    delegate.stop();
+  }
+
+  private String getDestination(GcmMessage message) {
+    String type = message.isReceipt() ? "receipt" : message.isNotification() ? "notification" : "message";
+    return message.getGcmId() + ":" + type;
+  }
+}
@@ -0,0 +1,158 @@
+package org.whispersystems.pushserver.senders;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.whispersystems.pushserver.config.DeduplicationConfiguration;
+import org.whispersystems.pushserver.entities.ApnMessage;
+import org.whispersystems.pushserver.entities.GcmMessage;
+import org.whispersystems.pushserver.util.Constants;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisException;
+
+/**
+ * Suppresses pushes identical to one already sent within a short window.
+ *
+ * Messages are reduced to a 64-bit hash of everything that is sent to the
+ * provider.  Recently seen hashes are kept in a bounded local cache and, when
+ * configured, also claimed in Redis so that duplicates arriving at different
+ * nodes are caught as well.
+ */
+public class DuplicatePushFilter {
+
+  private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+  private final Logger logger = LoggerFactory.getLogger(DuplicatePushFilter.class);
+
+  private final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
+  private final Meter          apnDuplicates  = metricRegistry.meter(name(getClass(), "apn", "duplicate"));
+  private final Meter          gcmDuplicates  = metricRegistry.meter(name(getClass(), "gcm", "duplicate"));
+
+  private final JedisPool         jedisPool;
+  private final Cache<Long, Long> recent;
+  private final boolean           enabled;
+  private final boolean           redis;
+  private final int               windowSeconds;
+
+  public DuplicatePushFilter(DeduplicationConfiguration configuration, JedisPool jedisPool) {
+    this.jedisPool     = jedisPool;
+    this.enabled       = configuration.isEnabled();
+    this.redis         = configuration.isRedis();
+    this.windowSeconds = configuration.getWindowSeconds();
+    this.recent        = CacheBuilder.newBuilder()
+                                     .maximumSize(configuration.getMaxEntries())
+                                     .expireAfterWrite(windowSeconds, TimeUnit.SECONDS)
+                                     .build();
+  }
+
+  public boolean isDuplicate(ApnMessage message) {
+    if (!enabled) return false;
+
+    if (isDuplicate(hash(message))) {
+      apnDuplicates.mark();
+      return true;
+    }
+
+    return false;
+  }
+
+  public boolean isDuplicate(GcmMessage message) {
+    if (!enabled) return false;
+
+    if (isDuplicate(hash(message))) {
+      gcmDuplicates.mark();
+      return true;
+    }
+
+    return false;
+  }
+
+  public void forget(ApnMessage message) {
+    if (enabled) forget(hash(message));
+  }
+
+  public void forget(GcmMessage message) {
+    if (enabled) forget(hash(message));
+  }
+
+  private boolean isDuplicate(long hash) {
+    if (recent.asMap().putIfAbsent(hash, System.currentTimeMillis()) != null) {
+      return true;
+    }
+
+    if (redis) {
+      try (Jedis jedis = jedisPool.getResource()) {
+        return jedis.set(getRedisKey(hash), "1", "NX", "EX", windowSeconds) == null;
+      } catch (JedisException e) {
+        logger.warn("Redis deduplication failed", e);
+      }
+    }
+
+    return false;
+  }
+
+  private void forget(long hash) {
+    recent.invalidate(hash);
+
+    if (redis) {
+      try (Jedis jedis = jedisPool.getResource()) {
+        jedis.del(getRedisKey(hash));
+      } catch (JedisException e) {
+        logger.warn("Redis deduplication failed", e);
+      }
+    }
+  }
+
+  private String getRedisKey(long hash) {
+    return "DEDUPE-" + Long.toHexString(hash);
+  }
+
+  private static long hash(ApnMessage message) {
+    Hasher hasher = HASH_FUNCTION.newHasher().putChar('a');
+
+    putString(hasher, message.getApnId());
+    putString(hasher, message.getNumber());
+    putString(hasher, message.getMessage());
+
+    return hasher.putInt(message.getDeviceId())
+                 .putBoolean(message.isVoip())
+                 .putLong(message.getExpirationTime())
+                 .hash()
+                 .asLong();
+  }
+
+  private static long hash(GcmMessage message) {
+    Hasher hasher = HASH_FUNCTION.newHasher().putChar('g');
+
+    putString(hasher, message.getGcmId());
+    putString(hasher, message.getNumber());
+    putString(hasher, message.getMessage());
+
+    return hasher.putInt(message.getDeviceId())
+                 .putBoolean(message.isReceipt())
+                 .putBoolean(message.isNotification())
+                 .putBoolean(message.isRedphone())
+                 .putBoolean(message.isCall())
+                 .hash()
+                 .asLong();
+  }
+
+  private static void putString(Hasher hasher, String value) {
+    String nonNull = Strings.nullToEmpty(value);
+    hasher.putInt(nonNull.length()).putString(nonNull, Charsets.UTF_8);
+  }
+}
@@ -0,0 +1,387 @@
+package org.whispersystems.pushserver.senders;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.whispersystems.pushserver.config.ExecutorConfiguration;
+import org.whispersystems.pushserver.config.FcmConfiguration;
+import org.whispersystems.pushserver.config.FcmProjectConfiguration;
+import org.whispersystems.pushserver.config.GcmConfiguration;
+import org.whispersystems.pushserver.config.RetryConfiguration;
+import org.whispersystems.pushserver.entities.GcmMessage;
+import org.whispersystems.pushserver.entities.PushResult;
+import org.whispersystems.pushserver.entities.UnregisteredEvent;
+import org.whispersystems.pushserver.util.Constants;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Dispatcher;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * Sends pushes through the FCM HTTP v1 API.
+ *
+ * Both projects share one client, so pushes to either are multiplexed as
+ * streams over the same HTTP/2 connection to FCM rather than each project
+ * holding a pool of its own.  Call pushes are queued on a dispatcher of their
+ * own, so they never wait for a free stream behind a backlog of messages and
+ * receipts.  Requests are authorized with an OAuth access
+ * token per project, which is refreshed in the background well before it
+ * expires.
+ */
+public class FcmSender implements GCMSender {
+
+  private static final MediaType JSON = MediaType.parse("application/json; charset=UTF-8");
+
+  private final Logger logger = LoggerFactory.getLogger(FcmSender.class);
+
+  private final MetricRegistry metricRegistry   = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
+  private final Meter          success          = metricRegistry.meter(name(getClass(), "sent", "success"));
+  private final Meter          failure          = metricRegistry.meter(name(getClass(), "sent", "failure"));
+  private final Meter          unregistered     = metricRegistry.meter(name(getClass(), "sent", "unregistered"));
+  private final Meter          transientFailure = metricRegistry.meter(name(getClass(), "sent", "transient"));
+
+  private final OkHttpClient             client;
+  private final OkHttpClient             callClient;
+  private final String                   endpoint;
+  private final Project                  signal;
+  private final Project                  redphone;
+  private final UnregisteredQueue        unregisteredQueue;
+  private final RetryScheduler           retryScheduler;
+  private final InstrumentedExecutor     callbackExecutor;
+  private final ScheduledExecutorService tokenRefresher;
+  private final boolean                  collapse;
+
+  public FcmSender(UnregisteredQueue unregisteredQueue, GcmConfiguration configuration, boolean collapse)
+      throws GeneralSecurityException
+  {
+    this(unregisteredQueue, configuration.getFcm(), configuration.getCallbacks(), configuration.getRetries(), collapse,
+         new OkHttpClient.Builder().protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1)));
+  }
+
+  @VisibleForTesting
+  public FcmSender(UnregisteredQueue unregisteredQueue, FcmConfiguration configuration,
+                   ExecutorConfiguration callbacks, RetryConfiguration retries,
+                   boolean collapse, OkHttpClient.Builder builder)
+      throws GeneralSecurityException
+  {
+    this.client            = builder.readTimeout(30, TimeUnit.SECONDS).build();
+    this.callClient        = client.newBuilder().dispatcher(new Dispatcher()).build();
+    this.endpoint          = configuration.getEndpoint();
+    this.signal            = new Project("signal", configuration.getSignal(), client);
+    this.redphone          = new Project("redphone", configuration.getRedphone(), client);
+    this.unregisteredQueue = unregisteredQueue;
+    this.retryScheduler    = new RetryScheduler("fcm", retries);
+    this.callbackExecutor  = new InstrumentedExecutor(name(FcmSender.class, "callbacks"), "fcm-callback",
+                                                      callbacks.getWorkers(), callbacks.getQueueSize());
+    this.tokenRefresher    = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("fcm-token")
+                                                                                                  .setDaemon(true)
+                                                                                                  .build());
+    this.collapse          = collapse;
+
+    for (OkHttpClient httpClient : Arrays.asList(client, callClient)) {
+      httpClient.dispatcher().setMaxRequests(configuration.getMaxConcurrentStreams());
+      httpClient.dispatcher().setMaxRequestsPerHost(configuration.getMaxConcurrentStreams());
+    }
+  }
+
+  @Override
+  public ListenableFuture<PushResult> sendMessage(GcmMessage message) {
+    SettableFuture<PushResult> result = SettableFuture.create();
+    attempt(message, 1, result);
+
+    return result;
+  }
+
+  private void attempt(final GcmMessage message, final int attempt, final SettableFuture<PushResult> result) {
+    final Project          project = message.isRedphone() ? redphone : signal;
+    final Optional<String> token   = project.token.get();
+
+    if (!token.isPresent()) {
+      retryOrFail(message, attempt, 0, "No access token", result);
+      return;
+    }
+
+    Request request = new Request.Builder().url(endpoint + "/v1/projects/" + project.projectId + "/messages:send")
+                                           .header("Authorization", "Bearer " + token.get())
+                                           .post(RequestBody.create(JSON, createBody(message)))
+                                           .build();
+
+    getClient(message).newCall(request).enqueue(new Callback() {
+      @Override
+      public void onFailure(Call call, final IOException e) {
+        callbackExecutor.execute(new Runnable() {
+          @Override
+          public void run() {
+            logger.warn("FCM request failed: " + e);
+            retryOrFail(message, attempt, 0, e.getMessage(), result);
+          }
+        });
+      }
+
+      @Override
+      public void onResponse(Call call, Response response) throws IOException {
+        final int    status;
+        final String body;
+        final long   retryAfterMillis;
+
+        try (ResponseBody responseBody = response.body()) {
+          status           = response.code();
+          body             = responseBody == null ? null : responseBody.string();
+          retryAfterMillis = getRetryAfterMillis(response.header("Retry-After"));
+        }
+
+        callbackExecutor.execute(new Runnable() {
+          @Override
+          public void run() {
+            handleResponse(project, message, attempt, status, body, retryAfterMillis, result);
+          }
+        });
+      }
+    });
+  }
+
+  private void handleResponse(Project project, GcmMessage message, int attempt,
+                              int status, String body, long retryAfterMillis,
+                              SettableFuture<PushResult> result)
+  {
+    if (status == 200) {
+      success.mark();
+      result.set(PushResult.success());
+      return;
+    }
+
+    String errorCode = getErrorCode(body);
+
+    if ("UNREGISTERED".equals(errorCode) || (status == 400 && isInvalidToken(body))) {
+      logger.warn("Got FCM unregistered notice! " + message.getGcmId());
+      unregisteredQueue.put(new UnregisteredEvent(message.getGcmId(), null, message.getNumber(),
+                                                  message.getDeviceId(), System.currentTimeMillis()));
+      unregistered.mark();
+      result.set(PushResult.unregistered());
+    } else if (status == 401) {
+      logger.warn("FCM rejected access token for " + project.name);
+      project.token.refreshSoon(tokenRefresher);
+      retryOrFail(message, attempt, retryAfterMillis, errorCode, result);
+    } else if (status == 429 || status >= 500) {
+      retryOrFail(message, attempt, retryAfterMillis, errorCode, result);
+    } else {
+      logger.warn(String.format("Unrecoverable Error ::: (error=%s), (status=%d), (gcm_id=%s), " +
+                                "(destination=%s), (device_id=%d)",
+                                errorCode, status, message.getGcmId(), message.getNumber(),
+                                message.getDeviceId()));
+      failure.mark();
+      result.set(PushResult.failure(errorCode));
+    }
+  }
+
+  private void retryOrFail(final GcmMessage message, final int attempt, long retryAfterMillis,
+                           final String error, final SettableFuture<PushResult> result)
+  {
+    boolean retried = retryScheduler.retry(attempt, retryAfterMillis, new RetryScheduler.Task() {
+      @Override
+      public void retry() {
+        attempt(message, attempt + 1, result);
+      }
+
+      @Override
+      public void abandon() {
+        transientFailure.mark();
+        result.set(PushResult.transientFailure(error));
+      }
+    });
+
+    if (!retried) {
+      transientFailure.mark();
+      result.set(PushResult.transientFailure(error));
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private String createBody(GcmMessage message) {
+    String key = getDataKey(message);
+
+    JSONObject data = new JSONObject();
+    data.put(key, message.getMessage());
+
+    JSONObject android = new JSONObject();
+    android.put("priority", "high");
+
+    if (collapse && !message.isCall() && !message.isRedphone()) {
+      android.put("collapse_key", key);
+    }
+
+    JSONObject body = new JSONObject();
+    body.put("token", message.getGcmId());
+    body.put("android", android);
+    body.put("data", data);
+
+    JSONObject request = new JSONObject();
+    request.put("message", body);
+
+    return request.toJSONString();
+  }
+
+  @Override
+  public void start() {
+    signal.token.start(tokenRefresher);
+    redphone.token.start(tokenRefresher);
+  }
+
+  @Override
+  public void warmUp() throws Exception {
+    signal.token.refresh();
+    redphone.token.refresh();
+
+    client.newCall(new Request.Builder().url(endpoint + "/").build()).execute().close();
+  }
+
+  @Override
+  public void stop() throws IOException {
+    this.retryScheduler.stop();
+    this.tokenRefresher.shutdownNow();
+
+    this.client.dispatcher().executorService().shutdown();
+    this.callClient.dispatcher().executorService().shutdown();
+
+    try {
+      this.client.dispatcher().executorService().awaitTermination(5, TimeUnit.SECONDS);
+      this.callClient.dispatcher().executorService().awaitTermination(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    this.client.connectionPool().evictAll();
+    this.callbackExecutor.shutdown();
+
+    try {
+      if (!this.callbackExecutor.awaitTermination(5, TimeUnit.SECONDS)) {
+        logger.warn("FCM callbacks still pending at shutdown");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private OkHttpClient getClient(GcmMessage message) {
+    return PushLane.of(message) == PushLane.CALL ? callClient : client;
+  }
+
+  private String getDataKey(GcmMessage message) {
+    if      (message.isRedphone())     return "signal";
+    else if (message.isReceipt())      return "receipt";
+    else if (message.isNotification()) return "notification";
+    else if (message.isCall())         return "call";
+    else                               return "message";
+  }
+
+  private static long getRetryAfterMillis(String retryAfter) {
+    if (retryAfter == null) return 0;
+
+    try {
+      return TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter.trim()));
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  private static String getErrorCode(String body) {
+    JSONObject error = getError(body);
+
+    if (error == null) {
+      return null;
+    }
+
+    Object details = error.get("details");
+
+    if (details instanceof JSONArray) {
+      for (Object detail : (JSONArray) details) {
+        if (detail instanceof JSONObject && ((JSONObject) detail).get("errorCode") != null) {
+          return ((JSONObject) detail).get("errorCode").toString();
+        }
+      }
+    }
+
+    Object status = error.get("status");
+    return status == null ? null : status.toString();
+  }
+
+  /**
+   * INVALID_ARGUMENT covers any bad field in the request, so it only means
+   * the token is bad when a field violation names message.token.  Anything
+   * else, a bad payload say, must not unregister a device.
+   */
+  private static boolean isInvalidToken(String body) {
+    JSONObject error = getError(body);
+
+    if (error == null || !(error.get("details") instanceof JSONArray)) {
+      return false;
+    }
+
+    for (Object detail : (JSONArray) error.get("details")) {
+      if (!(detail instanceof JSONObject) || !(((JSONObject) detail).get("fieldViolations") instanceof JSONArray)) {
+        continue;
+      }
+
+      for (Object violation : (JSONArray) ((JSONObject) detail).get("fieldViolations")) {
+        if (violation instanceof JSONObject && "message.token".equals(((JSONObject) violation).get("field"))) {
+          return true;
+        }
+      }
+    }
+
+    return false;
+  }
+
+  private static JSONObject getError(String body) {
+    if (body == null || body.isEmpty()) {
+      return null;
+    }
+
+    Object parsed = JSONValue.parse(body);
+
+    if (!(parsed instanceof JSONObject) || !(((JSONObject) parsed).get("error") instanceof JSONObject)) {
+      return null;
+    }
+
+    return (JSONObject) ((JSONObject) parsed).get("error");
+  }
+
+  private static class Project {
+    private final String         name;
+    private final String         projectId;
+    private final FcmAccessToken token;
+
+    private Project(String name, FcmProjectConfiguration configuration, OkHttpClient client)
+        throws GeneralSecurityException
+    {
+      this.name      = name;
+      this.projectId = configuration.getProjectId();
+      this.token     = new FcmAccessToken(name, client, configuration.getServiceAccount());
+    }
+  }
+}
@@ -1,9 +1,16 @@
 package org.whispersystems.pushserver.senders;
 
+import com.google.common.util.concurrent.ListenableFuture;
 import org.whispersystems.pushserver.entities.GcmMessage;
+import org.whispersystems.pushserver.entities.PushResult;
 
 import io.dropwizard.lifecycle.Managed;
 
-public interface GCMSender extends Managed {
-  public void sendMessage(GcmMessage message);
+/**
+ * Every GCM sender is {@link Warmable}, so whichever implementation is
+ * configured, and whatever wraps it, is only reported ready once the
+ * connections that will carry its pushes are up.
+ */
+public interface GCMSender extends Managed, Warmable {
+  public ListenableFuture<PushResult> sendMessage(GcmMessage message);
 }
@@ -0,0 +1,192 @@
+package org.whispersystems.pushserver.senders;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.whispersystems.gcm.server.AuthenticationFailedException;
+import org.whispersystems.gcm.server.InvalidRequestException;
+import org.whispersystems.pushserver.util.Constants;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.ResponseBody;
+
+/**
+ * Sends one GCM message to many registration ids in a single request.  The
+ * bundled GCM client only addresses a single destination and reads back the
+ * first result, so multicast goes over its own connection pool.
+ *
+ * Each request completes with one {@link Response} per registration id, in the
+ * order they were given.  Anything other than a 200 fails the whole request,
+ * with a {@link TransientPushFailureException} carrying any Retry-After when
+ * GCM is overloaded or unavailable.
+ */
+public class GcmMulticastSender {
+
+  public static final String PRODUCTION_URL = "https://android.googleapis.com/gcm/send";
+
+  private static final MediaType JSON = MediaType.parse("application/json");
+
+  private final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
+  private final Meter          requests       = metricRegistry.meter(name(GcmMulticastSender.class, "requests"));
+  private final Meter          recipients     = metricRegistry.meter(name(GcmMulticastSender.class, "recipients"));
+
+  private final OkHttpClient client;
+  private final String       url;
+
+  public GcmMulticastSender(String url, int maxConcurrentRequests) {
+    this.url    = url;
+    this.client = new OkHttpClient.Builder().readTimeout(30, TimeUnit.SECONDS).build();
+
+    this.client.dispatcher().setMaxRequests(maxConcurrentRequests);
+    this.client.dispatcher().setMaxRequestsPerHost(maxConcurrentRequests);
+  }
+
+  @SuppressWarnings("unchecked")
+  public ListenableFuture<List<Response>> send(String apiKey, final List<String> registrationIds,
+                                               String dataKey, String payload, String collapseKey)
+  {
+    final SettableFuture<List<Response>> result = SettableFuture.create();
+
+    JSONObject data = new JSONObject();
+    data.put(dataKey, payload);
+
+    JSONArray destinations = new JSONArray();
+    destinations.addAll(registrationIds);
+
+    JSONObject message = new JSONObject();
+    message.put("registration_ids", destinations);
+    message.put("data", data);
+    message.put("priority", "high");
+
+    if (collapseKey != null) {
+      message.put("collapse_key", collapseKey);
+    }
+
+    Request request = new Request.Builder().url(url)
+                                           .header("Authorization", "key=" + apiKey)
+                                           .post(RequestBody.create(JSON, message.toJSONString()))
+                                           .build();
+
+    requests.mark();
+    recipients.mark(registrationIds.size());
+
+    client.newCall(request).enqueue(new Callback() {
+      @Override
+      public void onFailure(Call call, IOException e) {
+        result.setException(e);
+      }
+
+      @Override
+      public void onResponse(Call call, okhttp3.Response response) {
+        long retryAfterMillis = getRetryAfterMillis(response.header("Retry-After"));
+
+        try (ResponseBody body = response.body()) {
+          if (response.code() == 429 || response.code() >= 500) {
+            result.setException(new TransientPushFailureException("Bad status: " + response.code(), retryAfterMillis));
+          } else if (response.code() == 401) {
+            result.setException(new AuthenticationFailedException());
+          } else if (response.code() == 400) {
+            result.setException(new InvalidRequestException());
+          } else if (response.code() != 200) {
+            result.setException(new UnexpectedResponseException("Bad status: " + response.code()));
+          } else {
+            result.set(parseResults(body == null ? null : body.string(), registrationIds.size(), retryAfterMillis));
+          }
+        } catch (IOException | RuntimeException e) {
+          result.setException(e);
+        }
+      }
+    });
+
+    return result;
+  }
+
+  public void stop() {
+    client.dispatcher().executorService().shutdown();
+    client.connectionPool().evictAll();
+  }
+
+  private List<Response> parseResults(String body, int expected, long retryAfterMillis) throws IOException {
+    Object parsed = body == null ? null : JSONValue.parse(body);
+
+    if (!(parsed instanceof JSONObject) || !(((JSONObject) parsed).get("results") instanceof JSONArray)) {
+      throw new UnexpectedResponseException("Malformed response");
+    }
+
+    JSONArray results = (JSONArray) ((JSONObject) parsed).get("results");
+
+    if (results.size() != expected) {
+      throw new UnexpectedResponseException("Expected " + expected + " results, got " + results.size());
+    }
+
+    List<Response> responses = new ArrayList<>(results.size());
+
+    for (Object entry : results) {
+      JSONObject json = entry instanceof JSONObject ? (JSONObject) entry : new JSONObject();
+      responses.add(new Response((String) json.get("message_id"),
+                                 (String) json.get("registration_id"),
+                                 (String) json.get("error"),
+                                 retryAfterMillis));
+    }
+
+    return responses;
+  }
+
+  private static long getRetryAfterMillis(String retryAfter) {
+    if (retryAfter == null) {
+      return 0;
+    }
+
+    try {
+      return TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter.trim()));
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  public static class Response {
+    private final String messageId;
+    private final String canonicalRegistrationId;
+    private final String error;
+    private final long   retryAfterMillis;
+
+    public Response(String messageId, String canonicalRegistrationId, String error, long retryAfterMillis) {
+      this.messageId               = messageId;
+      this.canonicalRegistrationId = canonicalRegistrationId;
+      this.error                   = error;
+      this.retryAfterMillis        = retryAfterMillis;
+    }
+
+    public String getMessageId() {
+      return messageId;
+    }
+
+    public String getCanonicalRegistrationId() {
+      return canonicalRegistrationId;
+    }
+
+    public String getError() {
+      return error;
+    }
+
+    public long getRetryAfterMillis() {
+      return retryAfterMillis;
+    }
+  }
+}
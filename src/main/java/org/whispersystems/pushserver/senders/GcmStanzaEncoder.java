@@ -0,0 +1,100 @@
+package org.whispersystems.pushserver.senders;
+
+/**
+ * Encodes a downstream CCS message straight into its XMPP stanza.
+ *
+ * The JSON is written and escaped for XML in a single pass into a buffer
+ * that belongs to the calling thread, so the only allocation per message is
+ * the finished stanza itself.  Element text only needs &amp;, &lt; and &gt;
+ * escaped, which leaves the JSON's quotes as they are.
+ */
+public class GcmStanzaEncoder {
+
+  private static final String PREFIX = "<message><gcm xmlns=\"google:mobile:data\">";
+  private static final String SUFFIX = "</gcm></message>";
+
+  private static final int INITIAL_CAPACITY = 4096;
+  private static final int MAX_RETAINED     = 64 * 1024;
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private static final ThreadLocal<StringBuilder> BUFFER = new ThreadLocal<StringBuilder>() {
+    @Override
+    protected StringBuilder initialValue() {
+      return new StringBuilder(INITIAL_CAPACITY);
+    }
+  };
+
+  /**
+   * @param collapseKey the collapse key, or null for none.
+   */
+  public static String encode(String to, String messageId, String dataKey, String payload, String collapseKey) {
+    StringBuilder buffer = BUFFER.get();
+    buffer.setLength(0);
+
+    buffer.append(PREFIX);
+    buffer.append('{');
+    appendField(buffer, "to", to).append(',');
+    appendField(buffer, "message_id", messageId).append(',');
+    appendString(buffer, "data").append(":{");
+    appendField(buffer, "type", "message").append(',');
+    appendField(buffer, dataKey, payload).append('}');
+
+    if (collapseKey != null) {
+      buffer.append(',');
+      appendField(buffer, "collapse_key", collapseKey);
+    }
+
+    buffer.append('}');
+    buffer.append(SUFFIX);
+
+    String stanza = buffer.toString();
+
+    if (buffer.capacity() > MAX_RETAINED) {
+      BUFFER.remove();
+    }
+
+    return stanza;
+  }
+
+  private static StringBuilder appendField(StringBuilder buffer, String key, String value) {
+    appendString(buffer, key).append(':');
+
+    if (value == null) return buffer.append("null");
+    else               return appendString(buffer, value);
+  }
+
+  private static StringBuilder appendString(StringBuilder buffer, String value) {
+    buffer.append('"');
+
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+
+      switch (c) {
+        case '"'  : buffer.append("\\\"");  break;
+        case '\\' : buffer.append("\\\\");  break;
+        case '\b' : buffer.append("\\b");   break;
+        case '\f' : buffer.append("\\f");   break;
+        case '\n' : buffer.append("\\n");   break;
+        case '\r' : buffer.append("\\r");   break;
+        case '\t' : buffer.append("\\t");   break;
+        case '&'  : buffer.append("&amp;"); break;
+        case '<'  : buffer.append("&lt;");  break;
+        case '>'  : buffer.append("&gt;");  break;
+        default:
+          if (c < 0x20 || c == 0x7f || c == 0xfffe || c == 0xffff) appendUnicodeEscape(buffer, c);
+          else                                                       buffer.append(c);
+      }
+    }
+
+    return buffer.append('"');
+  }
+
+  private static void appendUnicodeEscape(StringBuilder buffer, char c) {
+    buffer.append("\\u")
+          .append(HEX[(c >> 12) & 0xf])
+          .append(HEX[(c >> 8) & 0xf])
+          .append(HEX[(c >> 4) & 0xf])
+          .append(HEX[c & 0xf]);
+  }
+}
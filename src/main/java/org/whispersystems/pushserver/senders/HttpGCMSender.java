@@ -3,28 +3,49 @@ package org.whispersystems.pushserver.senders;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.SharedMetricRegistries;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Function;
+import com.google.common.base.Optional;
+import com.google.common.util.concurrent.AsyncFunction;
 import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.FutureFallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.whispersystems.gcm.server.Message;
 import org.whispersystems.gcm.server.Result;
 import org.whispersystems.gcm.server.Sender;
+import org.whispersystems.gcm.server.ServerFailedException;
+import org.whispersystems.pushserver.config.AdaptiveLimitConfiguration;
+import org.whispersystems.pushserver.config.GcmConfiguration;
+import org.whispersystems.pushserver.config.MulticastConfiguration;
 import org.whispersystems.pushserver.entities.GcmMessage;
+import org.whispersystems.pushserver.entities.PushResult;
 import org.whispersystems.pushserver.entities.UnregisteredEvent;
 import org.whispersystems.pushserver.util.Constants;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import static com.codahale.metrics.MetricRegistry.name;
 
 public class HttpGCMSender implements GCMSender {
 
+  /**
+   * Registration id used to open connections at startup.  GCM answers it
+   * with InvalidRegistration, so nothing is delivered.
+   */
+  private static final String WARM_UP_DESTINATION = "warm-up";
+
   private final Logger logger = LoggerFactory.getLogger(HttpGCMSender.class);
 
   private final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
@@ -41,95 +62,325 @@ public class HttpGCMSender implements GCMSender {
     put("signal", metricRegistry.meter(name(getClass(), "outbound", "signal")));
   }};
 
-  private final Sender            signalSender;
-  private final Sender            redphoneSender;
-  private final UnregisteredQueue unregisteredQueue;
-  private       ExecutorService   executor;
+  private final AdaptiveSender     signalSender;
+  private final AdaptiveSender     signalCallSender;
+  private final AdaptiveSender     redphoneSender;
+  private final UnregisteredQueue  unregisteredQueue;
+  private final GcmMulticastSender multicastSender;
+  private final RetryScheduler     retryScheduler;
+  private final String             signalKey;
+  private final boolean            collapse;
+
+  private final Optional<PushBatcher<GcmMessage>> batcher;
+
+  /**
+   * Results are mapped, and unregistrations written to Redis, on the bounded
+   * worker pool of the push's {@link PushLane}, so a wave of receipt
+   * unregistrations can't hold up the results of call pushes.
+   */
+  private final LaneExecutor laneExecutor;
+
+  public HttpGCMSender(UnregisteredQueue unregisteredQueue, LaneExecutor laneExecutor,
+                       GcmConfiguration configuration, boolean collapse)
+  {
+    AdaptiveLimitConfiguration concurrency = configuration.getConcurrency();
+    MulticastConfiguration     multicast   = configuration.getMulticast();
 
-  public HttpGCMSender(UnregisteredQueue unregisteredQueue, String signalKey, String redphoneKey) {
     this.unregisteredQueue = unregisteredQueue;
-    this.signalSender      = new Sender(signalKey, 50);
-    this.redphoneSender    = new Sender(redphoneKey, 50);
+    this.laneExecutor      = laneExecutor;
+    this.signalSender      = new AdaptiveSender("signal", new Sender(configuration.getApiKey(), 0), concurrency);
+    this.signalCallSender  = new AdaptiveSender("signal_call", new Sender(configuration.getApiKey(), 0), concurrency);
+    this.redphoneSender    = new AdaptiveSender("redphone", new Sender(configuration.getRedphoneApiKey(), 0), concurrency);
+    this.retryScheduler    = new RetryScheduler("gcm", configuration.getRetries());
+    this.multicastSender   = new GcmMulticastSender(GcmMulticastSender.PRODUCTION_URL, multicast.getMaxConcurrentRequests());
+    this.signalKey         = configuration.getApiKey();
+    this.collapse          = collapse;
+
+    if (multicast.isEnabled()) {
+      this.batcher = Optional.of(new PushBatcher<>("gcm", multicast.getWindowMillis(), multicast.getMaxRecipients(), new PushBatcher.Delivery<GcmMessage>() {
+        @Override
+        public ListenableFuture<List<PushResult>> deliver(List<GcmMessage> messages) {
+          return sendBatch(messages);
+        }
+      }));
+    } else {
+      this.batcher = Optional.absent();
+    }
   }
 
   @Override
-  public void sendMessage(GcmMessage message) {
+  public ListenableFuture<PushResult> sendMessage(GcmMessage message) {
+    String key = getDataKey(message);
+    markOutboundMeter(key);
+
+    if (batcher.isPresent() && !message.isCall() && !message.isRedphone()) {
+      return batcher.get().add(key + ":" + message.getMessage(), message);
+    }
+
+    return sendSingle(message, key);
+  }
+
+  private ListenableFuture<PushResult> sendSingle(GcmMessage message, String key) {
+    SettableFuture<PushResult> pushResult = SettableFuture.create();
+    attempt(message, key, 1, pushResult);
+
+    return pushResult;
+  }
+
+  private void attempt(final GcmMessage message, final String key, final int attempt,
+                       final SettableFuture<PushResult> pushResult)
+  {
     Message.Builder builder = Message.newBuilder()
                                      .withDestination(message.getGcmId())
                                      .withPriority("high");
 
-    ListenableFuture<Result> future;
-
-    if (!message.isRedphone()) {
-      String  key     = message.isReceipt() ? "receipt" : message.isNotification() ? "notification" : message.isCall() ? "call" : "message";
-      Message request = builder.withDataPart(key, message.getMessage()).build();
+    String collapseKey = getCollapseKey(message, key);
 
-      future = signalSender.send(request, message);
-      markOutboundMeter(key);
-    } else {
-      Message request = builder.withDataPart("signal", message.getMessage()).build();
-
-      future = redphoneSender.send(request, message);
-      markOutboundMeter("signal");
+    if (collapseKey != null) {
+      builder.withCollapseKey(collapseKey);
     }
 
+    Message                  request = builder.withDataPart(key, message.getMessage()).build();
+    ListenableFuture<Result> future  = getSender(message).send(request, message);
+
     Futures.addCallback(future, new FutureCallback<Result>() {
       @Override
       public void onSuccess(Result result) {
-        if (result.isUnregistered() || result.isInvalidRegistrationId()) {
-          handleBadRegistration(result);
-        } else if (result.hasCanonicalRegistrationId()) {
-          handleCanonicalRegistrationId(result);
-        } else if (!result.isSuccess()) {
-          handleGenericError(result);
-        } else {
-          success.mark();
+        if (isRetryable(result.getError()) && retry(message, key, attempt, 0, pushResult)) {
+          return;
         }
+
+        pushResult.set(handleResult(message, result.getError(), result.getCanonicalRegistrationId()));
       }
 
       @Override
       public void onFailure(Throwable throwable) {
+        if (isRetryable(throwable) && retry(message, key, attempt, getRetryAfterMillis(throwable), pushResult)) {
+          return;
+        }
+
         logger.warn("GCM Failed: " + throwable);
+        pushResult.set(PushResult.transientFailure(throwable.getMessage()));
       }
-    }, executor);
+    }, laneExecutor.getExecutor(PushLane.of(message)));
   }
 
+  private boolean retry(final GcmMessage message, final String key, final int attempt, long retryAfterMillis,
+                        final SettableFuture<PushResult> pushResult)
+  {
+    return retryScheduler.retry(attempt, retryAfterMillis, new RetryScheduler.Task() {
+      @Override
+      public void retry() {
+        attempt(message, key, attempt + 1, pushResult);
+      }
+
+      @Override
+      public void abandon() {
+        pushResult.set(PushResult.transientFailure("Retry abandoned at shutdown"));
+      }
+    });
+  }
+
+  private ListenableFuture<List<PushResult>> sendBatch(final List<GcmMessage> messages) {
+    GcmMessage   first = messages.get(0);
+    final String key   = getDataKey(first);
+
+    if (messages.size() == 1) {
+      return Futures.transform(sendSingle(first, key), new Function<PushResult, List<PushResult>>() {
+        @Override
+        public List<PushResult> apply(PushResult result) {
+          return Collections.singletonList(result);
+        }
+      });
+    }
+
+    List<String> registrationIds = new ArrayList<>(messages.size());
+
+    for (GcmMessage message : messages) {
+      registrationIds.add(message.getGcmId());
+    }
+
+    ListenableFuture<List<GcmMulticastSender.Response>> responses =
+        signalSender.send(new MulticastRequest(registrationIds, key, first.getMessage(), getCollapseKey(first, key)));
+
+    ListenableFuture<List<PushResult>> results = Futures.transform(responses, new AsyncFunction<List<GcmMulticastSender.Response>, List<PushResult>>() {
+      @Override
+      public ListenableFuture<List<PushResult>> apply(List<GcmMulticastSender.Response> responses) {
+        List<ListenableFuture<PushResult>> results = new ArrayList<>(responses.size());
+
+        for (int i = 0; i < responses.size(); i++) {
+          GcmMulticastSender.Response response = responses.get(i);
+          GcmMessage                  message  = messages.get(i);
+
+          if (isRetryable(response.getError())) {
+            SettableFuture<PushResult> retried = SettableFuture.create();
+
+            if (retry(message, key, 1, response.getRetryAfterMillis(), retried)) {
+              results.add(retried);
+              continue;
+            }
+          }
+
+          results.add(Futures.immediateFuture(handleResult(message, response.getError(),
+                                                           response.getCanonicalRegistrationId())));
+        }
+
+        return Futures.allAsList(results);
+      }
+    }, laneExecutor.getExecutor(PushLane.of(first)));
+
+    return Futures.withFallback(results, new FutureFallback<List<PushResult>>() {
+      @Override
+      public ListenableFuture<List<PushResult>> create(Throwable throwable) {
+        logger.warn("GCM multicast Failed: " + throwable);
+
+        List<ListenableFuture<PushResult>> results = new ArrayList<>(messages.size());
+        PushResult                         failure = PushResult.transientFailure(throwable.getMessage());
+
+        for (GcmMessage message : messages) {
+          SettableFuture<PushResult> retried = SettableFuture.create();
+
+          if (isRetryable(throwable) && retry(message, key, 1, getRetryAfterMillis(throwable), retried)) {
+            results.add(retried);
+          } else {
+            results.add(Futures.immediateFuture(failure));
+          }
+        }
+
+        return Futures.allAsList(results);
+      }
+    });
+  }
+
+  @Override
+  public void start() {}
+
+  /**
+   * Opens the connections pushes go out on by sending a request that can't be
+   * delivered through each of them.  Any GCM response means the connection and
+   * API key are good; a transport or authentication failure fails the warm-up.
+   */
   @Override
-  public void start() {
-    executor = Executors.newSingleThreadExecutor();
+  public void warmUp() throws Exception {
+    List<ListenableFuture<?>> probes = new ArrayList<>();
+
+    for (AdaptiveSender sender : Arrays.asList(signalSender, signalCallSender, redphoneSender)) {
+      probes.add(sender.send(Message.newBuilder().withDestination(WARM_UP_DESTINATION).build(), null));
+    }
+
+    if (batcher.isPresent()) {
+      probes.add(multicastSender.send(signalKey, Collections.singletonList(WARM_UP_DESTINATION),
+                                      "warm_up", "", null));
+    }
+
+    Futures.allAsList(probes).get(30, TimeUnit.SECONDS);
   }
 
   @Override
   public void stop() throws IOException {
+    if (batcher.isPresent()) {
+      this.batcher.get().stop();
+    }
+
+    this.retryScheduler.stop();
+
     this.signalSender.stop();
+    this.signalCallSender.stop();
     this.redphoneSender.stop();
-    this.executor.shutdown();
+    this.multicastSender.stop();
+  }
+
+  private AdaptiveSender getSender(GcmMessage message) {
+    if      (message.isRedphone()) return redphoneSender;
+    else if (message.isCall())     return signalCallSender;
+    else                           return signalSender;
+  }
+
+  private String getDataKey(GcmMessage message) {
+    if      (message.isRedphone())     return "signal";
+    else if (message.isReceipt())      return "receipt";
+    else if (message.isNotification()) return "notification";
+    else if (message.isCall())         return "call";
+    else                               return "message";
+  }
+
+  private static boolean isRetryable(String error) {
+    return "Unavailable".equals(error) || "InternalServerError".equals(error);
+  }
+
+  /**
+   * Only failures on the provider's side are retried: transport errors, and
+   * 429 or 5xx responses, which the GCM client reports as a
+   * ServerFailedException and multicast as a TransientPushFailureException.
+   * Our own backpressure and responses we can't parse fail immediately.
+   */
+  @VisibleForTesting
+  static boolean isRetryable(Throwable throwable) {
+    if (throwable instanceof SenderOverloadedException) {
+      return false;
+    }
+
+    if (throwable instanceof IOException) {
+      return !(throwable instanceof UnexpectedResponseException) &&
+             !(throwable instanceof JsonProcessingException);
+    }
+
+    return throwable instanceof ServerFailedException ||
+           throwable instanceof TransientPushFailureException;
   }
 
-  private void handleBadRegistration(Result result) {
-    GcmMessage message = (GcmMessage)result.getContext();
+  private static long getRetryAfterMillis(Throwable throwable) {
+    if (throwable instanceof TransientPushFailureException) {
+      return ((TransientPushFailureException) throwable).getRetryAfterMillis();
+    }
+
+    return 0;
+  }
+
+  private String getCollapseKey(GcmMessage message, String key) {
+    return collapse && !message.isCall() && !message.isRedphone() ? key : null;
+  }
+
+  private PushResult handleResult(GcmMessage message, String error, String canonicalRegistrationId) {
+    if ("NotRegistered".equals(error) || "InvalidRegistration".equals(error)) {
+      return handleBadRegistration(message);
+    } else if (error == null && canonicalRegistrationId != null) {
+      return handleCanonicalRegistrationId(message, canonicalRegistrationId);
+    } else if (error != null) {
+      return handleGenericError(message, error);
+    } else {
+      success.mark();
+      return PushResult.success();
+    }
+  }
+
+  private PushResult handleBadRegistration(GcmMessage message) {
     logger.warn("Got GCM unregistered notice! " + message.getGcmId());
     unregisteredQueue.put(new UnregisteredEvent(message.getGcmId(), null, message.getNumber(),
                                                 message.getDeviceId(), System.currentTimeMillis()));
     unregistered.mark();
+
+    return PushResult.unregistered();
   }
 
-  private void handleCanonicalRegistrationId(Result result) {
-    GcmMessage message = (GcmMessage)result.getContext();
+  private PushResult handleCanonicalRegistrationId(GcmMessage message, String canonicalRegistrationId) {
     logger.warn(String.format("Actually received 'CanonicalRegistrationId' ::: (canonical=%s), (original=%s)",
-                              result.getCanonicalRegistrationId(), message.getGcmId()));
-    unregisteredQueue.put(new UnregisteredEvent(message.getGcmId(), result.getCanonicalRegistrationId(),
+                              canonicalRegistrationId, message.getGcmId()));
+    unregisteredQueue.put(new UnregisteredEvent(message.getGcmId(), canonicalRegistrationId,
                                                 message.getNumber(), message.getDeviceId(), System.currentTimeMillis()));
     canonical.mark();
+
+    return PushResult.canonical(canonicalRegistrationId);
   }
 
-  private void handleGenericError(Result result) {
-    GcmMessage message = (GcmMessage)result.getContext();
+  private PushResult handleGenericError(GcmMessage message, String error) {
     logger.warn(String.format("Unrecoverable Error ::: (error=%s), (gcm_id=%s), " +
                               "(destination=%s), (device_id=%d)",
-                              result.getError(), message.getGcmId(), message.getNumber(),
+                              error, message.getGcmId(), message.getNumber(),
                               message.getDeviceId()));
     failure.mark();
+
+    return PushResult.failure(error);
   }
 
   private void markOutboundMeter(String key) {
@@ -138,4 +389,36 @@ public class HttpGCMSender implements GCMSender {
     if (meter != null) meter.mark();
     else               logger.warn("Unknown outbound key: " + key);
   }
+
+  /**
+   * A multicast send, put through the signal sender's adaptive limit so bulk
+   * fan-out backs off along with everything else sent with that key.
+   */
+  private class MulticastRequest implements AdaptiveSender.Request<List<GcmMulticastSender.Response>> {
+    private final List<String> registrationIds;
+    private final String       key;
+    private final String       payload;
+    private final String       collapseKey;
+
+    private MulticastRequest(List<String> registrationIds, String key, String payload, String collapseKey) {
+      this.registrationIds = registrationIds;
+      this.key             = key;
+      this.payload         = payload;
+      this.collapseKey     = collapseKey;
+    }
+
+    @Override
+    public ListenableFuture<List<GcmMulticastSender.Response>> send() {
+      return multicastSender.send(signalKey, registrationIds, key, payload, collapseKey);
+    }
+
+    @Override
+    public boolean isDropped(List<GcmMulticastSender.Response> responses) {
+      for (GcmMulticastSender.Response response : responses) {
+        if (isRetryable(response.getError())) return true;
+      }
+
+      return false;
+    }
+  }
 }
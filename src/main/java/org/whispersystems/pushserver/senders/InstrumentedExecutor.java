@@ -0,0 +1,101 @@
+package org.whispersystems.pushserver.senders;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.RatioGauge;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.codahale.metrics.Timer;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.whispersystems.pushserver.util.Constants;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * A fixed-size worker pool with a bounded queue.  Once the queue is full the
+ * submitting thread runs the task itself, so a backlog slows its producers
+ * down rather than growing without limit.
+ *
+ * Reports queue_depth, queue_latency (time spent waiting for a worker),
+ * utilization (busy workers over pool size) and saturated (tasks the caller
+ * had to run) under the supplied metric prefix.
+ */
+public class InstrumentedExecutor implements Executor {
+
+  private final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
+
+  private final ThreadPoolExecutor executor;
+  private final Timer              queueLatency;
+  private final Meter              saturated;
+
+  public InstrumentedExecutor(String metricPrefix, String threadName, int workers, int queueSize) {
+    this.queueLatency = metricRegistry.timer(name(metricPrefix, "queue_latency"));
+    this.saturated    = metricRegistry.meter(name(metricPrefix, "saturated"));
+    this.executor     = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS,
+                                               new ArrayBlockingQueue<Runnable>(queueSize),
+                                               new ThreadFactoryBuilder().setNameFormat(threadName + "-%d").build(),
+                                               new SaturationPolicy());
+
+    register(name(metricPrefix, "queue_depth"), new Gauge<Integer>() {
+      @Override
+      public Integer getValue() {
+        return executor.getQueue().size();
+      }
+    });
+
+    register(name(metricPrefix, "utilization"), new RatioGauge() {
+      @Override
+      protected Ratio getRatio() {
+        return Ratio.of(executor.getActiveCount(), executor.getMaximumPoolSize());
+      }
+    });
+  }
+
+  @Override
+  public void execute(final Runnable task) {
+    final long enqueued = System.nanoTime();
+
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        queueLatency.update(System.nanoTime() - enqueued, TimeUnit.NANOSECONDS);
+        task.run();
+      }
+    });
+  }
+
+  public void shutdown() {
+    executor.shutdown();
+  }
+
+  public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+    return executor.awaitTermination(timeout, unit);
+  }
+
+  private void register(String name, Gauge<?> gauge) {
+    metricRegistry.remove(name);
+    metricRegistry.register(name, gauge);
+  }
+
+  /**
+   * Unlike {@link ThreadPoolExecutor.CallerRunsPolicy} this also runs tasks
+   * submitted after shutdown, since a dropped callback would leave its push
+   * result unset forever.
+   */
+  private class SaturationPolicy implements RejectedExecutionHandler {
+    @Override
+    public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+      if (!executor.isShutdown()) {
+        saturated.mark();
+      }
+
+      task.run();
+    }
+  }
+}
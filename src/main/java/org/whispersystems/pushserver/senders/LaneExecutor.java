@@ -0,0 +1,55 @@
+package org.whispersystems.pushserver.senders;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import org.whispersystems.pushserver.config.LaneConfiguration;
+import org.whispersystems.pushserver.config.LanesConfiguration;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import io.dropwizard.lifecycle.Managed;
+
+/**
+ * A bounded worker pool per {@link PushLane}.  When a lane's queue is full the
+ * submitting thread runs the task itself, which pushes back on that lane's
+ * callers without affecting the others.  See {@link InstrumentedExecutor} for
+ * the metrics each lane reports.
+ */
+public class LaneExecutor implements Managed {
+
+  private final Map<PushLane, InstrumentedExecutor> lanes = new EnumMap<>(PushLane.class);
+
+  public LaneExecutor(LanesConfiguration configuration) {
+    for (PushLane lane : PushLane.values()) {
+      LaneConfiguration laneConfiguration = configuration.getLane(lane);
+
+      lanes.put(lane, new InstrumentedExecutor(name(LaneExecutor.class, lane.getName()), "lane-" + lane.getName(),
+                                               laneConfiguration.getWorkers(), laneConfiguration.getQueueSize()));
+    }
+  }
+
+  public <T> ListenableFuture<T> submit(PushLane lane, Callable<T> task) {
+    ListenableFutureTask<T> future = ListenableFutureTask.create(task);
+    lanes.get(lane).execute(future);
+
+    return future;
+  }
+
+  public Executor getExecutor(PushLane lane) {
+    return lanes.get(lane);
+  }
+
+  @Override
+  public void start() {}
+
+  @Override
+  public void stop() {
+    for (InstrumentedExecutor lane : lanes.values()) {
+      lane.shutdown();
+    }
+  }
+}
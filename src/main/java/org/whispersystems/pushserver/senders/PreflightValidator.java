@@ -0,0 +1,68 @@
+package org.whispersystems.pushserver.senders;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.google.common.base.Optional;
+import org.whispersystems.pushserver.config.PreflightConfiguration;
+import org.whispersystems.pushserver.entities.ApnMessage;
+import org.whispersystems.pushserver.entities.GcmMessage;
+import org.whispersystems.pushserver.util.Constants;
+
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Pattern;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Rejects pushes that the providers would refuse anyway, before they use up
+ * an admission permit or a network round trip.
+ */
+public class PreflightValidator {
+
+  public static final String REASON_EXPIRED           = "expired";
+  public static final String REASON_PAYLOAD_TOO_LARGE = "payload_too_large";
+  public static final String REASON_BAD_TOKEN         = "bad_token";
+
+  private static final Pattern APN_TOKEN = Pattern.compile("^([0-9a-fA-F]{2}){32,100}$");
+  private static final Pattern GCM_TOKEN = Pattern.compile("^[A-Za-z0-9_:.\\-]{1,4096}$");
+
+  private final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
+
+  private final PreflightConfiguration configuration;
+
+  public PreflightValidator(PreflightConfiguration configuration) {
+    this.configuration = configuration;
+  }
+
+  public Optional<String> validate(ApnMessage message) {
+    if (!configuration.isEnabled()) {
+      return Optional.absent();
+    }
+
+    int maxPayloadBytes = message.isVoip() ? configuration.getVoipMaxPayloadBytes() : configuration.getApnMaxPayloadBytes();
+
+    if      (message.getExpirationTime() > 0 && message.getExpirationTime() < System.currentTimeMillis()) return reject("apn", REASON_EXPIRED);
+    else if (!APN_TOKEN.matcher(message.getApnId()).matches())                                            return reject("apn", REASON_BAD_TOKEN);
+    else if (getByteLength(message.getMessage()) > maxPayloadBytes)                                       return reject("apn", REASON_PAYLOAD_TOO_LARGE);
+    else                                                                                                  return Optional.absent();
+  }
+
+  public Optional<String> validate(GcmMessage message) {
+    if (!configuration.isEnabled()) {
+      return Optional.absent();
+    }
+
+    if      (!GCM_TOKEN.matcher(message.getGcmId()).matches())                              return reject("gcm", REASON_BAD_TOKEN);
+    else if (getByteLength(message.getMessage()) > configuration.getGcmMaxPayloadBytes()) return reject("gcm", REASON_PAYLOAD_TOO_LARGE);
+    else                                                                                   return Optional.absent();
+  }
+
+  private Optional<String> reject(String provider, String reason) {
+    metricRegistry.meter(name(PreflightValidator.class, provider, reason)).mark();
+    return Optional.of(reason);
+  }
+
+  private int getByteLength(String payload) {
+    return payload == null ? 0 : payload.getBytes(StandardCharsets.UTF_8).length;
+  }
+}
@@ -0,0 +1,181 @@
+package org.whispersystems.pushserver.senders;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.whispersystems.pushserver.entities.PushResult;
+import org.whispersystems.pushserver.util.Constants;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Collects pushes that share a key for a short window, or until a batch is
+ * full, and delivers them together.  The delivery returns one result per
+ * message, in order, and each push completes with its own result.
+ */
+public class PushBatcher<M> {
+
+  public interface Delivery<M> {
+    public ListenableFuture<List<PushResult>> deliver(List<M> messages);
+  }
+
+  private final Logger logger = LoggerFactory.getLogger(PushBatcher.class);
+
+  private final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
+
+  private final ConcurrentMap<String, Batch<M>> pending   = new ConcurrentHashMap<>();
+  private final ScheduledExecutorService        scheduler = Executors.newSingleThreadScheduledExecutor();
+
+  private final Histogram   batchSize;
+  private final Delivery<M> delivery;
+  private final long        windowMillis;
+  private final int         maxSize;
+
+  public PushBatcher(String name, long windowMillis, int maxSize, Delivery<M> delivery) {
+    this.windowMillis = windowMillis;
+    this.maxSize      = maxSize;
+    this.delivery     = delivery;
+    this.batchSize    = metricRegistry.histogram(name(PushBatcher.class, name, "batch_size"));
+  }
+
+  public ListenableFuture<PushResult> add(final String key, M message) {
+    while (true) {
+      Batch<M> existing = pending.get(key);
+
+      if (existing != null) {
+        SettableFuture<PushResult> result = existing.add(message);
+
+        if (result != null) {
+          if (existing.isFull()) flush(key, existing);
+          return result;
+        }
+
+        pending.remove(key, existing);
+        continue;
+      }
+
+      final Batch<M>             created = new Batch<>(maxSize);
+      SettableFuture<PushResult> result  = created.add(message);
+
+      if (pending.putIfAbsent(key, created) == null) {
+        try {
+          scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+              flush(key, created);
+            }
+          }, windowMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+          flush(key, created);
+        }
+
+        return result;
+      }
+    }
+  }
+
+  public void stop() {
+    scheduler.shutdown();
+
+    for (String key : pending.keySet()) {
+      Batch<M> remaining = pending.get(key);
+      if (remaining != null) flush(key, remaining);
+    }
+  }
+
+  private void flush(String key, Batch<M> batch) {
+    pending.remove(key, batch);
+
+    final List<M>                          messages = new ArrayList<>();
+    final List<SettableFuture<PushResult>> results  = new ArrayList<>();
+
+    if (!batch.close(messages, results)) {
+      return;
+    }
+
+    batchSize.update(messages.size());
+
+    try {
+      Futures.addCallback(delivery.deliver(messages), new FutureCallback<List<PushResult>>() {
+        @Override
+        public void onSuccess(List<PushResult> delivered) {
+          if (delivered.size() != results.size()) {
+            onFailure(new IllegalStateException("Expected " + results.size() + " results, got " + delivered.size()));
+            return;
+          }
+
+          for (int i = 0; i < results.size(); i++) {
+            results.get(i).set(delivered.get(i));
+          }
+        }
+
+        @Override
+        public void onFailure(Throwable throwable) {
+          for (SettableFuture<PushResult> result : results) {
+            result.setException(throwable);
+          }
+        }
+      });
+    } catch (RuntimeException e) {
+      logger.warn("Batched delivery failed", e);
+
+      for (SettableFuture<PushResult> result : results) {
+        result.setException(e);
+      }
+    }
+  }
+
+  private static class Batch<M> {
+
+    private final List<M>                          messages = new ArrayList<>();
+    private final List<SettableFuture<PushResult>> results  = new ArrayList<>();
+    private final int                              maxSize;
+
+    private boolean closed;
+
+    private Batch(int maxSize) {
+      this.maxSize = maxSize;
+    }
+
+    public synchronized SettableFuture<PushResult> add(M message) {
+      if (closed || messages.size() >= maxSize) return null;
+
+      SettableFuture<PushResult> result = SettableFuture.create();
+
+      messages.add(message);
+      results.add(result);
+
+      return result;
+    }
+
+    public synchronized boolean isFull() {
+      return messages.size() >= maxSize;
+    }
+
+    public synchronized boolean close(List<M> messages, List<SettableFuture<PushResult>> results) {
+      if (closed) return false;
+
+      this.closed = true;
+
+      messages.addAll(this.messages);
+      results.addAll(this.results);
+
+      return true;
+    }
+  }
+}
@@ -0,0 +1,150 @@
+package org.whispersystems.pushserver.senders;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.whispersystems.pushserver.entities.PushResult;
+import org.whispersystems.pushserver.util.Constants;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Holds pushes for the same destination for a short window and delivers only
+ * the most recent one.  Every push folded into a delivery shares its result.
+ */
+public class PushCoalescer<M> {
+
+  public interface Delivery<M> {
+    public ListenableFuture<PushResult> deliver(M message);
+  }
+
+  private final Logger logger = LoggerFactory.getLogger(PushCoalescer.class);
+
+  private final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
+
+  private final ConcurrentMap<String, Pending<M>> pending   = new ConcurrentHashMap<>();
+  private final ScheduledExecutorService          scheduler = Executors.newSingleThreadScheduledExecutor();
+
+  private final Meter       coalesced;
+  private final Meter       delivered;
+  private final Delivery<M> delivery;
+  private final long        windowMillis;
+
+  public PushCoalescer(String name, long windowMillis, Delivery<M> delivery) {
+    this.windowMillis = windowMillis;
+    this.delivery     = delivery;
+    this.coalesced    = metricRegistry.meter(name(PushCoalescer.class, name, "coalesced"));
+    this.delivered    = metricRegistry.meter(name(PushCoalescer.class, name, "delivered"));
+  }
+
+  public ListenableFuture<PushResult> coalesce(final String destination, M message) {
+    while (true) {
+      Pending<M> existing = pending.get(destination);
+
+      if (existing != null && existing.replace(message)) {
+        coalesced.mark();
+        return existing.getResult();
+      }
+
+      final Pending<M> created = new Pending<>(message);
+
+      if (pending.putIfAbsent(destination, created) == null) {
+        try {
+          scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+              flush(destination, created);
+            }
+          }, windowMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+          flush(destination, created);
+        }
+
+        return created.getResult();
+      }
+    }
+  }
+
+  public void stop() {
+    scheduler.shutdown();
+
+    for (String destination : pending.keySet()) {
+      Pending<M> remaining = pending.get(destination);
+      if (remaining != null) flush(destination, remaining);
+    }
+  }
+
+  private void flush(String destination, final Pending<M> flushed) {
+    pending.remove(destination, flushed);
+
+    if (!flushed.close()) {
+      return;
+    }
+
+    try {
+      delivered.mark();
+
+      Futures.addCallback(delivery.deliver(flushed.getLatest()), new FutureCallback<PushResult>() {
+        @Override
+        public void onSuccess(PushResult result) {
+          flushed.getResult().set(result);
+        }
+
+        @Override
+        public void onFailure(Throwable throwable) {
+          flushed.getResult().setException(throwable);
+        }
+      });
+    } catch (RuntimeException e) {
+      logger.warn("Coalesced delivery failed", e);
+      flushed.getResult().setException(e);
+    }
+  }
+
+  private static class Pending<M> {
+
+    private final SettableFuture<PushResult> result = SettableFuture.create();
+
+    private M       latest;
+    private boolean closed;
+
+    private Pending(M message) {
+      this.latest = message;
+    }
+
+    public synchronized boolean replace(M message) {
+      if (closed) return false;
+
+      this.latest = message;
+      return true;
+    }
+
+    public synchronized boolean close() {
+      if (closed) return false;
+
+      this.closed = true;
+      return true;
+    }
+
+    public synchronized M getLatest() {
+      return latest;
+    }
+
+    public SettableFuture<PushResult> getResult() {
+      return result;
+    }
+  }
+}
@@ -0,0 +1,35 @@
+package org.whispersystems.pushserver.senders;
+
+import org.whispersystems.pushserver.entities.ApnMessage;
+import org.whispersystems.pushserver.entities.GcmMessage;
+
+/**
+ * Pushes are scheduled in separate lanes so that latency sensitive call
+ * pushes never queue behind bulk message and receipt traffic.
+ */
+public enum PushLane {
+
+  CALL("call"),
+  MESSAGE("message"),
+  RECEIPT("receipt");
+
+  private final String name;
+
+  PushLane(String name) {
+    this.name = name;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public static PushLane of(ApnMessage message) {
+    return message.isVoip() ? CALL : MESSAGE;
+  }
+
+  public static PushLane of(GcmMessage message) {
+    if      (message.isCall() || message.isRedphone()) return CALL;
+    else if (message.isReceipt())                      return RECEIPT;
+    else                                               return MESSAGE;
+  }
+}
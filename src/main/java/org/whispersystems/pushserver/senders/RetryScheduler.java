@@ -0,0 +1,188 @@
+package org.whispersystems.pushserver.senders;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.whispersystems.pushserver.config.RetryConfiguration;
+import org.whispersystems.pushserver.util.Constants;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Schedules another attempt at a push that failed transiently.
+ *
+ * Attempt n waits a jittered exponential backoff, between half and all of
+ * baseDelay * 2^(n-1) capped at maxDelay, or as long as the provider asked
+ * for in Retry-After if that is longer.  Each push gets at most maxAttempts
+ * attempts, and no more than maxInFlight retries may be waiting at once, so
+ * an outage gives up on pushes instead of building an unbounded backlog that
+ * stampedes the provider when it recovers.  Retries still waiting at
+ * {@link #stop()} are abandoned rather than fired at a sender that is about to
+ * shut down.
+ */
+public class RetryScheduler {
+
+  private final Logger logger = LoggerFactory.getLogger(RetryScheduler.class);
+
+  private final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
+
+  private final Set<Retry>               pending  = Collections.newSetFromMap(new ConcurrentHashMap<Retry, Boolean>());
+  private final AtomicInteger            inFlight = new AtomicInteger(0);
+  private final ScheduledExecutorService scheduler;
+
+  private final Meter retries;
+  private final Meter gaveUp;
+  private final Meter saturated;
+  private final int   maxAttempts;
+  private final long  baseDelayMillis;
+  private final long  maxDelayMillis;
+  private final int   maxInFlight;
+
+  public RetryScheduler(String name, RetryConfiguration configuration) {
+    this.maxAttempts     = configuration.getMaxAttempts();
+    this.baseDelayMillis = configuration.getBaseDelayMillis();
+    this.maxDelayMillis  = Math.max(configuration.getBaseDelayMillis(), configuration.getMaxDelayMillis());
+    this.maxInFlight     = configuration.getMaxInFlight();
+    this.retries         = metricRegistry.meter(name(RetryScheduler.class, name, "retries"));
+    this.gaveUp          = metricRegistry.meter(name(RetryScheduler.class, name, "gave_up"));
+    this.saturated       = metricRegistry.meter(name(RetryScheduler.class, name, "saturated"));
+    this.scheduler       = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("retry-" + name).build());
+
+    String inFlightName = name(RetryScheduler.class, name, "in_flight");
+    metricRegistry.remove(inFlightName);
+    metricRegistry.register(inFlightName, new Gauge<Integer>() {
+      @Override
+      public Integer getValue() {
+        return inFlight.get();
+      }
+    });
+  }
+
+  /**
+   * Schedules attempt + 1 of a push whose attempt'th try just failed.
+   *
+   * @return false if the push has used its budget or too many retries are
+   *         already waiting, in which case the caller should fail it.
+   */
+  public boolean retry(int attempt, long retryAfterMillis, Task task) {
+    if (attempt >= maxAttempts || scheduler.isShutdown()) {
+      gaveUp.mark();
+      return false;
+    }
+
+    if (inFlight.incrementAndGet() > maxInFlight) {
+      inFlight.decrementAndGet();
+      saturated.mark();
+      gaveUp.mark();
+      return false;
+    }
+
+    Retry retry = new Retry(task);
+
+    retries.mark();
+    pending.add(retry);
+
+    try {
+      scheduler.schedule(retry, Math.max(getBackoffMillis(attempt), retryAfterMillis), TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      pending.remove(retry);
+      inFlight.decrementAndGet();
+      gaveUp.mark();
+      return false;
+    }
+
+    return true;
+  }
+
+  /**
+   * Abandons every waiting retry, so its push completes as a transient
+   * failure instead of racing the shutdown of the sender it would retry on.
+   */
+  public void stop() {
+    scheduler.shutdownNow();
+
+    for (Retry retry : pending) {
+      retry.abandon();
+    }
+  }
+
+  public long getBackoffMillis(int attempt) {
+    long ceiling = baseDelayMillis << Math.min(attempt - 1, 30);
+
+    if (ceiling <= 0 || ceiling > maxDelayMillis) {
+      ceiling = maxDelayMillis;
+    }
+
+    return ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+  }
+
+  public interface Task {
+    /** Makes the next attempt. */
+    void retry();
+
+    /** Completes the push without another attempt, called at shutdown. */
+    void abandon();
+  }
+
+  private class Retry implements Runnable {
+
+    private final AtomicBoolean started = new AtomicBoolean(false);
+    private final Task          task;
+
+    private Retry(Task task) {
+      this.task = task;
+    }
+
+    @Override
+    public void run() {
+      if (!start()) {
+        return;
+      }
+
+      try {
+        task.retry();
+      } catch (RuntimeException e) {
+        logger.warn("Retry failed", e);
+      }
+    }
+
+    private void abandon() {
+      if (!start()) {
+        return;
+      }
+
+      gaveUp.mark();
+
+      try {
+        task.abandon();
+      } catch (RuntimeException e) {
+        logger.warn("Abandoning retry failed", e);
+      }
+    }
+
+    private boolean start() {
+      if (!started.compareAndSet(false, true)) {
+        return false;
+      }
+
+      pending.remove(this);
+      inFlight.decrementAndGet();
+      return true;
+    }
+  }
+}
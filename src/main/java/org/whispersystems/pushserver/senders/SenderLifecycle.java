@@ -0,0 +1,106 @@
+package org.whispersystems.pushserver.senders;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningScheduledExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import io.dropwizard.lifecycle.Managed;
+
+/**
+ * Starts all provider senders in parallel, then warms up their connections
+ * in the background.  A sender is ready once its warm up has succeeded;
+ * failed warm ups are retried until they do.
+ */
+public class SenderLifecycle implements Managed {
+
+  private static final long RETRY_DELAY_SECONDS = 5;
+
+  private final Logger logger = LoggerFactory.getLogger(SenderLifecycle.class);
+
+  private final Map<String, Managed> senders  = new LinkedHashMap<>();
+  private final Map<String, String>  notReady = new ConcurrentHashMap<>();
+
+  private final ListeningScheduledExecutorService executor =
+      MoreExecutors.listeningDecorator(Executors.newScheduledThreadPool(4));
+
+  public void add(String name, Managed sender) {
+    senders.put(name, sender);
+    notReady.put(name, "starting");
+  }
+
+  public Map<String, String> getNotReady() {
+    return notReady;
+  }
+
+  @Override
+  public void start() throws Exception {
+    List<ListenableFuture<Void>> starts = new LinkedList<>();
+
+    for (final Map.Entry<String, Managed> sender : senders.entrySet()) {
+      starts.add(executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          sender.getValue().start();
+          return null;
+        }
+      }));
+    }
+
+    try {
+      Futures.allAsList(starts).get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof Exception) throw (Exception) e.getCause();
+      else                                   throw e;
+    }
+
+    for (Map.Entry<String, Managed> sender : senders.entrySet()) {
+      if (sender.getValue() instanceof Warmable) {
+        notReady.put(sender.getKey(), "warming up");
+        warmUp(sender.getKey(), (Warmable) sender.getValue(), 0);
+      } else {
+        notReady.remove(sender.getKey());
+      }
+    }
+  }
+
+  @Override
+  public void stop() throws Exception {
+    executor.shutdownNow();
+
+    for (Managed sender : senders.values()) {
+      sender.stop();
+    }
+  }
+
+  private void warmUp(final String name, final Warmable sender, long delaySeconds) {
+    executor.schedule(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          long start = System.currentTimeMillis();
+          sender.warmUp();
+
+          logger.info("Warmed up " + name + " in " + (System.currentTimeMillis() - start) + "ms");
+          notReady.remove(name);
+        } catch (Exception e) {
+          logger.warn("Warm up failed for " + name, e);
+          notReady.put(name, "warm up failed: " + e.getMessage());
+          warmUp(name, sender, RETRY_DELAY_SECONDS);
+        }
+      }
+    }, delaySeconds, TimeUnit.SECONDS);
+  }
+}
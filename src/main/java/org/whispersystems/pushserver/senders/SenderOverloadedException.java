@@ -0,0 +1,12 @@
+package org.whispersystems.pushserver.senders;
+
+/**
+ * A push was turned away by our own backpressure before it reached the
+ * provider.  It is transient, but retrying it only adds to the backlog.
+ */
+public class SenderOverloadedException extends TransientPushFailureException {
+
+  public SenderOverloadedException(String s) {
+    super(s);
+  }
+}
@@ -3,11 +3,27 @@ package org.whispersystems.pushserver.senders;
 import com.notnoop.exceptions.NetworkIOException;
 
 public class TransientPushFailureException extends Exception {
+
+  private final long retryAfterMillis;
+
   public TransientPushFailureException(String s) {
+    this(s, 0);
+  }
+
+  public TransientPushFailureException(String s, long retryAfterMillis) {
     super(s);
+    this.retryAfterMillis = retryAfterMillis;
   }
 
   public TransientPushFailureException(Exception e) {
     super(e);
+    this.retryAfterMillis = 0;
+  }
+
+  /**
+   * How long the provider asked us to wait before trying again, or 0.
+   */
+  public long getRetryAfterMillis() {
+    return retryAfterMillis;
   }
 }
@@ -0,0 +1,14 @@
+package org.whispersystems.pushserver.senders;
+
+import java.io.IOException;
+
+/**
+ * The provider answered, but with a status or body we don't understand.
+ * Unlike a transport failure, sending the same request again won't help.
+ */
+public class UnexpectedResponseException extends IOException {
+
+  public UnexpectedResponseException(String s) {
+    super(s);
+  }
+}
@@ -46,6 +46,30 @@ public class UnregisteredQueue {
     }
   }
 
+  public void put(List<UnregisteredEvent> events) {
+    List<String> serialized = new LinkedList<>();
+
+    for (UnregisteredEvent event : events) {
+      try {
+        serialized.add(objectMapper.writeValueAsString(event));
+      } catch (JsonProcessingException e) {
+        logger.warn("Serialization error", e);
+      }
+    }
+
+    if (serialized.isEmpty()) {
+      return;
+    }
+
+    String[] values = serialized.toArray(new String[serialized.size()]);
+
+    try (Jedis jedis = jedisPool.getResource()) {
+      for (Server server : servers) {
+        jedis.rpush(server.getName() + "::" + prefix, values);
+      }
+    }
+  }
+
   public List<UnregisteredEvent> get(String serverName) {
     List<UnregisteredEvent> results = new LinkedList<>();
 
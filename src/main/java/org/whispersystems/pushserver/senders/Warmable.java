@@ -0,0 +1,9 @@
+package org.whispersystems.pushserver.senders;
+
+/**
+ * A sender whose provider connections can be established ahead of the
+ * first push.
+ */
+public interface Warmable {
+  public void warmUp() throws Exception;
+}
@@ -1,44 +1,61 @@
 package org.whispersystems.pushserver.senders;
 
+import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.SharedMetricRegistries;
-import org.jivesoftware.smack.ConnectionConfiguration;
-import org.jivesoftware.smack.ConnectionListener;
-import org.jivesoftware.smack.PacketListener;
-import org.jivesoftware.smack.SmackException;
-import org.jivesoftware.smack.XMPPConnection;
-import org.jivesoftware.smack.XMPPException;
-import org.jivesoftware.smack.filter.PacketTypeFilter;
-import org.jivesoftware.smack.packet.DefaultPacketExtension;
-import org.jivesoftware.smack.packet.Message;
-import org.jivesoftware.smack.packet.Packet;
-import org.jivesoftware.smack.packet.PacketExtension;
-import org.jivesoftware.smack.provider.PacketExtensionProvider;
-import org.jivesoftware.smack.provider.ProviderManager;
-import org.jivesoftware.smack.tcp.XMPPTCPConnection;
-import org.jivesoftware.smack.util.StringUtils;
-import org.json.simple.JSONObject;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.json.simple.JSONValue;
-import org.json.simple.parser.ParseException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.whispersystems.pushserver.config.CcsConfiguration;
+import org.whispersystems.pushserver.config.GcmConfiguration;
+import org.whispersystems.pushserver.config.RetryConfiguration;
 import org.whispersystems.pushserver.entities.GcmMessage;
+import org.whispersystems.pushserver.entities.PushResult;
 import org.whispersystems.pushserver.entities.UnregisteredEvent;
 import org.whispersystems.pushserver.util.Constants;
 import org.whispersystems.pushserver.util.Util;
-import org.xmlpull.v1.XmlPullParser;
 
+import javax.net.SocketFactory;
 import javax.net.ssl.SSLSocketFactory;
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import static com.codahale.metrics.MetricRegistry.name;
 
-public class XmppGCMSender implements GCMSender, PacketListener {
+/**
+ * Sends pushes over a pool of GCM CCS connections.
+ *
+ * Each connection has a window of unacknowledged messages, and a message goes
+ * to whichever connection has the most room in its window.  When every window
+ * is full, messages wait in a bounded queue and go out as acks and nacks free
+ * up slots, instead of being written anyway and throttled by CCS.  Call
+ * pushes wait in a queue of their own that is drained first and never
+ * overflows, so they don't sit behind a backlog of messages and receipts.
+ *
+ * Messages nacked with a server error are retried with backoff through a
+ * {@link RetryScheduler}, and fail as transient once their attempts run out.
+ */
+public class XmppGCMSender implements GCMSender, CcsConnection.Listener {
+
+  private static final long WARM_UP_TIMEOUT_MILLIS = 30000;
 
   private final Logger logger = LoggerFactory.getLogger(XmppGCMSender.class);
 
@@ -47,110 +64,267 @@ public class XmppGCMSender implements GCMSender, PacketListener {
   private final Meter success      = metricRegistry.meter(name(getClass(), "sent", "success"     ));
   private final Meter failure      = metricRegistry.meter(name(getClass(), "sent", "failure"     ));
   private final Meter unregistered = metricRegistry.meter(name(getClass(), "sent", "unregistered"));
+  private final Meter overflow     = metricRegistry.meter(name(getClass(), "overflow"            ));
+  private final Meter timedOut     = metricRegistry.meter(name(getClass(), "ack_timeout"         ));
+  private final Meter retried      = metricRegistry.meter(name(getClass(), "retried"             ));
+
+  private final ConcurrentMap<String, PendingMessage> pendingMessages = new ConcurrentHashMap<>();
+
+  /**
+   * Ids of messages waiting for window space, in the order they were sent.
+   * Also guards {@link #calls} and window reservations across connections.
+   */
+  private final Deque<String> queued = new ArrayDeque<>();
+
+  /**
+   * Ids of call pushes waiting for window space, guarded by {@link #queued}.
+   */
+  private final Deque<String> calls = new ArrayDeque<>();
+
+  private final List<CcsConnection>      connections;
+  private final UnregisteredQueue        unregisteredQueue;
+  private final RetryScheduler           retryScheduler;
+  private final ScheduledExecutorService sweeper;
+  private final int                      maxQueued;
+  private final long                     ackTimeoutMillis;
+  private final boolean                  collapse;
+
+  public XmppGCMSender(UnregisteredQueue unregisteredQueue, GcmConfiguration configuration, boolean collapse) {
+    this(unregisteredQueue, configuration.getSenderId(), configuration.getApiKey(), configuration.getCcs(),
+         configuration.getRetries(), collapse, SSLSocketFactory.getDefault());
+  }
 
-  private static final String GCM_SERVER       = "gcm.googleapis.com";
-  private static final int    GCM_PORT         = 5235;
+  @VisibleForTesting
+  public XmppGCMSender(UnregisteredQueue unregisteredQueue, long senderId, String apiKey,
+                       CcsConfiguration configuration, RetryConfiguration retries,
+                       boolean collapse, SocketFactory socketFactory)
+  {
+    this.unregisteredQueue = unregisteredQueue;
+    this.retryScheduler    = new RetryScheduler("ccs", retries);
+    this.maxQueued         = configuration.getMaxQueued();
+    this.ackTimeoutMillis  = configuration.getAckTimeoutMillis();
+    this.collapse          = collapse;
+    this.sweeper           = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("ccs-ack-timeout")
+                                                                                                  .setDaemon(true)
+                                                                                                  .build());
+    this.connections       = new ArrayList<>(configuration.getConnections());
+
+    for (int i = 0; i < configuration.getConnections(); i++) {
+      connections.add(new CcsConnection("ccs-" + i, configuration.getHost(), configuration.getPort(),
+                                        senderId, apiKey, configuration.getWindowSize(), socketFactory, this));
+    }
 
-  private static final String GCM_ELEMENT_NAME = "gcm";
-  private static final String GCM_NAMESPACE    = "google:mobile:data";
+    String queuedName = name(XmppGCMSender.class, "queued");
+    metricRegistry.remove(queuedName);
+    metricRegistry.register(queuedName, new Gauge<Integer>() {
+      @Override
+      public Integer getValue() {
+        synchronized (queued) {
+          return queued.size();
+        }
+      }
+    });
+
+    String queuedCallsName = name(XmppGCMSender.class, "queued_calls");
+    metricRegistry.remove(queuedCallsName);
+    metricRegistry.register(queuedCallsName, new Gauge<Integer>() {
+      @Override
+      public Integer getValue() {
+        synchronized (queued) {
+          return calls.size();
+        }
+      }
+    });
+  }
 
-  private final Map<String, GcmMessage> pendingMessages = new ConcurrentHashMap<>();
+  public ListenableFuture<PushResult> sendMessage(GcmMessage message)
+  {
+    String         messageId      = "m-" + UUID.randomUUID().toString();
+    PendingMessage pendingMessage = new PendingMessage(message, createStanza(messageId, message));
 
-  private final UnregisteredQueue unregisteredQueue;
-  private final long              senderId;
-  private final String            apiKey;
+    synchronized (queued) {
+      if (!pendingMessage.isCall() && queued.size() >= maxQueued) {
+        overflow.mark();
+        return Futures.immediateFuture(PushResult.transientFailure("CCS windows full"));
+      }
 
-  private XMPPTCPConnection connection;
+      pendingMessages.put(messageId, pendingMessage);
+      getQueue(pendingMessage).addLast(messageId);
+    }
 
-  public XmppGCMSender(UnregisteredQueue unregisteredQueue, long senderId, String apiKey) {
-    this.unregisteredQueue = unregisteredQueue;
-    this.senderId          = senderId;
-    this.apiKey            = apiKey;
+    drain();
 
-    ProviderManager.addExtensionProvider(GCM_ELEMENT_NAME, GCM_NAMESPACE,
-                                         new GcmPacketExtensionProvider());
+    return pendingMessage.getResult();
   }
 
-  public void sendMessage(GcmMessage message)
-  {
-    String messageId = "m-" + UUID.randomUUID().toString();
-    sendMessage(messageId, message);
+  private String createStanza(String messageId, GcmMessage message) {
+    String key = message.isReceipt() ? "receipt" : "message";
+
+    return GcmStanzaEncoder.encode(message.getGcmId(), messageId, key, message.getMessage(),
+                                   collapse && !message.isCall() ? key : null);
+  }
+
+  private Deque<String> getQueue(PendingMessage pendingMessage) {
+    return pendingMessage.isCall() ? calls : queued;
   }
 
-  private void sendMessage(String messageId, GcmMessage message) {
-    try {
-      boolean isReceipt = message.isReceipt();
+  /**
+   * Moves queued messages, calls first, onto connections for as long as some connection
+   * has room in its window.  Reservations happen under the queue lock, the
+   * writes themselves outside it.
+   */
+  private void drain() {
+    while (true) {
+      CcsConnection connection;
+      String        messageId;
+
+      synchronized (queued) {
+        if ((calls.isEmpty() && queued.isEmpty()) || (connection = getMostAvailable()) == null) {
+          return;
+        }
+
+        messageId = calls.isEmpty() ? queued.pollFirst() : calls.pollFirst();
 
-      Map<String, String> dataObject = new HashMap<>();
-      dataObject.put("type", "message");
-      dataObject.put(isReceipt ? "receipt" : "message", message.getMessage());
+        PendingMessage pendingMessage = pendingMessages.get(messageId);
 
-      Map<String, Object> messageObject = new HashMap<>();
-      messageObject.put("to", message.getGcmId());
-      messageObject.put("message_id", messageId);
-      messageObject.put("data", dataObject);
+        if (pendingMessage == null) {
+          continue;
+        }
 
-      String json = JSONObject.toJSONString(messageObject);
+        connection.reserve(messageId, pendingMessage.getStanza());
+        pendingMessage.setConnection(connection, System.currentTimeMillis() + ackTimeoutMillis);
+      }
 
-      pendingMessages.put(messageId, message);
-      connection.sendPacket(new GcmPacketExtension(json).toPacket());
-    } catch (SmackException.NotConnectedException e) {
-      logger.warn("GCMClient", "No connection", e);
+      connection.transmit(messageId);
     }
   }
 
-  @Override
-  public void start() throws Exception {
-    this.connection = connect(senderId, apiKey);
+  private CcsConnection getMostAvailable() {
+    CcsConnection best = null;
+
+    for (CcsConnection connection : connections) {
+      if (connection.isAvailable() && connection.getFreeWindow() > 0 &&
+          (best == null || connection.getFreeWindow() > best.getFreeWindow()))
+      {
+        best = connection;
+      }
+    }
+
+    return best;
+  }
+
+  /**
+   * Fails messages whose ack never came, so their futures complete and their
+   * window slots go back to the connection.  Without this a lost ack would
+   * hold both forever.
+   */
+  private void expireUnacked() {
+    long now = System.currentTimeMillis();
+
+    for (Map.Entry<String, PendingMessage> entry : pendingMessages.entrySet()) {
+      PendingMessage pendingMessage = entry.getValue();
+      CcsConnection  connection     = pendingMessage.getConnection();
+
+      if (connection != null && pendingMessage.getDeadline() < now &&
+          pendingMessages.remove(entry.getKey(), pendingMessage))
+      {
+        logger.warn("No ack for " + entry.getKey() + " on " + connection.getName());
+        connection.release(entry.getKey());
+        timedOut.mark();
+        complete(pendingMessage, PushResult.transientFailure("Ack timeout"));
+      }
+    }
+
+    drain();
   }
 
   @Override
-  public void stop() throws Exception {
-    this.connection.disconnect();
+  public void start() throws Exception {
+    for (CcsConnection connection : connections) {
+      connection.connect();
+    }
+
+    long period = Math.max(1, ackTimeoutMillis / 4);
+
+    sweeper.scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          expireUnacked();
+        } catch (RuntimeException e) {
+          logger.warn("Ack timeout sweep failed", e);
+        }
+      }
+    }, period, period, TimeUnit.MILLISECONDS);
   }
 
+  /**
+   * Waits for every CCS connection to authenticate, so the sender isn't
+   * reported ready while messages would only pile up in the queue.
+   */
   @Override
-  public void processPacket(Packet packet) throws SmackException.NotConnectedException {
-    Message            incomingMessage = (Message) packet;
-    GcmPacketExtension gcmPacket       = (GcmPacketExtension) incomingMessage.getExtension(GCM_NAMESPACE);
-    String             json            = gcmPacket.getJson();
+  public void warmUp() throws Exception {
+    long deadline = System.currentTimeMillis() + WARM_UP_TIMEOUT_MILLIS;
 
-    try {
-      Map<String, Object> jsonObject  = (Map<String, Object>) JSONValue.parseWithException(json);
-      Object              messageType = jsonObject.get("message_type");
+    while (true) {
+      List<String> unavailable = new LinkedList<>();
+
+      for (CcsConnection connection : connections) {
+        if (!connection.isAvailable()) unavailable.add(connection.getName());
+      }
 
-      if (messageType == null) {
-        handleUpstreamMessage(jsonObject);
+      if (unavailable.isEmpty()) {
         return;
       }
 
-      switch (messageType.toString()) {
-        case "ack"     : handleAckReceipt(jsonObject);      break;
-        case "nack"    : handleNackReceipt(jsonObject);     break;
-        case "receipt" : handleDeliveryReceipt(jsonObject); break;
-        case "control" : handleControlMessage(jsonObject);  break;
-        default:
-          logger.warn("Received unknown GCM message: " + messageType.toString());
+      if (System.currentTimeMillis() >= deadline) {
+        throw new IOException("CCS connections not available: " + unavailable);
       }
 
-    } catch (ParseException e) {
-      logger.warn("GCMClient", "Received unparsable message", e);
-    } catch (Exception e) {
-      logger.warn("GCMClient", "Failed to process packet", e);
+      Util.sleep(100);
     }
   }
 
-  private void handleControlMessage(Map<String, Object> message) {
-    String controlType = (String) message.get("control_type");
+  @Override
+  public void stop() throws Exception {
+    retryScheduler.stop();
+    sweeper.shutdownNow();
 
-    if ("CONNECTION_DRAINING".equals(controlType)) {
-      logger.warn("GCM Connection is draining! Initiating reconnect...");
-      reconnect();
-    } else {
-      logger.warn("Received unknown GCM control message: " + controlType);
+    for (CcsConnection connection : connections) {
+      connection.disconnect();
     }
   }
 
+  @Override
+  public void onAvailable(CcsConnection connection) {
+    drain();
+  }
+
+  @Override
+  public void onPacket(CcsConnection connection, Map<String, Object> jsonObject) {
+    Object messageType = jsonObject.get("message_type");
+
+    if (messageType == null) {
+      handleUpstreamMessage(connection, jsonObject);
+      return;
+    }
+
+    switch (messageType.toString()) {
+      case "ack"     : handleAckReceipt(jsonObject);      break;
+      case "nack"    : handleNackReceipt(jsonObject);     break;
+      case "receipt" : handleDeliveryReceipt(jsonObject); break;
+      case "control" : handleControlMessage(jsonObject);  break;
+      default:
+        logger.warn("Received unknown GCM message: " + messageType.toString());
+    }
+
+    drain();
+  }
+
+  private void handleControlMessage(Map<String, Object> message) {
+    logger.warn("Received unknown GCM control message: " + message.get("control_type"));
+  }
+
   private void handleDeliveryReceipt(Map<String, Object> message) {
     logger.warn("Got delivery receipt!");
   }
@@ -162,7 +336,7 @@ public class XmppGCMSender implements GCMSender, PacketListener {
     if (errorCode == null) {
       logger.warn("Null GCM error code!");
       if (messageId != null) {
-        pendingMessages.remove(messageId);
+        complete(pendingMessages.remove(messageId), PushResult.failure(null));
       }
 
       return;
@@ -175,6 +349,7 @@ public class XmppGCMSender implements GCMSender, PacketListener {
       case "INVALID_JSON"          : handleClientFailure(message);   break;
       case "QUOTA_EXCEEDED"        : handleClientFailure(message);   break;
       case "SERVICE_UNAVAILABLE"   : handleServerFailure(message);   break;
+      default                      : handleUnknownFailure(message);  break;
     }
   }
 
@@ -184,13 +359,11 @@ public class XmppGCMSender implements GCMSender, PacketListener {
     String messageId = (String) message.get("message_id");
 
     if (messageId != null) {
-      pendingMessages.remove(messageId);
+      complete(pendingMessages.remove(messageId), PushResult.success());
     }
   }
 
-  private void handleUpstreamMessage(Map<String, Object> message)
-      throws SmackException.NotConnectedException
-  {
+  private void handleUpstreamMessage(CcsConnection connection, Map<String, Object> message) {
     logger.warn("Got upstream message from GCM Server!");
 
     for (String key : message.keySet()) {
@@ -198,14 +371,11 @@ public class XmppGCMSender implements GCMSender, PacketListener {
     }
 
     Map<String, Object> ack = new HashMap<>();
-    message.put("message_type", "ack");
-    message.put("to", message.get("from"));
-    message.put("message_id", message.get("message_id"));
-
-    String json = JSONValue.toJSONString(ack);
+    ack.put("message_type", "ack");
+    ack.put("to", message.get("from"));
+    ack.put("message_id", message.get("message_id"));
 
-    Packet request = new GcmPacketExtension(json).toPacket();
-    connection.sendPacket(request);
+    connection.send(JSONValue.toJSONString(ack));
   }
 
   private void handleBadRegistration(Map<String, Object> message) {
@@ -215,14 +385,18 @@ public class XmppGCMSender implements GCMSender, PacketListener {
     String messageId = (String) message.get("message_id");
 
     if (messageId != null) {
-      GcmMessage unacknowledgedMessage = pendingMessages.remove(messageId);
+      PendingMessage unacknowledgedMessage = pendingMessages.remove(messageId);
 
       if (unacknowledgedMessage != null) {
-        unregisteredQueue.put(new UnregisteredEvent(unacknowledgedMessage.getGcmId(),
+        GcmMessage gcmMessage = unacknowledgedMessage.getMessage();
+
+        unregisteredQueue.put(new UnregisteredEvent(gcmMessage.getGcmId(),
                                                     null,
-                                                    unacknowledgedMessage.getNumber(),
-                                                    unacknowledgedMessage.getDeviceId(),
+                                                    gcmMessage.getNumber(),
+                                                    gcmMessage.getDeviceId(),
                                                     System.currentTimeMillis()));
+
+        complete(unacknowledgedMessage, PushResult.unregistered());
       }
     }
   }
@@ -230,14 +404,38 @@ public class XmppGCMSender implements GCMSender, PacketListener {
   private void handleServerFailure(Map<String, Object> message) {
     failure.mark();
 
-    String messageId = (String)message.get("message_id");
+    final String messageId = (String)message.get("message_id");
+    final String errorCode = (String)message.get("error");
 
-    if (messageId != null) {
-      GcmMessage unacknowledgedMessage = pendingMessages.remove(messageId);
+    final PendingMessage pendingMessage = messageId == null ? null : pendingMessages.get(messageId);
 
-      if (unacknowledgedMessage != null) {
-        sendMessage(messageId, unacknowledgedMessage);
+    if (pendingMessage == null) {
+      return;
+    }
+
+    pendingMessage.setConnection(null, 0);
+
+    boolean scheduled = retryScheduler.retry(pendingMessage.getAttempt(), 0, new RetryScheduler.Task() {
+      @Override
+      public void retry() {
+        retried.mark();
+        pendingMessage.nextAttempt();
+
+        synchronized (queued) {
+          getQueue(pendingMessage).addFirst(messageId);
+        }
+
+        drain();
+      }
+
+      @Override
+      public void abandon() {
+        complete(pendingMessages.remove(messageId), PushResult.transientFailure(errorCode));
       }
+    });
+
+    if (!scheduled) {
+      complete(pendingMessages.remove(messageId), PushResult.transientFailure(errorCode));
     }
   }
 
@@ -248,126 +446,82 @@ public class XmppGCMSender implements GCMSender, PacketListener {
     String messageId = (String)message.get("message_id");
 
     if (messageId != null) {
-      pendingMessages.remove(messageId);
-    }
-  }
-
-  private void reconnect() {
-    try {
-      this.connection.disconnect();
-    } catch (SmackException.NotConnectedException e) {
-      logger.warn("GCMClient", "Disconnect attempt", e);
-    }
-
-    while (true) {
-      try {
-        this.connection = connect(senderId, apiKey);
-        return;
-      } catch (XMPPException | IOException | SmackException e) {
-        logger.warn("GCMClient", "Reconnecting", e);
-        Util.sleep(1000);
-      }
+      complete(pendingMessages.remove(messageId), PushResult.failure((String)message.get("error")));
     }
   }
 
-  private XMPPTCPConnection connect(long senderId, String apiKey)
-      throws XMPPException, IOException, SmackException
-  {
-    ConnectionConfiguration config = new ConnectionConfiguration(GCM_SERVER, GCM_PORT);
-    config.setSecurityMode(ConnectionConfiguration.SecurityMode.enabled);
-    config.setReconnectionAllowed(true);
-    config.setRosterLoadedAtLogin(false);
-    config.setSendPresence(false);
-    config.setSocketFactory(SSLSocketFactory.getDefault());
-
-    XMPPTCPConnection connection = new XMPPTCPConnection(config);
-    connection.connect();
-
-    connection.addConnectionListener(new LoggingConnectionListener());
-    connection.addPacketListener(this, new PacketTypeFilter(Message.class));
+  private void handleUnknownFailure(Map<String, Object> message) {
+    failure.mark();
 
-    connection.login(senderId + "@gcm.googleapis.com", apiKey);
+    logger.warn("Unhandled GCM error: " + message.get("error"));
+    String messageId = (String)message.get("message_id");
 
-    return connection;
+    if (messageId != null) {
+      complete(pendingMessages.remove(messageId), PushResult.transientFailure((String)message.get("error")));
+    }
   }
 
-  private static class GcmPacketExtensionProvider implements PacketExtensionProvider {
-    @Override
-    public PacketExtension parseExtension(XmlPullParser xmlPullParser) throws Exception {
-      String json = xmlPullParser.nextText();
-      return new GcmPacketExtension(json);
+  private void complete(PendingMessage pendingMessage, PushResult result) {
+    if (pendingMessage != null) {
+      pendingMessage.getResult().set(result);
     }
   }
 
-  private static final class GcmPacketExtension extends DefaultPacketExtension {
+  private static class PendingMessage {
 
-    private final String json;
+    private final GcmMessage                 message;
+    private final String                     stanza;
+    private final SettableFuture<PushResult> result;
 
-    public GcmPacketExtension(String json) {
-      super(GCM_ELEMENT_NAME, GCM_NAMESPACE);
-      this.json = json;
-    }
+    private volatile CcsConnection connection;
+    private volatile long          deadline;
+    private volatile int           attempt = 1;
 
-    public String getJson() {
-      return json;
+    private PendingMessage(GcmMessage message, String stanza) {
+      this.message = message;
+      this.stanza  = stanza;
+      this.result  = SettableFuture.create();
     }
 
-    @Override
-    public String toXML() {
-      return String.format("<%s xmlns=\"%s\">%s</%s>", GCM_ELEMENT_NAME, GCM_NAMESPACE,
-                           StringUtils.escapeForXML(json), GCM_ELEMENT_NAME);
-    }
-
-    public Packet toPacket() {
-      Message message = new Message();
-      message.addExtension(this);
+    public GcmMessage getMessage() {
       return message;
     }
-  }
-
-  private class LoggingConnectionListener implements ConnectionListener {
 
-    @Override
-    public void connected(XMPPConnection xmppConnection) {
-      logger.warn("GCM XMPP Connected.");
+    public String getStanza() {
+      return stanza;
     }
 
-    @Override
-    public void authenticated(XMPPConnection xmppConnection) {
-      logger.warn("GCM XMPP Authenticated.");
-      reconnectionSuccessful();
+    public SettableFuture<PushResult> getResult() {
+      return result;
     }
 
-    @Override
-    public void reconnectionSuccessful() {
-      logger.warn("GCM XMPP Reconnected, resending... Pending Size: " + pendingMessages.size());
-      HashMap<String, GcmMessage> resendMessages = new HashMap<>(pendingMessages);
+    public boolean isCall() {
+      return PushLane.of(message) == PushLane.CALL;
+    }
 
-      for (Map.Entry<String, GcmMessage> resendMessage : resendMessages.entrySet()) {
-        sendMessage(resendMessage.getKey(), resendMessage.getValue());
-      }
+    public int getAttempt() {
+      return attempt;
     }
 
-    @Override
-    public void reconnectionFailed(Exception e) {
-      logger.warn("GCM XMPP Reconnection failed!", e);
-      reconnect();
+    public void nextAttempt() {
+      attempt++;
     }
 
-    @Override
-    public void reconnectingIn(int seconds) {
-      logger.warn(String.format("GCM XMPP Reconnecting in %d secs", seconds));
+    /**
+     * Records where the message is waiting for its ack, or null while it
+     * isn't on any connection.
+     */
+    public void setConnection(CcsConnection connection, long deadline) {
+      this.deadline   = deadline;
+      this.connection = connection;
     }
 
-    @Override
-    public void connectionClosedOnError(Exception e) {
-      logger.warn("GCM XMPP Connection closed on error. Pending Size: " + pendingMessages.size());
+    public CcsConnection getConnection() {
+      return connection;
     }
 
-    @Override
-    public void connectionClosed() {
-      logger.warn("GCM XMPP Connection closed. Pending Size: " + pendingMessages.size());
-      reconnect();
+    public long getDeadline() {
+      return deadline;
     }
   }
 }
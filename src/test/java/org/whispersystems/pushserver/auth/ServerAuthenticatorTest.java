@@ -0,0 +1,76 @@
+package org.whispersystems.pushserver.auth;
+
+import org.junit.Test;
+import org.whispersystems.pushserver.config.AuthenticationConfiguration;
+import org.whispersystems.pushserver.config.RateLimitConfiguration;
+
+import java.util.LinkedList;
+import java.util.List;
+
+import io.dropwizard.auth.basic.BasicCredentials;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ServerAuthenticatorTest {
+
+  private static final AuthenticationConfiguration configuration = new AuthenticationConfiguration() {
+    @Override
+    public List<Server> getServers() {
+      return new LinkedList<Server>() {{
+        add(new Server("textsecure", "foobar"));
+        add(new Server("redphone", HashedSecret.hash("foobaz")));
+      }};
+    }
+  };
+
+  @Test
+  public void testPlaintextSecret() throws Exception {
+    ServerAuthenticator authenticator = new ServerAuthenticator(configuration);
+
+    assertThat(authenticator.authenticate(new BasicCredentials("textsecure", "foobar")).isPresent()).isTrue();
+    assertThat(authenticator.authenticate(new BasicCredentials("textsecure", "foobaz")).isPresent()).isFalse();
+    assertThat(authenticator.authenticate(new BasicCredentials("nobody", "foobar")).isPresent()).isFalse();
+  }
+
+  @Test
+  public void testHashedSecret() throws Exception {
+    ServerAuthenticator authenticator = new ServerAuthenticator(configuration);
+
+    assertThat(authenticator.authenticate(new BasicCredentials("redphone", "foobaz")).get().getName()).isEqualTo("redphone");
+    assertThat(authenticator.authenticate(new BasicCredentials("redphone", "foobaz")).get().getName()).isEqualTo("redphone");
+    assertThat(authenticator.authenticate(new BasicCredentials("redphone", "foobar")).isPresent()).isFalse();
+  }
+
+  @Test
+  public void testFailedAttemptsLimited() throws Exception {
+    ServerAuthenticator authenticator = new ServerAuthenticator(new AuthenticationConfiguration() {
+      @Override
+      public List<Server> getServers() {
+        return configuration.getServers();
+      }
+
+      @Override
+      public RateLimitConfiguration getFailedAttempts() {
+        return new RateLimitConfiguration(2, 1);
+      }
+    });
+
+    assertThat(authenticator.authenticate(new BasicCredentials("textsecure", "foobar")).isPresent()).isTrue();
+    assertThat(authenticator.authenticate(new BasicCredentials("textsecure", "wrong-1")).isPresent()).isFalse();
+    assertThat(authenticator.authenticate(new BasicCredentials("textsecure", "wrong-2")).isPresent()).isFalse();
+
+    assertThat(authenticator.authenticate(new BasicCredentials("redphone", "wrong-1")).isPresent()).isFalse();
+    assertThat(authenticator.authenticate(new BasicCredentials("redphone", "wrong-2")).isPresent()).isFalse();
+
+    assertThat(authenticator.authenticate(new BasicCredentials("redphone", "foobaz")).isPresent()).isFalse();
+    assertThat(authenticator.authenticate(new BasicCredentials("textsecure", "foobar")).isPresent()).isTrue();
+  }
+
+  @Test
+  public void testHashFormat() {
+    String hashed = HashedSecret.hash("foobar");
+
+    assertThat(hashed).startsWith("pbkdf2:");
+    assertThat(HashedSecret.verify(hashed, "foobar")).isTrue();
+    assertThat(HashedSecret.verify(hashed, "foobaz")).isFalse();
+  }
+}
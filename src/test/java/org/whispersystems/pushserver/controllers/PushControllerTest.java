@@ -1,27 +1,56 @@
 package org.whispersystems.pushserver.controllers;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import org.glassfish.jersey.test.grizzly.GrizzlyWebTestContainerFactory;
+import org.junit.Before;
 import org.junit.ClassRule;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 import org.whispersystems.pushserver.auth.Server;
 import org.whispersystems.pushserver.auth.ServerAuthenticator;
+import org.whispersystems.pushserver.config.AdmissionConfiguration;
+import org.whispersystems.pushserver.config.DeduplicationConfiguration;
+import org.whispersystems.pushserver.config.JournalConfiguration;
+import org.whispersystems.pushserver.config.LanesConfiguration;
+import org.whispersystems.pushserver.config.PreflightConfiguration;
 import org.whispersystems.pushserver.entities.ApnMessage;
+import org.whispersystems.pushserver.entities.ApnMessageList;
 import org.whispersystems.pushserver.entities.GcmMessage;
+import org.whispersystems.pushserver.entities.GcmMessageList;
+import org.whispersystems.pushserver.entities.PushResult;
+import org.whispersystems.pushserver.entities.PushResultList;
+import org.whispersystems.pushserver.journal.PushJournal;
+import org.whispersystems.pushserver.limits.AdmissionController;
+import org.whispersystems.pushserver.mappers.RateLimitExceededExceptionMapper;
+import org.whispersystems.pushserver.providers.SmileMessageBodyProvider;
 import org.whispersystems.pushserver.senders.APNSender;
+import org.whispersystems.pushserver.senders.DuplicatePushFilter;
 import org.whispersystems.pushserver.senders.GCMSender;
+import org.whispersystems.pushserver.senders.PreflightValidator;
 import org.whispersystems.pushserver.senders.TransientPushFailureException;
 import org.whispersystems.pushserver.util.AuthHelper;
 import org.whispersystems.pushserver.util.MockAuthenticationConfig;
 
+import javax.validation.Validation;
 import javax.ws.rs.client.Entity;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
 
 import io.dropwizard.auth.AuthFactory;
 import io.dropwizard.auth.basic.BasicAuthFactory;
+import io.dropwizard.jackson.Jackson;
 import io.dropwizard.testing.junit.ResourceTestRule;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
 import static org.mockito.Mockito.*;
 
 public class PushControllerTest {
@@ -33,10 +62,24 @@ public class PushControllerTest {
   public static final ResourceTestRule resources =
       ResourceTestRule.builder()
                       .setTestContainerFactory(new GrizzlyWebTestContainerFactory())
-                      .addResource(new PushController(apnSender, gcmSender))
+                      .addResource(new PushController(apnSender, gcmSender,
+                                                      new AdmissionController(new AdmissionConfiguration(2, 100, 100, 5), new LanesConfiguration(), new MockAuthenticationConfig().getServers()),
+                                                      new DuplicatePushFilter(new DeduplicationConfiguration(), null),
+                                                      new PreflightValidator(new PreflightConfiguration(false)),
+                                                      new PushJournal(new JournalConfiguration(), Jackson.newObjectMapper()),
+                                                      Jackson.newObjectMapper(),
+                                                      Validation.buildDefaultValidatorFactory().getValidator()))
+                      .addProvider(new RateLimitExceededExceptionMapper())
+                      .addProvider(new SmileMessageBodyProvider(Validation.buildDefaultValidatorFactory().getValidator()))
                       .addProvider(AuthFactory.binder(new BasicAuthFactory<>(new ServerAuthenticator(new MockAuthenticationConfig()), "TEST", Server.class)))
                       .build();
 
+  @Before
+  public void setup() {
+    reset(apnSender, gcmSender);
+    when(gcmSender.sendMessage(any(GcmMessage.class))).thenReturn(Futures.immediateFuture(PushResult.success()));
+  }
+
   @Test
   public void testSendApn() throws TransientPushFailureException {
     Response response = resources.getJerseyTest().target("/api/v1/push/apn/")
@@ -97,6 +140,253 @@ public class PushControllerTest {
     verifyNoMoreInteractions(gcmSender);
   }
 
+  @Test
+  public void testSendGcmBatch() {
+    List<GcmMessage> messages = new LinkedList<GcmMessage>() {{
+      add(new GcmMessage("12345", "+14152222222", 1, "Hey there!", false, false, false, false));
+      add(new GcmMessage("67890", "+14153333333", 2, "Hey there!", false, false, false, false));
+    }};
+
+    Response response = resources.getJerseyTest().target("/api/v1/push/gcm/batch")
+                                 .request()
+                                 .header("Authorization", AuthHelper.getAuthHeader("textsecure", "foobar"))
+                                 .put(Entity.entity(new GcmMessageList(messages), MediaType.APPLICATION_JSON));
+
+    assertThat(response.getStatus()).isEqualTo(200);
+
+    PushResultList results = response.readEntity(PushResultList.class);
+    assertThat(results.getResults().size()).isEqualTo(2);
+    assertThat(results.getResults().get(0).getStatus()).isEqualTo(PushResult.STATUS_SUCCESS);
+    assertThat(results.getResults().get(1).getStatus()).isEqualTo(PushResult.STATUS_SUCCESS);
+
+    ArgumentCaptor<GcmMessage> captor = ArgumentCaptor.forClass(GcmMessage.class);
+    verify(gcmSender, times(2)).sendMessage(captor.capture());
+
+    assertThat(captor.getAllValues().get(0).getGcmId()).isEqualTo("12345");
+    assertThat(captor.getAllValues().get(1).getGcmId()).isEqualTo("67890");
+    assertThat(captor.getAllValues().get(1).getDeviceId()).isEqualTo(2);
+  }
+
+  @Test
+  public void testSendApnBatch() {
+    List<ApnMessage> messages = new LinkedList<ApnMessage>() {{
+      add(new ApnMessage("12345", "+14152222222", 1, "Hey there!", false, 1111));
+      add(new ApnMessage("67890", "+14153333333", 1, "Hey there!", true, 2222));
+    }};
+
+    when(apnSender.sendMessages(anyListOf(ApnMessage.class))).thenReturn(new LinkedList<ListenableFuture<PushResult>>() {{
+      add(SettableFuture.<PushResult>create());
+      add(Futures.immediateFuture(PushResult.failure("Network Error")));
+    }});
+
+    Response response = resources.getJerseyTest().target("/api/v1/push/apn/batch")
+                                 .request()
+                                 .header("Authorization", AuthHelper.getAuthHeader("textsecure", "foobar"))
+                                 .put(Entity.entity(new ApnMessageList(messages), MediaType.APPLICATION_JSON));
+
+    assertThat(response.getStatus()).isEqualTo(200);
+
+    PushResultList results = response.readEntity(PushResultList.class);
+    assertThat(results.getResults().size()).isEqualTo(2);
+    assertThat(results.getResults().get(0).getStatus()).isEqualTo(PushResult.STATUS_ACCEPTED);
+    assertThat(results.getResults().get(1).getStatus()).isEqualTo(PushResult.STATUS_FAILURE);
+
+    ArgumentCaptor<List> captor = ArgumentCaptor.forClass(List.class);
+    verify(apnSender).sendMessages(captor.capture());
+
+    assertThat(captor.getValue().size()).isEqualTo(2);
+    assertThat(((ApnMessage)captor.getValue().get(1)).isVoip()).isTrue();
+  }
+
+  @Test
+  public void testSendGcmAsync() {
+    when(gcmSender.sendMessage(any(GcmMessage.class))).thenReturn(Futures.immediateFuture(PushResult.canonical("67890")));
+
+    Response response = resources.getJerseyTest().target("/api/v1/push/gcm/async")
+                                 .request()
+                                 .header("Authorization", AuthHelper.getAuthHeader("textsecure", "foobar"))
+                                 .put(Entity.entity(new GcmMessage("12345", "+14152222222", 1, "Hey there!", false, false, false, false), MediaType.APPLICATION_JSON));
+
+    assertThat(response.getStatus()).isEqualTo(200);
+
+    PushResult result = response.readEntity(PushResult.class);
+    assertThat(result.getStatus()).isEqualTo(PushResult.STATUS_CANONICAL);
+    assertThat(result.getCanonicalId()).isEqualTo("67890");
+  }
+
+  @Test
+  public void testSendApnAsync() {
+    final SettableFuture<PushResult> future = SettableFuture.create();
+    when(apnSender.sendMessageAsync(any(ApnMessage.class))).thenReturn(future);
+
+    new Thread() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(100);
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
 
+        future.set(PushResult.transientFailure("Network Error"));
+      }
+    }.start();
+
+    Response response = resources.getJerseyTest().target("/api/v1/push/apn/async")
+                                 .request()
+                                 .header("Authorization", AuthHelper.getAuthHeader("textsecure", "foobar"))
+                                 .put(Entity.entity(new ApnMessage("12345", "+14152222222", 1, "Hey there!", false, 1111), MediaType.APPLICATION_JSON));
+
+    assertThat(response.getStatus()).isEqualTo(200);
+    assertThat(response.readEntity(PushResult.class).getStatus()).isEqualTo(PushResult.STATUS_TRANSIENT);
+  }
+
+  @Test
+  public void testStreamGcm() {
+    String messages = "{\"gcmId\":\"12345\",\"number\":\"+14152222222\",\"deviceId\":1,\"message\":\"Hey there!\"}\n" +
+                      "{\"gcmId\":\"67890\",\"number\":\"+14153333333\",\"deviceId\":0,\"message\":\"Hey there!\"}\n" +
+                      "{\"gcmId\":\"13579\",\"number\":\"+14154444444\",\"deviceId\":3,\"message\":\"Hey there!\"}\n";
+
+    Response response = resources.getJerseyTest().target("/api/v1/push/gcm/stream")
+                                 .request()
+                                 .header("Authorization", AuthHelper.getAuthHeader("textsecure", "foobar"))
+                                 .post(Entity.entity(messages, PushController.APPLICATION_NDJSON));
+
+    assertThat(response.getStatus()).isEqualTo(200);
+
+    String[] results = response.readEntity(String.class).split("\n");
+    assertThat(results.length).isEqualTo(3);
+    assertThat(results[0]).isEqualTo("{\"line\":1,\"status\":\"success\"}");
+    assertThat(results[1]).startsWith("{\"line\":2,\"status\":\"failure\"");
+    assertThat(results[2]).isEqualTo("{\"line\":3,\"status\":\"success\"}");
+
+    ArgumentCaptor<GcmMessage> captor = ArgumentCaptor.forClass(GcmMessage.class);
+    verify(gcmSender, times(2)).sendMessage(captor.capture());
+
+    assertThat(captor.getAllValues().get(0).getGcmId()).isEqualTo("12345");
+    assertThat(captor.getAllValues().get(1).getGcmId()).isEqualTo("13579");
+  }
+
+  @Test
+  public void testStreamApnMalformed() throws TransientPushFailureException {
+    String messages = "{\"apnId\":\"12345\",\"number\":\"+14152222222\",\"deviceId\":1,\"message\":\"Hey there!\",\"voip\":false}\n" +
+                      "{\"apnId\":\"67890\",\"number\"\n" +
+                      "{\"apnId\":\"13579\",\"number\":\"+14154444444\",\"deviceId\":3,\"message\":\"Hey there!\",\"voip\":false}\n";
+
+    Response response = resources.getJerseyTest().target("/api/v1/push/apn/stream")
+                                 .request()
+                                 .header("Authorization", AuthHelper.getAuthHeader("textsecure", "foobar"))
+                                 .post(Entity.entity(messages, PushController.APPLICATION_NDJSON));
+
+    assertThat(response.getStatus()).isEqualTo(200);
+
+    String[] results = response.readEntity(String.class).split("\n");
+    assertThat(results.length).isEqualTo(2);
+    assertThat(results[0]).isEqualTo("{\"line\":1,\"status\":\"accepted\"}");
+    assertThat(results[1]).startsWith("{\"line\":2,\"status\":\"failure\"");
+
+    verify(apnSender, times(1)).sendMessage(any(ApnMessage.class));
+  }
+
+  @Test
+  public void testSendGcmOverInFlightLimit() {
+    SettableFuture<PushResult> pending = SettableFuture.create();
+    when(gcmSender.sendMessage(any(GcmMessage.class))).thenReturn(pending);
+
+    GcmMessage message = new GcmMessage("12345", "+14152222222", 1, "Hey there!", false, false, false, false);
+
+    for (int i = 0; i < 2; i++) {
+      Response response = resources.getJerseyTest().target("/api/v1/push/gcm/")
+                                   .request()
+                                   .header("Authorization", AuthHelper.getAuthHeader("textsecure", "foobar"))
+                                   .put(Entity.entity(message, MediaType.APPLICATION_JSON));
+
+      assertThat(response.getStatus()).isEqualTo(204);
+    }
+
+    Response limited = resources.getJerseyTest().target("/api/v1/push/gcm/")
+                                .request()
+                                .header("Authorization", AuthHelper.getAuthHeader("textsecure", "foobar"))
+                                .put(Entity.entity(message, MediaType.APPLICATION_JSON));
+
+    assertThat(limited.getStatus()).isEqualTo(429);
+    assertThat(limited.getHeaderString("Retry-After")).isEqualTo("5");
+
+    Response call = resources.getJerseyTest().target("/api/v1/push/gcm/")
+                             .request()
+                             .header("Authorization", AuthHelper.getAuthHeader("textsecure", "foobar"))
+                             .put(Entity.entity(new GcmMessage("12345", "+14152222222", 1, "Ring", false, false, false, true),
+                                                MediaType.APPLICATION_JSON));
+
+    assertThat(call.getStatus()).isEqualTo(204);
+
+    Response otherServer = resources.getJerseyTest().target("/api/v1/push/gcm/")
+                                    .request()
+                                    .header("Authorization", AuthHelper.getAuthHeader("redphone", "foobaz"))
+                                    .put(Entity.entity(message, MediaType.APPLICATION_JSON));
+
+    assertThat(otherServer.getStatus()).isEqualTo(204);
+
+    pending.set(PushResult.success());
+
+    Response released = resources.getJerseyTest().target("/api/v1/push/gcm/")
+                                 .request()
+                                 .header("Authorization", AuthHelper.getAuthHeader("textsecure", "foobar"))
+                                 .put(Entity.entity(message, MediaType.APPLICATION_JSON));
+
+    assertThat(released.getStatus()).isEqualTo(204);
+  }
+
+  @Test
+  public void testSendGcmSmile() throws IOException {
+    ByteArrayOutputStream body      = new ByteArrayOutputStream();
+    JsonGenerator         generator = new SmileFactory().createGenerator(body);
+
+    generator.writeStartObject();
+    generator.writeStringField("gcmId", "12345");
+    generator.writeStringField("number", "+14152222222");
+    generator.writeNumberField("deviceId", 1);
+    generator.writeBinaryField("message", new byte[] {0x01, 0x02, 0x03, (byte)0xff});
+    generator.writeEndObject();
+    generator.close();
+
+    Response response = resources.getJerseyTest().target("/api/v1/push/gcm/async")
+                                 .request(SmileMessageBodyProvider.APPLICATION_SMILE)
+                                 .header("Authorization", AuthHelper.getAuthHeader("textsecure", "foobar"))
+                                 .put(Entity.entity(body.toByteArray(), SmileMessageBodyProvider.APPLICATION_SMILE));
+
+    assertThat(response.getStatus()).isEqualTo(200);
+    assertThat(response.getMediaType().toString()).isEqualTo(SmileMessageBodyProvider.APPLICATION_SMILE);
+    assertThat(new SmileFactory().createParser(response.readEntity(byte[].class)).nextToken()).isNotNull();
+
+    ArgumentCaptor<GcmMessage> captor = ArgumentCaptor.forClass(GcmMessage.class);
+    verify(gcmSender).sendMessage(captor.capture());
+
+    assertThat(captor.getValue().getGcmId()).isEqualTo("12345");
+    assertThat(captor.getValue().getDeviceId()).isEqualTo(1);
+    assertThat(captor.getValue().getMessage()).isEqualTo("AQID/w==");
+  }
+
+  @Test
+  public void testSendApnSmileInvalid() throws IOException, TransientPushFailureException {
+    ByteArrayOutputStream body      = new ByteArrayOutputStream();
+    JsonGenerator         generator = new SmileFactory().createGenerator(body);
+
+    generator.writeStartObject();
+    generator.writeStringField("apnId", "12345");
+    generator.writeStringField("number", "+14152222222");
+    generator.writeNumberField("deviceId", 0);
+    generator.writeStringField("message", "Hey there!");
+    generator.writeEndObject();
+    generator.close();
+
+    Response response = resources.getJerseyTest().target("/api/v1/push/apn")
+                                 .request()
+                                 .header("Authorization", AuthHelper.getAuthHeader("textsecure", "foobar"))
+                                 .put(Entity.entity(body.toByteArray(), SmileMessageBodyProvider.APPLICATION_SMILE));
+
+    assertThat(response.getStatus()).isNotEqualTo(204);
+    verify(apnSender, never()).sendMessage(any(ApnMessage.class));
+  }
 
 }
@@ -0,0 +1,166 @@
+package org.whispersystems.pushserver.journal;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.whispersystems.pushserver.config.JournalConfiguration;
+import org.whispersystems.pushserver.entities.ApnMessage;
+import org.whispersystems.pushserver.entities.GcmMessage;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedList;
+import java.util.List;
+
+import io.dropwizard.jackson.Jackson;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PushJournalTest {
+
+  private final ObjectMapper objectMapper = Jackson.newObjectMapper();
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testReplaysOutstandingPushes() throws Exception {
+    JournalConfiguration configuration = new JournalConfiguration(folder.getRoot().getPath(), 64 * 1024);
+
+    PushJournal journal = new PushJournal(configuration, objectMapper);
+    journal.start();
+
+    long delivered = journal.append(new GcmMessage("gcm1", "+14152222222", 1, "one", false, false, false, false));
+    long pending   = journal.append(new GcmMessage("gcm2", "+14152222222", 2, "two", false, false, false, false));
+    long apn       = journal.append(new ApnMessage("apn1", "+14153333333", 1, "three", true, 1234));
+
+    journal.done(delivered);
+    journal.stop();
+
+    RecordingHandler handler  = new RecordingHandler();
+    PushJournal      restored = new PushJournal(configuration, objectMapper);
+    restored.start();
+    restored.replay(handler);
+
+    assertThat(handler.gcm).hasSize(1);
+    assertThat(handler.gcm.get(0).getGcmId()).isEqualTo("gcm2");
+    assertThat(handler.apn).hasSize(1);
+    assertThat(handler.apn.get(0).isVoip()).isTrue();
+    assertThat(handler.apn.get(0).getExpirationTime()).isEqualTo(1234);
+    assertThat(handler.entries).containsExactly(pending, apn);
+    assertThat(restored.getOutstanding()).isEqualTo(2);
+
+    restored.done(pending);
+    restored.done(apn);
+    restored.stop();
+
+    assertThat(folder.getRoot().list()).hasSize(1);
+
+    RecordingHandler empty = new RecordingHandler();
+    PushJournal      again = new PushJournal(configuration, objectMapper);
+    again.start();
+    again.replay(empty);
+    again.stop();
+
+    assertThat(empty.entries).isEmpty();
+  }
+
+  @Test
+  public void testRotatesAndReclaimsSegments() throws Exception {
+    PushJournal journal = new PushJournal(new JournalConfiguration(folder.getRoot().getPath(), 4096), objectMapper);
+    journal.start();
+
+    List<Long> entries = new LinkedList<>();
+
+    for (int i = 0; i < 200; i++) {
+      entries.add(journal.append(new GcmMessage("gcm" + i, "+14152222222", 1, "payload", false, false, false, false)));
+    }
+
+    assertThat(folder.getRoot().list().length).isGreaterThan(1);
+
+    for (long entry : entries) {
+      journal.done(entry);
+    }
+
+    assertThat(journal.getOutstanding()).isEqualTo(0);
+    assertThat(folder.getRoot().list()).hasSize(1);
+
+    journal.stop();
+  }
+
+  @Test
+  public void testUnmapsReclaimedSegments() throws Exception {
+    File maps = new File("/proc/self/maps");
+    Assume.assumeTrue(maps.canRead());
+
+    PushJournal journal = new PushJournal(new JournalConfiguration(folder.getRoot().getPath(), 4096), objectMapper);
+    journal.start();
+
+    List<Long> entries = new LinkedList<>();
+
+    for (int i = 0; i < 200; i++) {
+      entries.add(journal.append(new GcmMessage("gcm" + i, "+14152222222", 1, "payload", false, false, false, false)));
+    }
+
+    for (long entry : entries) {
+      journal.done(entry);
+    }
+
+    journal.stop();
+
+    for (String mapping : Files.readAllLines(maps.toPath(), StandardCharsets.UTF_8)) {
+      if (mapping.contains(folder.getRoot().getPath())) {
+        assertThat(mapping).doesNotContain("(deleted)");
+      }
+    }
+  }
+
+  @Test
+  public void testStopsAtTornRecord() throws Exception {
+    JournalConfiguration configuration = new JournalConfiguration(folder.getRoot().getPath(), 64 * 1024);
+
+    PushJournal journal = new PushJournal(configuration, objectMapper);
+    journal.start();
+    journal.append(new GcmMessage("gcm1", "+14152222222", 1, "one", false, false, false, false));
+    journal.append(new GcmMessage("gcm2", "+14152222222", 1, "two", false, false, false, false));
+    journal.stop();
+
+    File segment = folder.getRoot().listFiles()[0];
+
+    try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+      int first = file.readInt();
+      file.seek(8 + first + 20);
+      file.write(0xff);
+    }
+
+    RecordingHandler handler  = new RecordingHandler();
+    PushJournal      restored = new PushJournal(configuration, objectMapper);
+    restored.start();
+    restored.replay(handler);
+    restored.stop();
+
+    assertThat(handler.gcm).hasSize(1);
+    assertThat(handler.gcm.get(0).getGcmId()).isEqualTo("gcm1");
+  }
+
+  private static class RecordingHandler implements PushJournal.Handler {
+    private final List<Long>       entries = new LinkedList<>();
+    private final List<ApnMessage> apn     = new LinkedList<>();
+    private final List<GcmMessage> gcm     = new LinkedList<>();
+
+    @Override
+    public void replay(long entry, ApnMessage message) {
+      entries.add(entry);
+      apn.add(message);
+    }
+
+    @Override
+    public void replay(long entry, GcmMessage message) {
+      entries.add(entry);
+      gcm.add(message);
+    }
+  }
+}
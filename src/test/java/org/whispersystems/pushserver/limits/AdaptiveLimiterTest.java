@@ -0,0 +1,123 @@
+package org.whispersystems.pushserver.limits;
+
+import org.junit.Test;
+import org.whispersystems.pushserver.config.AdaptiveLimitConfiguration;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AdaptiveLimiterTest {
+
+  private static final long FAST = TimeUnit.MILLISECONDS.toNanos(20);
+  private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(200);
+
+  private long now = 0;
+
+  @Test
+  public void testGrowsWhileHealthy() {
+    AdaptiveLimiter limiter = new AdaptiveLimiter("test.grow", new AdaptiveLimitConfiguration(4, 2, 8, 0));
+
+    for (int i = 0; i < 100; i++) {
+      fill(limiter);
+      drain(limiter, FAST, false);
+    }
+
+    assertThat(limiter.getLimit()).isEqualTo(8);
+  }
+
+  @Test
+  public void testBacksOffOnDropsAndLatency() {
+    AdaptiveLimiter limiter = new AdaptiveLimiter("test.backoff", new AdaptiveLimitConfiguration(20, 2, 50, 0));
+
+    sample(limiter, FAST, false);
+    assertThat(limiter.getLimit()).isEqualTo(20);
+
+    sample(limiter, FAST, true);
+    assertThat(limiter.getLimit()).isEqualTo(18);
+
+    for (int i = 0; i < 10; i++) {
+      sample(limiter, SLOW, false);
+    }
+
+    assertThat(limiter.getLimit()).isLessThan(18);
+
+    for (int i = 0; i < 100; i++) {
+      sample(limiter, FAST, true);
+    }
+
+    assertThat(limiter.getLimit()).isEqualTo(2);
+  }
+
+  @Test
+  public void testBurstCostsOneBackoff() {
+    AdaptiveLimiter limiter = new AdaptiveLimiter("test.burst", new AdaptiveLimitConfiguration(20, 2, 50, 0));
+
+    sample(limiter, FAST, false);
+
+    fill(limiter);
+    drain(limiter, SLOW, true);
+
+    assertThat(limiter.getLimit()).isEqualTo(18);
+
+    sample(limiter, FAST, true);
+
+    assertThat(limiter.getLimit()).isEqualTo(16);
+  }
+
+  @Test
+  public void testToleratesLongTail() {
+    AdaptiveLimiter limiter = new AdaptiveLimiter("test.tail", new AdaptiveLimitConfiguration(4, 2, 50, 0));
+
+    for (int i = 0; i < 400; i++) {
+      fill(limiter);
+
+      long started = now;
+      int  sent    = limiter.getInFlight();
+
+      for (int j = 0; j < sent; j++) {
+        long rtt = j % 10 == 0 ? SLOW : FAST;
+        limiter.release(started, rtt, false);
+      }
+
+      now += SLOW;
+    }
+
+    assertThat(limiter.getLimit()).isEqualTo(50);
+  }
+
+  @Test
+  public void testEnforcesLimit() {
+    AdaptiveLimiter limiter = new AdaptiveLimiter("test.enforce", new AdaptiveLimitConfiguration(3, 1, 10, 0));
+
+    assertThat(limiter.tryAcquire()).isTrue();
+    assertThat(limiter.tryAcquire()).isTrue();
+    assertThat(limiter.tryAcquire()).isTrue();
+    assertThat(limiter.tryAcquire()).isFalse();
+
+    limiter.cancel();
+
+    assertThat(limiter.getInFlight()).isEqualTo(2);
+    assertThat(limiter.tryAcquire()).isTrue();
+  }
+
+  private void fill(AdaptiveLimiter limiter) {
+    while (limiter.tryAcquire());
+  }
+
+  private void drain(AdaptiveLimiter limiter, long rtt, boolean dropped) {
+    long started = now;
+
+    while (limiter.getInFlight() > 0) {
+      limiter.release(started, rtt, dropped);
+    }
+
+    now += rtt;
+  }
+
+  private void sample(AdaptiveLimiter limiter, long rtt, boolean dropped) {
+    assertThat(limiter.tryAcquire()).isTrue();
+    limiter.release(now, rtt, dropped);
+    now += rtt;
+  }
+}
@@ -0,0 +1,86 @@
+package org.whispersystems.pushserver.limits;
+
+import org.junit.Test;
+import org.whispersystems.pushserver.auth.Server;
+import org.whispersystems.pushserver.config.AdmissionConfiguration;
+import org.whispersystems.pushserver.config.LanesConfiguration;
+import org.whispersystems.pushserver.config.RateLimitConfiguration;
+import org.whispersystems.pushserver.entities.GcmMessage;
+
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class AdmissionControllerTest {
+
+  private final Server flooding = new Server("flooding", "secret", new RateLimitConfiguration(10, 1));
+  private final Server other    = new Server("other", "secret", new RateLimitConfiguration(10, 1));
+  private final Server limited  = new Server("limited", "secret", new RateLimitConfiguration(1, 1));
+
+  private final AdmissionController controller = new AdmissionController(new AdmissionConfiguration(100, 2, 100, 3, 1),
+                                                                         new LanesConfiguration(),
+                                                                         Arrays.asList(flooding, other, limited));
+
+  private final GcmMessage call    = new GcmMessage("12345", "+14152222222", 1, "ring", false, false, false, true);
+  private final GcmMessage message = new GcmMessage("12345", "+14152222222", 1, "hello", false, false, false, false);
+
+  @Test
+  public void testCallsBypassBulkRateLimit() throws Exception {
+    controller.acquireGcm(limited, message);
+
+    try {
+      controller.acquireGcm(limited, message);
+      fail("Rate limit not enforced");
+    } catch (RateLimitExceededException e) {
+      // expected
+    }
+
+    controller.acquireGcm(limited, call);
+  }
+
+  @Test
+  public void testCallFloodIsRateLimited() throws Exception {
+    controller.acquireGcm(limited, call).release();
+
+    try {
+      controller.acquireGcm(limited, call);
+      fail("Call rate limit not enforced");
+    } catch (RateLimitExceededException e) {
+      assertThat(e.getMessage()).contains("Rate limit exceeded");
+      assertThat(e.getRetryAfterSeconds()).isGreaterThanOrEqualTo(1);
+    }
+  }
+
+  @Test
+  public void testCallsCountAgainstProvider() throws Exception {
+    controller.acquireGcm(flooding, message);
+    controller.acquireGcm(flooding, message);
+    controller.acquireGcm(other, call);
+
+    try {
+      controller.acquireGcm(other, call);
+      fail("Provider limit not enforced");
+    } catch (RateLimitExceededException e) {
+      assertThat(e.getMessage()).isEqualTo("Too many pushes in flight");
+    }
+  }
+
+  @Test
+  public void testCallsAreLimitedPerServer() throws Exception {
+    AdmissionController.Permit first = controller.acquireGcm(flooding, call);
+    controller.acquireGcm(flooding, call);
+
+    try {
+      controller.acquireGcm(flooding, call);
+      fail("Per server call limit not enforced");
+    } catch (RateLimitExceededException e) {
+      assertThat(e.getMessage()).contains("flooding");
+    }
+
+    controller.acquireGcm(other, call);
+
+    first.release();
+    controller.acquireGcm(flooding, call);
+  }
+}
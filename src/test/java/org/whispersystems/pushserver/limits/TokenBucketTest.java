@@ -0,0 +1,50 @@
+package org.whispersystems.pushserver.limits;
+
+import com.google.common.base.Ticker;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TokenBucketTest {
+
+  @Test
+  public void testBucketDrainsAndRefills() {
+    FakeTicker  ticker = new FakeTicker();
+    TokenBucket bucket = new TokenBucket("test", 3, 10, ticker);
+
+    assertThat(bucket.getAvailableTokens()).isEqualTo(3);
+
+    assertThat(bucket.tryAcquire()).isTrue();
+    assertThat(bucket.tryAcquire()).isTrue();
+    assertThat(bucket.tryAcquire()).isTrue();
+    assertThat(bucket.tryAcquire()).isFalse();
+
+    assertThat(bucket.getAvailableTokens()).isEqualTo(0);
+    assertThat(bucket.getNanosUntilAvailable()).isEqualTo(TimeUnit.MILLISECONDS.toNanos(100));
+
+    ticker.advance(TimeUnit.MILLISECONDS.toNanos(100));
+
+    assertThat(bucket.getAvailableTokens()).isEqualTo(1);
+    assertThat(bucket.tryAcquire()).isTrue();
+    assertThat(bucket.tryAcquire()).isFalse();
+
+    ticker.advance(TimeUnit.SECONDS.toNanos(10));
+
+    assertThat(bucket.getAvailableTokens()).isEqualTo(3);
+  }
+
+  private static class FakeTicker extends Ticker {
+    private long now = 1000;
+
+    public void advance(long nanos) {
+      now += nanos;
+    }
+
+    @Override
+    public long read() {
+      return now;
+    }
+  }
+}
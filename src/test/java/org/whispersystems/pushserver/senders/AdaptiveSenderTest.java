@@ -0,0 +1,125 @@
+package org.whispersystems.pushserver.senders;
+
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.junit.Test;
+import org.whispersystems.gcm.server.Message;
+import org.whispersystems.gcm.server.Result;
+import org.whispersystems.pushserver.config.AdaptiveLimitConfiguration;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class AdaptiveSenderTest {
+
+  @Test
+  public void testQueuesBeyondLimit() throws Exception {
+    RecordingDelivery delivery = new RecordingDelivery();
+    AdaptiveSender    sender   = new AdaptiveSender("test_queue", delivery, new AdaptiveLimitConfiguration(2, 2, 2, 10), Ticker.systemTicker());
+    Message           message  = Message.newBuilder().withDestination("foo").build();
+
+    ListenableFuture<Result> first  = sender.send(message, null);
+    ListenableFuture<Result> second = sender.send(message, null);
+    ListenableFuture<Result> third  = sender.send(message, null);
+
+    assertThat(delivery.responses).hasSize(2);
+    assertThat(third.isDone()).isFalse();
+
+    Result result = mock(Result.class);
+    delivery.responses.get(0).set(result);
+
+    assertThat(first.get()).isSameAs(result);
+    assertThat(delivery.responses).hasSize(3);
+
+    delivery.responses.get(1).setException(new TransientPushFailureException("timeout"));
+
+    try {
+      second.get();
+      throw new AssertionError("expected failure");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause()).isInstanceOf(TransientPushFailureException.class);
+    }
+
+    delivery.responses.get(2).set(result);
+    assertThat(third.get()).isSameAs(result);
+    assertThat(sender.getLimiter().getInFlight()).isEqualTo(0);
+  }
+
+  @Test
+  public void testRejectsWhenBacklogFull() throws Exception {
+    RecordingDelivery delivery = new RecordingDelivery();
+    AdaptiveSender    sender   = new AdaptiveSender("test_overflow", delivery, new AdaptiveLimitConfiguration(1, 1, 1, 1), Ticker.systemTicker());
+    Message           message  = Message.newBuilder().withDestination("foo").build();
+
+    sender.send(message, null);
+    sender.send(message, null);
+
+    ListenableFuture<Result> rejected = sender.send(message, null);
+
+    assertThat(rejected.isDone()).isTrue();
+    assertThat(delivery.responses).hasSize(1);
+
+    try {
+      rejected.get();
+      throw new AssertionError("expected failure");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause()).isInstanceOf(SenderOverloadedException.class);
+    }
+  }
+
+  @Test
+  public void testRequestsShareLimit() throws Exception {
+    RecordingDelivery delivery = new RecordingDelivery();
+    AdaptiveSender    sender   = new AdaptiveSender("test_shared", delivery, new AdaptiveLimitConfiguration(1, 1, 1, 10), Ticker.systemTicker());
+    Message           message  = Message.newBuilder().withDestination("foo").build();
+
+    final SettableFuture<String> multicast = SettableFuture.create();
+
+    ListenableFuture<String> bulk = sender.send(new AdaptiveSender.Request<String>() {
+      @Override
+      public ListenableFuture<String> send() {
+        return multicast;
+      }
+
+      @Override
+      public boolean isDropped(String result) {
+        return false;
+      }
+    });
+
+    ListenableFuture<Result> single = sender.send(message, null);
+
+    assertThat(delivery.responses).isEmpty();
+    assertThat(sender.getLimiter().getInFlight()).isEqualTo(1);
+
+    multicast.set("done");
+
+    assertThat(bulk.get()).isEqualTo("done");
+    assertThat(delivery.responses).hasSize(1);
+
+    Result result = mock(Result.class);
+    delivery.responses.get(0).set(result);
+
+    assertThat(single.get()).isSameAs(result);
+    assertThat(sender.getLimiter().getInFlight()).isEqualTo(0);
+  }
+
+  private static class RecordingDelivery implements AdaptiveSender.Delivery {
+    private final List<SettableFuture<Result>> responses = new LinkedList<>();
+
+    @Override
+    public ListenableFuture<Result> send(Message message, Object context) {
+      SettableFuture<Result> response = SettableFuture.create();
+      responses.add(response);
+      return response;
+    }
+
+    @Override
+    public void stop() {}
+  }
+}
@@ -0,0 +1,56 @@
+package org.whispersystems.pushserver.senders;
+
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.whispersystems.pushserver.entities.UnregisteredEvent;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+
+public class ApnFeedbackResolverTest {
+
+  @Test
+  public void testResolvesInBulk() {
+    JedisPool         jedisPool         = mock(JedisPool.class);
+    Jedis             jedis             = mock(Jedis.class);
+    UnregisteredQueue unregisteredQueue = mock(UnregisteredQueue.class);
+
+    when(jedisPool.getResource()).thenReturn(jedis);
+    when(jedis.mget("APN-abcdef", "APN-123456", "APN-fedcba", "APN-654321"))
+        .thenReturn(Arrays.asList("+14152222222.1", null, "+14153333333.12", "garbage"));
+
+    Map<String, Date> inactiveDevices = new LinkedHashMap<>();
+    inactiveDevices.put("ABCDEF", new Date(1000));
+    inactiveDevices.put("123456", new Date(2000));
+    inactiveDevices.put("fedcba", new Date(3000));
+    inactiveDevices.put("654321", new Date(4000));
+
+    new ApnFeedbackResolver(jedisPool, unregisteredQueue).resolve(inactiveDevices);
+
+    @SuppressWarnings("unchecked")
+    ArgumentCaptor<List<UnregisteredEvent>> captor = (ArgumentCaptor) ArgumentCaptor.forClass(List.class);
+    verify(unregisteredQueue, times(1)).put(captor.capture());
+    verify(jedisPool, times(1)).getResource();
+
+    List<UnregisteredEvent> events = captor.getValue();
+
+    assertThat(events).hasSize(2);
+    assertThat(events.get(0).getRegistrationId()).isEqualTo("ABCDEF");
+    assertThat(events.get(0).getNumber()).isEqualTo("+14152222222");
+    assertThat(events.get(0).getDeviceId()).isEqualTo(1);
+    assertThat(events.get(1).getRegistrationId()).isEqualTo("fedcba");
+    assertThat(events.get(1).getNumber()).isEqualTo("+14153333333");
+    assertThat(events.get(1).getDeviceId()).isEqualTo(12);
+  }
+}
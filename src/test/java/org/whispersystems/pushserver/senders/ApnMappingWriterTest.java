@@ -0,0 +1,125 @@
+package org.whispersystems.pushserver.senders;
+
+import org.junit.Test;
+import org.whispersystems.pushserver.config.NearCacheConfiguration;
+import org.whispersystems.pushserver.config.WriteBehindConfiguration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import redis.clients.jedis.Client;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+
+public class ApnMappingWriterTest {
+
+  @Test
+  public void testBatchesMappings() throws Exception {
+    JedisPool jedisPool = mock(JedisPool.class);
+    Jedis     jedis     = mock(Jedis.class);
+    Client    client    = mock(Client.class);
+    Pipeline  pipeline  = new Pipeline();
+
+    pipeline.setClient(client);
+
+    when(jedisPool.getResource()).thenReturn(jedis);
+    when(jedis.pipelined()).thenReturn(pipeline);
+
+    ApnMappingWriter writer = new ApnMappingWriter(jedisPool, new WriteBehindConfiguration(100, 100, 1000), new NearCacheConfiguration(false, 1, 1));
+    writer.start();
+
+    writer.write("ABCDEF", "+14152222222", 1);
+    writer.write("123456", "+14153333333", 2);
+    writer.write("fedcba", "+14154444444", 3);
+
+    writer.stop();
+
+    verify(client).setex("APN-abcdef", ApnMappingWriter.MAPPING_TTL_SECONDS, "+14152222222.1");
+    verify(client).setex("APN-123456", ApnMappingWriter.MAPPING_TTL_SECONDS, "+14153333333.2");
+    verify(client).setex("APN-fedcba", ApnMappingWriter.MAPPING_TTL_SECONDS, "+14154444444.3");
+    verify(client, times(1)).getAll();
+  }
+
+  @Test
+  public void testFlushesBySize() throws Exception {
+    JedisPool jedisPool = mock(JedisPool.class);
+    Jedis     jedis     = mock(Jedis.class);
+    Client    client    = mock(Client.class);
+    Pipeline  pipeline  = new Pipeline();
+
+    pipeline.setClient(client);
+
+    when(jedisPool.getResource()).thenReturn(jedis);
+    when(jedis.pipelined()).thenReturn(pipeline);
+
+    ApnMappingWriter writer = new ApnMappingWriter(jedisPool, new WriteBehindConfiguration(100, 2, 1000), new NearCacheConfiguration(false, 1, 1));
+
+    for (int i = 0; i < 4; i++) {
+      writer.write("abcdef" + i, "+14152222222", 1);
+    }
+
+    writer.start();
+    writer.stop();
+
+    verify(client, times(4)).setex(anyString(), anyInt(), anyString());
+    verify(client, times(2)).getAll();
+  }
+
+  @Test
+  public void testSkipsUnchangedMappings() throws Exception {
+    JedisPool jedisPool = mock(JedisPool.class);
+    Jedis     jedis     = mock(Jedis.class);
+    Client    client    = mock(Client.class);
+    Pipeline  pipeline  = new Pipeline();
+
+    pipeline.setClient(client);
+
+    when(jedisPool.getResource()).thenReturn(jedis);
+    when(jedis.pipelined()).thenReturn(pipeline);
+
+    ApnMappingWriter writer = new ApnMappingWriter(jedisPool, new WriteBehindConfiguration(100, 100, 1000),
+                                                   new NearCacheConfiguration(true, 100, 900));
+
+    writer.write("abcdef", "+14152222222", 1);
+    writer.write("ABCDEF", "+14152222222", 1);
+    writer.write("abcdef", "+14152222222", 1);
+    writer.write("abcdef", "+14152222222", 2);
+
+    writer.start();
+    writer.stop();
+
+    verify(client, times(1)).setex("APN-abcdef", ApnMappingWriter.MAPPING_TTL_SECONDS, "+14152222222.1");
+    verify(client, times(1)).setex("APN-abcdef", ApnMappingWriter.MAPPING_TTL_SECONDS, "+14152222222.2");
+  }
+
+  @Test
+  public void testStopWakesIdleFlusher() throws Exception {
+    JedisPool jedisPool = mock(JedisPool.class);
+    Jedis     jedis     = mock(Jedis.class);
+    Client    client    = mock(Client.class);
+    Pipeline  pipeline  = new Pipeline();
+
+    pipeline.setClient(client);
+
+    when(jedisPool.getResource()).thenReturn(jedis);
+    when(jedis.pipelined()).thenReturn(pipeline);
+
+    ApnMappingWriter writer = new ApnMappingWriter(jedisPool, new WriteBehindConfiguration(100, 100, 60000), new NearCacheConfiguration(false, 1, 1));
+    writer.start();
+
+    writer.write("abcdef", "+14152222222", 1);
+    Thread.sleep(100);
+    writer.write("123456", "+14153333333", 2);
+
+    long start = System.currentTimeMillis();
+    writer.stop();
+
+    assertThat(System.currentTimeMillis() - start).isLessThan(5000);
+    verify(client, times(2)).setex(anyString(), anyInt(), anyString());
+  }
+}
@@ -0,0 +1,88 @@
+package org.whispersystems.pushserver.senders;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.whispersystems.pushserver.entities.ApnMessage;
+import org.whispersystems.pushserver.entities.PushResult;
+import org.whispersystems.pushserver.util.MockApnsServer;
+
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class ApnsConnectionPoolTest {
+
+  private final MockApnsServer    apnsServer        = new MockApnsServer();
+  private final UnregisteredQueue unregisteredQueue = mock(UnregisteredQueue.class);
+
+  private ApnsConnectionPool pool;
+
+  @Before
+  public void setup() throws Exception {
+    apnsServer.start();
+  }
+
+  @After
+  public void teardown() throws Exception {
+    pool.stop();
+    apnsServer.stop();
+  }
+
+  @Test
+  public void testSpreadsAcrossConnections() throws Exception {
+    pool = new ApnsConnectionPool("test", new LinkedList<ApnsHttp2Client>() {{
+      add(createClient(apnsServer.getEndpoint()));
+      add(createClient(apnsServer.getEndpoint()));
+    }});
+
+    List<ListenableFuture<PushResult>> results = new LinkedList<>();
+
+    for (int i = 0; i < 20; i++) {
+      results.add(pool.push(new ApnMessage("abcdef", "+14152222222", 1, "{}", false, 1111000), "alert"));
+    }
+
+    for (ListenableFuture<PushResult> result : results) {
+      assertThat(result.get(10, TimeUnit.SECONDS).getStatus()).isEqualTo(PushResult.STATUS_SUCCESS);
+    }
+
+    int connections = 0;
+
+    for (int i = 0; i < 20; i++) {
+      if (apnsServer.takeRequest().getSequenceNumber() == 0) connections++;
+    }
+
+    assertThat(connections).isEqualTo(2);
+  }
+
+  @Test
+  public void testSkipsUnhealthyConnection() throws Exception {
+    pool = new ApnsConnectionPool("test", new LinkedList<ApnsHttp2Client>() {{
+      add(createClient("http://127.0.0.1:1"));
+      add(createClient(apnsServer.getEndpoint()));
+    }});
+
+    List<PushResult> results = new LinkedList<>();
+
+    for (int i = 0; i < 12; i++) {
+      results.add(pool.push(new ApnMessage("abcdef", "+14152222222", 1, "{}", false, 1111000), "alert")
+                      .get(10, TimeUnit.SECONDS));
+    }
+
+    for (PushResult result : results.subList(6, 12)) {
+      assertThat(result.getStatus()).isEqualTo(PushResult.STATUS_SUCCESS);
+    }
+  }
+
+  private ApnsHttp2Client createClient(String endpoint) {
+    return new ApnsHttp2Client("test", endpoint, 100, unregisteredQueue,
+                               new OkHttpClient.Builder().protocols(Collections.singletonList(Protocol.H2_PRIOR_KNOWLEDGE)));
+  }
+}
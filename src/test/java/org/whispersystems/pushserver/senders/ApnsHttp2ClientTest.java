@@ -0,0 +1,141 @@
+package org.whispersystems.pushserver.senders;
+
+import com.google.common.base.Optional;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.whispersystems.pushserver.entities.ApnMessage;
+import org.whispersystems.pushserver.entities.PushResult;
+import org.whispersystems.pushserver.entities.UnregisteredEvent;
+import org.whispersystems.pushserver.util.MockApnsServer;
+
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.mockwebserver.RecordedRequest;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+public class ApnsHttp2ClientTest {
+
+  private final MockApnsServer    apnsServer        = new MockApnsServer();
+  private final UnregisteredQueue unregisteredQueue = mock(UnregisteredQueue.class);
+
+  private ApnsHttp2Client client;
+
+  @Before
+  public void setup() throws Exception {
+    apnsServer.start();
+
+    OkHttpClient.Builder builder = new OkHttpClient.Builder().protocols(Collections.singletonList(Protocol.H2_PRIOR_KNOWLEDGE));
+    client = new ApnsHttp2Client("test", apnsServer.getEndpoint(), 100, unregisteredQueue, builder);
+  }
+
+  @After
+  public void teardown() throws Exception {
+    client.stop();
+    apnsServer.stop();
+  }
+
+  @Test
+  public void testSuccess() throws Exception {
+    ApnMessage message = new ApnMessage("abcdef", "+14152222222", 1, "{\"aps\":{}}", false, 1111000);
+
+    PushResult result = client.push(message, "alert").get(10, TimeUnit.SECONDS);
+
+    assertThat(result.getStatus()).isEqualTo(PushResult.STATUS_SUCCESS);
+
+    RecordedRequest request = apnsServer.takeRequest();
+    assertThat(request.getPath()).isEqualTo("/3/device/abcdef");
+    assertThat(request.getHeader("apns-expiration")).isEqualTo("1111");
+    assertThat(request.getHeader("apns-push-type")).isEqualTo("alert");
+    assertThat(request.getBody().readUtf8()).isEqualTo("{\"aps\":{}}");
+
+    verify(unregisteredQueue, never()).put(any(UnregisteredEvent.class));
+  }
+
+  @Test
+  public void testReconnectOpensNewConnection() throws Exception {
+    apnsServer.delay("ffff");
+
+    ApnMessage message = new ApnMessage("abcdef", "+14152222222", 1, "{\"aps\":{}}", false, 1111000);
+    ApnMessage stuck   = new ApnMessage("ffff", "+14152222222", 1, "{\"aps\":{}}", false, 1111000);
+
+    client.push(message, "alert").get(10, TimeUnit.SECONDS);
+    ListenableFuture<PushResult> stuckResult = client.push(stuck, "alert");
+
+    assertThat(apnsServer.takeRequest().getSequenceNumber()).isEqualTo(0);
+    assertThat(apnsServer.takeRequest().getSequenceNumber()).isEqualTo(1);
+
+    client.reconnect();
+
+    assertThat(stuckResult.get(10, TimeUnit.SECONDS).getStatus()).isEqualTo(PushResult.STATUS_TRANSIENT);
+    assertThat(client.push(message, "alert").get(10, TimeUnit.SECONDS).getStatus()).isEqualTo(PushResult.STATUS_SUCCESS);
+    assertThat(apnsServer.takeRequest().getSequenceNumber()).isEqualTo(0);
+  }
+
+  @Test
+  public void testTopic() throws Exception {
+    ApnsHttp2Client topicClient = new ApnsHttp2Client("topic", apnsServer.getEndpoint(), Optional.of("org.example.app.voip"), 100, unregisteredQueue,
+                                                      new OkHttpClient.Builder().protocols(Collections.singletonList(Protocol.H2_PRIOR_KNOWLEDGE)));
+
+    try {
+      ApnMessage message = new ApnMessage("abcdef", "+14152222222", 1, "{\"aps\":{}}", true, 1111000);
+
+      assertThat(topicClient.push(message, "voip").get(10, TimeUnit.SECONDS).getStatus()).isEqualTo(PushResult.STATUS_SUCCESS);
+      assertThat(apnsServer.takeRequest().getHeader("apns-topic")).isEqualTo("org.example.app.voip");
+    } finally {
+      topicClient.stop();
+    }
+  }
+
+  @Test
+  public void testUnregistered() throws Exception {
+    apnsServer.unregister("abcdef");
+
+    ApnMessage message = new ApnMessage("abcdef", "+14152222222", 2, "{\"aps\":{}}", true, 1111000);
+    PushResult result  = client.push(message, "voip").get(10, TimeUnit.SECONDS);
+
+    assertThat(result.getStatus()).isEqualTo(PushResult.STATUS_UNREGISTERED);
+
+    ArgumentCaptor<UnregisteredEvent> captor = ArgumentCaptor.forClass(UnregisteredEvent.class);
+    verify(unregisteredQueue).put(captor.capture());
+
+    assertThat(captor.getValue().getRegistrationId()).isEqualTo("abcdef");
+    assertThat(captor.getValue().getNumber()).isEqualTo("+14152222222");
+    assertThat(captor.getValue().getDeviceId()).isEqualTo(2);
+  }
+
+  @Test
+  public void testRejected() throws Exception {
+    ApnMessage message = new ApnMessage("not-a-token", "+14152222222", 1, "{\"aps\":{}}", false, 1111000);
+    PushResult result  = client.push(message, "alert").get(10, TimeUnit.SECONDS);
+
+    assertThat(result.getStatus()).isEqualTo(PushResult.STATUS_FAILURE);
+    assertThat(result.getReason()).isEqualTo("BadDeviceToken");
+  }
+
+  @Test
+  public void testConcurrentStreams() throws Exception {
+    List<ListenableFuture<PushResult>> results = new LinkedList<>();
+
+    for (int i = 0; i < 50; i++) {
+      results.add(client.push(new ApnMessage("abcdef" + i, "+14152222222", 1, "{\"aps\":{}}", false, 1111000), "alert"));
+    }
+
+    for (ListenableFuture<PushResult> result : results) {
+      assertThat(result.get(10, TimeUnit.SECONDS).getStatus()).isEqualTo(PushResult.STATUS_SUCCESS);
+    }
+
+    assertThat(apnsServer.getRequestCount()).isEqualTo(50);
+  }
+}
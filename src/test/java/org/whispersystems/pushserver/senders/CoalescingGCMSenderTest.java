@@ -0,0 +1,94 @@
+package org.whispersystems.pushserver.senders;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.junit.Test;
+import org.whispersystems.pushserver.entities.GcmMessage;
+import org.whispersystems.pushserver.entities.PushResult;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class CoalescingGCMSenderTest {
+
+  @Test
+  public void testCoalescesSameRegistration() throws Exception {
+    GCMSender           delegate = mock(GCMSender.class);
+    CoalescingGCMSender sender   = new CoalescingGCMSender(delegate, 200);
+
+    when(delegate.sendMessage(any(GcmMessage.class))).thenReturn(Futures.immediateFuture(PushResult.success()));
+
+    GcmMessage first  = new GcmMessage("12345", "+14152222222", 1, "first", false, false, false, false);
+    GcmMessage second = new GcmMessage("12345", "+14152222222", 1, "second", false, false, false, false);
+    GcmMessage other  = new GcmMessage("67890", "+14153333333", 1, "other", false, false, false, false);
+
+    ListenableFuture<PushResult> firstResult  = sender.sendMessage(first);
+    ListenableFuture<PushResult> secondResult = sender.sendMessage(second);
+    ListenableFuture<PushResult> otherResult  = sender.sendMessage(other);
+
+    assertThat(firstResult.isDone()).isFalse();
+    assertThat(firstResult.get(5, TimeUnit.SECONDS).getStatus()).isEqualTo(PushResult.STATUS_SUCCESS);
+    assertThat(secondResult.get(5, TimeUnit.SECONDS).getStatus()).isEqualTo(PushResult.STATUS_SUCCESS);
+    assertThat(otherResult.get(5, TimeUnit.SECONDS).getStatus()).isEqualTo(PushResult.STATUS_SUCCESS);
+
+    verify(delegate, times(1)).sendMessage(second);
+    verify(delegate, times(1)).sendMessage(other);
+    verify(delegate, times(0)).sendMessage(first);
+
+    sender.stop();
+  }
+
+  @Test
+  public void testCallsAreNotDelayed() throws Exception {
+    GCMSender           delegate = mock(GCMSender.class);
+    CoalescingGCMSender sender   = new CoalescingGCMSender(delegate, 60000);
+
+    when(delegate.sendMessage(any(GcmMessage.class))).thenReturn(Futures.immediateFuture(PushResult.success()));
+
+    GcmMessage call = new GcmMessage("12345", "+14152222222", 1, "ring", false, false, false, true);
+
+    assertThat(sender.sendMessage(call).isDone()).isTrue();
+    assertThat(sender.sendMessage(call).isDone()).isTrue();
+
+    verify(delegate, times(2)).sendMessage(call);
+  }
+
+  @Test
+  public void testStopDeliversPendingOnce() throws Exception {
+    GCMSender           delegate = mock(GCMSender.class);
+    CoalescingGCMSender sender   = new CoalescingGCMSender(delegate, 50);
+
+    when(delegate.sendMessage(any(GcmMessage.class))).thenReturn(Futures.immediateFuture(PushResult.success()));
+
+    GcmMessage message = new GcmMessage("12345", "+14152222222", 1, "pending", false, false, false, false);
+    GcmMessage late    = new GcmMessage("67890", "+14153333333", 1, "late", false, false, false, false);
+
+    ListenableFuture<PushResult> result = sender.sendMessage(message);
+    sender.stop();
+
+    assertThat(result.get(5, TimeUnit.SECONDS).getStatus()).isEqualTo(PushResult.STATUS_SUCCESS);
+    assertThat(sender.sendMessage(late).get(5, TimeUnit.SECONDS).getStatus()).isEqualTo(PushResult.STATUS_SUCCESS);
+
+    Thread.sleep(200);
+
+    verify(delegate, times(1)).sendMessage(message);
+    verify(delegate, times(1)).sendMessage(late);
+  }
+
+  @Test
+  public void testForwardsWarmUp() throws Exception {
+    GCMSender           delegate = mock(GCMSender.class);
+    CoalescingGCMSender sender   = new CoalescingGCMSender(delegate, 50);
+
+    sender.warmUp();
+
+    verify(delegate).warmUp();
+    sender.stop();
+  }
+}
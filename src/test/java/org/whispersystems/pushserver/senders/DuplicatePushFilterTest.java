@@ -0,0 +1,60 @@
+package org.whispersystems.pushserver.senders;
+
+import org.junit.Test;
+import org.whispersystems.pushserver.config.DeduplicationConfiguration;
+import org.whispersystems.pushserver.entities.ApnMessage;
+import org.whispersystems.pushserver.entities.GcmMessage;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+
+public class DuplicatePushFilterTest {
+
+  @Test
+  public void testLocalDuplicates() {
+    DuplicatePushFilter filter = new DuplicatePushFilter(new DeduplicationConfiguration(true, 60, 1000, false), null);
+
+    GcmMessage gcmMessage = new GcmMessage("12345", "+14152222222", 1, "Hey there!", false, false, false, false);
+    GcmMessage gcmReceipt = new GcmMessage("12345", "+14152222222", 1, "Hey there!", true, false, false, false);
+    ApnMessage apnMessage = new ApnMessage("12345", "+14152222222", 1, "Hey there!", false, 1111);
+
+    assertThat(filter.isDuplicate(gcmMessage)).isFalse();
+    assertThat(filter.isDuplicate(new GcmMessage("12345", "+14152222222", 1, "Hey there!", false, false, false, false))).isTrue();
+    assertThat(filter.isDuplicate(gcmReceipt)).isFalse();
+    assertThat(filter.isDuplicate(apnMessage)).isFalse();
+    assertThat(filter.isDuplicate(apnMessage)).isTrue();
+
+    filter.forget(apnMessage);
+
+    assertThat(filter.isDuplicate(apnMessage)).isFalse();
+  }
+
+  @Test
+  public void testDisabled() {
+    DuplicatePushFilter filter     = new DuplicatePushFilter(new DeduplicationConfiguration(), null);
+    GcmMessage          gcmMessage = new GcmMessage("12345", "+14152222222", 1, "Hey there!", false, false, false, false);
+
+    assertThat(filter.isDuplicate(gcmMessage)).isFalse();
+    assertThat(filter.isDuplicate(gcmMessage)).isFalse();
+  }
+
+  @Test
+  public void testRedisDuplicates() {
+    JedisPool jedisPool = mock(JedisPool.class);
+    Jedis     jedis     = mock(Jedis.class);
+
+    when(jedisPool.getResource()).thenReturn(jedis);
+    when(jedis.set(anyString(), anyString(), eq("NX"), eq("EX"), anyInt())).thenReturn(null);
+
+    DuplicatePushFilter filter     = new DuplicatePushFilter(new DeduplicationConfiguration(true, 60, 1000, true), jedisPool);
+    ApnMessage          apnMessage = new ApnMessage("12345", "+14152222222", 1, "Hey there!", false, 1111);
+
+    assertThat(filter.isDuplicate(apnMessage)).isTrue();
+  }
+}
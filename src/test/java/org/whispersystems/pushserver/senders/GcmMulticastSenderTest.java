@@ -0,0 +1,83 @@
+package org.whispersystems.pushserver.senders;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+public class GcmMulticastSenderTest {
+
+  private final MockWebServer server = new MockWebServer();
+
+  private GcmMulticastSender sender;
+
+  @Before
+  public void setup() throws Exception {
+    server.start();
+    sender = new GcmMulticastSender(server.url("/gcm/send").toString(), 2);
+  }
+
+  @After
+  public void teardown() throws Exception {
+    sender.stop();
+    server.shutdown();
+  }
+
+  @Test
+  public void testSplitsResults() throws Exception {
+    server.enqueue(new MockResponse().setBody("{\"multicast_id\":1,\"success\":2,\"failure\":1,\"canonical_ids\":1," +
+                                              "\"results\":[{\"message_id\":\"1:0\"}," +
+                                              "{\"error\":\"NotRegistered\"}," +
+                                              "{\"message_id\":\"1:2\",\"registration_id\":\"new\"}]}"));
+
+    List<GcmMulticastSender.Response> responses = sender.send("secret", Arrays.asList("a", "b", "c"), "message", "", "message")
+                                                        .get(5, TimeUnit.SECONDS);
+
+    assertThat(responses).hasSize(3);
+    assertThat(responses.get(0).getMessageId()).isEqualTo("1:0");
+    assertThat(responses.get(1).getError()).isEqualTo("NotRegistered");
+    assertThat(responses.get(2).getCanonicalRegistrationId()).isEqualTo("new");
+
+    RecordedRequest request = server.takeRequest();
+    String          body    = request.getBody().readUtf8();
+
+    assertThat(request.getHeader("Authorization")).isEqualTo("key=secret");
+    assertThat(body).contains("\"registration_ids\":[\"a\",\"b\",\"c\"]");
+    assertThat(body).contains("\"collapse_key\":\"message\"");
+  }
+
+  @Test
+  public void testBadStatusFailsRequest() throws Exception {
+    server.enqueue(new MockResponse().setResponseCode(503).setHeader("Retry-After", "30"));
+
+    try {
+      sender.send("secret", Arrays.asList("a", "b"), "message", "", null).get(5, TimeUnit.SECONDS);
+      throw new AssertionError("expected failure");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause()).isInstanceOf(TransientPushFailureException.class).hasMessage("Bad status: 503");
+      assertThat(((TransientPushFailureException) e.getCause()).getRetryAfterMillis()).isEqualTo(30000);
+    }
+  }
+
+  @Test
+  public void testMismatchedResultsFailRequest() throws Exception {
+    server.enqueue(new MockResponse().setBody("{\"results\":[{\"message_id\":\"1:0\"}]}"));
+
+    try {
+      sender.send("secret", Arrays.asList("a", "b"), "message", "", null).get(5, TimeUnit.SECONDS);
+      throw new AssertionError("expected failure");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause()).isInstanceOf(UnexpectedResponseException.class)
+                              .hasMessage("Expected 2 results, got 1");
+    }
+  }
+}
@@ -0,0 +1,116 @@
+package org.whispersystems.pushserver.senders;
+
+import org.jivesoftware.smack.util.StringUtils;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.junit.Assume;
+import org.junit.Test;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class GcmStanzaEncoderTest {
+
+  private static final String PAYLOAD = "CiEFx3n+<&>\"quoted\"\\back/slash\n\t\u0001\u007f\u00e9\u2028\ud83d\ude00";
+
+  @Test
+  public void testMatchesJsonSimpleEncoding() throws Exception {
+    String stanza = GcmStanzaEncoder.encode("gcm-id", "m-1", "receipt", PAYLOAD, "receipt");
+
+    assertThat(parse(stanza)).isEqualTo(parse(encodeWithJsonSimple("gcm-id", "m-1", "receipt", PAYLOAD, "receipt")));
+    assertThat(parse(stanza).get("data")).isEqualTo(new HashMap<String, Object>() {{
+      put("type", "message");
+      put("receipt", PAYLOAD);
+    }});
+  }
+
+  @Test
+  public void testNoCollapseKey() throws Exception {
+    Map<String, Object> json = parse(GcmStanzaEncoder.encode("gcm-id", "m-1", "message", "", null));
+
+    assertThat(json).doesNotContainKey("collapse_key");
+    assertThat(json.get("to")).isEqualTo("gcm-id");
+  }
+
+  @Test
+  public void testBufferIsReused() throws Exception {
+    String first  = GcmStanzaEncoder.encode("a", "m-1", "message", PAYLOAD, null);
+    String second = GcmStanzaEncoder.encode("b", "m-2", "message", "short", null);
+
+    assertThat(parse(first).get("to")).isEqualTo("a");
+    assertThat(parse(second).get("to")).isEqualTo("b");
+    assertThat(second.length()).isLessThan(first.length());
+  }
+
+  @Test
+  public void testAllocatesLessThanJsonSimple() throws Exception {
+    Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    Assume.assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+
+    long threadId = Thread.currentThread().getId();
+    int  count    = 20000;
+
+    for (int i = 0; i < count; i++) {
+      GcmStanzaEncoder.encode("gcm-id", "m-" + i, "message", PAYLOAD, "message");
+      encodeWithJsonSimple("gcm-id", "m-" + i, "message", PAYLOAD, "message");
+    }
+
+    long start = threads.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < count; i++) {
+      GcmStanzaEncoder.encode("gcm-id", "m-1", "message", PAYLOAD, "message");
+    }
+    long encoder = threads.getThreadAllocatedBytes(threadId) - start;
+
+    start = threads.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < count; i++) {
+      encodeWithJsonSimple("gcm-id", "m-1", "message", PAYLOAD, "message");
+    }
+    long jsonSimple = threads.getThreadAllocatedBytes(threadId) - start;
+
+    assertThat(encoder * 3).isLessThan(jsonSimple);
+  }
+
+  /**
+   * The path the sender used before, for comparison.
+   */
+  private static String encodeWithJsonSimple(String to, String messageId, String dataKey, String payload, String collapseKey) {
+    Map<String, String> dataObject = new HashMap<>();
+    dataObject.put("type", "message");
+    dataObject.put(dataKey, payload);
+
+    Map<String, Object> messageObject = new HashMap<>();
+    messageObject.put("to", to);
+    messageObject.put("message_id", messageId);
+    messageObject.put("data", dataObject);
+
+    if (collapseKey != null) {
+      messageObject.put("collapse_key", collapseKey);
+    }
+
+    String json = JSONObject.toJSONString(messageObject);
+
+    return "<message>" + String.format("<%s xmlns=\"%s\">%s</%s>", "gcm", "google:mobile:data",
+                                       StringUtils.escapeForXML(json), "gcm") + "</message>";
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Map<String, Object> parse(String stanza) throws Exception {
+    XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
+    factory.setNamespaceAware(true);
+
+    XmlPullParser parser = factory.newPullParser();
+    parser.setInput(new StringReader(stanza));
+
+    while (parser.next() != XmlPullParser.START_TAG || !"gcm".equals(parser.getName())) {}
+
+    return (Map<String, Object>) JSONValue.parseWithException(parser.nextText());
+  }
+}
@@ -0,0 +1,29 @@
+package org.whispersystems.pushserver.senders;
+
+import org.junit.Test;
+import org.whispersystems.gcm.server.AuthenticationFailedException;
+import org.whispersystems.gcm.server.InvalidRequestException;
+import org.whispersystems.gcm.server.ServerFailedException;
+
+import java.net.SocketTimeoutException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class HttpGCMSenderTest {
+
+  @Test
+  public void testRetriesProviderFailures() {
+    assertThat(HttpGCMSender.isRetryable(new SocketTimeoutException("timeout"))).isTrue();
+    assertThat(HttpGCMSender.isRetryable(new ServerFailedException("Bad response: 503"))).isTrue();
+    assertThat(HttpGCMSender.isRetryable(new TransientPushFailureException("Bad status: 429", 1000))).isTrue();
+  }
+
+  @Test
+  public void testFailsLocalAndPermanentErrors() {
+    assertThat(HttpGCMSender.isRetryable(new SenderOverloadedException("GCM sender backlog full"))).isFalse();
+    assertThat(HttpGCMSender.isRetryable(new UnexpectedResponseException("Expected 2 results, got 1"))).isFalse();
+    assertThat(HttpGCMSender.isRetryable(new AuthenticationFailedException())).isFalse();
+    assertThat(HttpGCMSender.isRetryable(new InvalidRequestException())).isFalse();
+    assertThat(HttpGCMSender.isRetryable(new IllegalStateException("bug"))).isFalse();
+  }
+}
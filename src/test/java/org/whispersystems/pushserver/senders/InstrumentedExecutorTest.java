@@ -0,0 +1,81 @@
+package org.whispersystems.pushserver.senders;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import org.junit.Test;
+import org.whispersystems.pushserver.util.Constants;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class InstrumentedExecutorTest {
+
+  private final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
+
+  @Test
+  public void testCallerRunsWhenSaturated() throws Exception {
+    InstrumentedExecutor executor = new InstrumentedExecutor("test.saturation", "test-saturation", 1, 1);
+    CountDownLatch       release  = new CountDownLatch(1);
+
+    executor.execute(new Blocker(release));
+    executor.execute(new Blocker(release));
+
+    assertThat(metricRegistry.getGauges().get("test.saturation.queue_depth").getValue()).isEqualTo(1);
+
+    final AtomicReference<Thread> ranOn = new AtomicReference<>();
+
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        ranOn.set(Thread.currentThread());
+      }
+    });
+
+    assertThat(ranOn.get()).isEqualTo(Thread.currentThread());
+    assertThat(metricRegistry.meter("test.saturation.saturated").getCount()).isEqualTo(1);
+
+    release.countDown();
+    executor.shutdown();
+    assertThat(executor.awaitTermination(5, TimeUnit.SECONDS)).isTrue();
+
+    assertThat(metricRegistry.timer("test.saturation.queue_latency").getCount()).isEqualTo(3);
+  }
+
+  @Test
+  public void testRunsAfterShutdown() throws Exception {
+    InstrumentedExecutor executor = new InstrumentedExecutor("test.shutdown", "test-shutdown", 1, 1);
+    final CountDownLatch ran      = new CountDownLatch(1);
+
+    executor.shutdown();
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        ran.countDown();
+      }
+    });
+
+    assertThat(ran.getCount()).isEqualTo(0);
+    assertThat(metricRegistry.meter("test.shutdown.saturated").getCount()).isEqualTo(0);
+  }
+
+  private static class Blocker implements Runnable {
+    private final CountDownLatch release;
+
+    private Blocker(CountDownLatch release) {
+      this.release = release;
+    }
+
+    @Override
+    public void run() {
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+    }
+  }
+}
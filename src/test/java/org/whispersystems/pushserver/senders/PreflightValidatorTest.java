@@ -0,0 +1,53 @@
+package org.whispersystems.pushserver.senders;
+
+import com.google.common.base.Strings;
+import org.junit.Test;
+import org.whispersystems.pushserver.config.PreflightConfiguration;
+import org.whispersystems.pushserver.entities.ApnMessage;
+import org.whispersystems.pushserver.entities.GcmMessage;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PreflightValidatorTest {
+
+  private static final String APN_TOKEN = Strings.repeat("a1", 32);
+  private static final long   TOMORROW  = System.currentTimeMillis() + 86400000L;
+
+  private final PreflightValidator validator = new PreflightValidator(new PreflightConfiguration());
+
+  @Test
+  public void testValidApn() {
+    assertThat(validator.validate(new ApnMessage(APN_TOKEN, "+14152222222", 1, "{}", false, TOMORROW)).isPresent()).isFalse();
+    assertThat(validator.validate(new ApnMessage(APN_TOKEN, "+14152222222", 1, "{}", false, 0)).isPresent()).isFalse();
+  }
+
+  @Test
+  public void testApnRejections() {
+    assertThat(validator.validate(new ApnMessage(APN_TOKEN, "+14152222222", 1, "{}", false, 1111)).get())
+        .isEqualTo(PreflightValidator.REASON_EXPIRED);
+    assertThat(validator.validate(new ApnMessage("12345", "+14152222222", 1, "{}", false, TOMORROW)).get())
+        .isEqualTo(PreflightValidator.REASON_BAD_TOKEN);
+    assertThat(validator.validate(new ApnMessage(Strings.repeat("zz", 32), "+14152222222", 1, "{}", false, TOMORROW)).get())
+        .isEqualTo(PreflightValidator.REASON_BAD_TOKEN);
+    assertThat(validator.validate(new ApnMessage(APN_TOKEN, "+14152222222", 1, Strings.repeat("x", 4097), false, TOMORROW)).get())
+        .isEqualTo(PreflightValidator.REASON_PAYLOAD_TOO_LARGE);
+    assertThat(validator.validate(new ApnMessage(APN_TOKEN, "+14152222222", 1, Strings.repeat("x", 4097), true, TOMORROW)).isPresent())
+        .isFalse();
+  }
+
+  @Test
+  public void testGcm() {
+    assertThat(validator.validate(new GcmMessage("APA91bH-abc_def:123", "+14152222222", 1, "hi", false, false, false, false)).isPresent())
+        .isFalse();
+    assertThat(validator.validate(new GcmMessage("bad token", "+14152222222", 1, "hi", false, false, false, false)).get())
+        .isEqualTo(PreflightValidator.REASON_BAD_TOKEN);
+    assertThat(validator.validate(new GcmMessage("APA91b", "+14152222222", 1, Strings.repeat("\u00e9", 2049), false, false, false, false)).get())
+        .isEqualTo(PreflightValidator.REASON_PAYLOAD_TOO_LARGE);
+  }
+
+  @Test
+  public void testDisabled() {
+    PreflightValidator disabled = new PreflightValidator(new PreflightConfiguration(false));
+    assertThat(disabled.validate(new ApnMessage("12345", "+14152222222", 1, "{}", false, 1111)).isPresent()).isFalse();
+  }
+}
@@ -0,0 +1,107 @@
+package org.whispersystems.pushserver.senders;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.junit.Test;
+import org.whispersystems.pushserver.entities.PushResult;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PushBatcherTest {
+
+  @Test
+  public void testGroupsByKeyAndSplitsResults() throws Exception {
+    final List<List<String>> batches = new LinkedList<>();
+
+    PushBatcher<String> batcher = new PushBatcher<>("test", 50, 1000, new PushBatcher.Delivery<String>() {
+      @Override
+      public ListenableFuture<List<PushResult>> deliver(List<String> messages) {
+        synchronized (batches) {
+          batches.add(messages);
+        }
+
+        List<PushResult> results = new ArrayList<>();
+
+        for (String message : messages) {
+          results.add(message.startsWith("gone") ? PushResult.unregistered() : PushResult.success());
+        }
+
+        return Futures.immediateFuture(results);
+      }
+    });
+
+    ListenableFuture<PushResult> first  = batcher.add("a", "one");
+    ListenableFuture<PushResult> second = batcher.add("a", "gone-two");
+    ListenableFuture<PushResult> other  = batcher.add("b", "three");
+
+    assertThat(first.get(1, TimeUnit.SECONDS).getStatus()).isEqualTo(PushResult.STATUS_SUCCESS);
+    assertThat(second.get(1, TimeUnit.SECONDS).getStatus()).isEqualTo(PushResult.STATUS_UNREGISTERED);
+    assertThat(other.get(1, TimeUnit.SECONDS).getStatus()).isEqualTo(PushResult.STATUS_SUCCESS);
+
+    assertThat(batches).hasSize(2);
+    assertThat(batches).contains(Arrays.asList("one", "gone-two"));
+  }
+
+  @Test
+  public void testFlushesWhenFull() throws Exception {
+    final List<SettableFuture<List<PushResult>>> deliveries = new LinkedList<>();
+
+    PushBatcher<String> batcher = new PushBatcher<>("test_full", 60000, 2, new PushBatcher.Delivery<String>() {
+      @Override
+      public ListenableFuture<List<PushResult>> deliver(List<String> messages) {
+        SettableFuture<List<PushResult>> delivery = SettableFuture.create();
+        deliveries.add(delivery);
+        return delivery;
+      }
+    });
+
+    ListenableFuture<PushResult> first  = batcher.add("a", "one");
+    ListenableFuture<PushResult> second = batcher.add("a", "two");
+    ListenableFuture<PushResult> third  = batcher.add("a", "three");
+
+    assertThat(deliveries).hasSize(1);
+
+    deliveries.get(0).setException(new TransientPushFailureException("unavailable"));
+
+    try {
+      first.get();
+      throw new AssertionError("expected failure");
+    } catch (ExecutionException e) {
+      assertThat(second.isDone()).isTrue();
+    }
+
+    assertThat(third.isDone()).isFalse();
+
+    batcher.stop();
+
+    assertThat(deliveries).hasSize(2);
+  }
+
+  @Test
+  public void testAddAfterStopDeliversInline() throws Exception {
+    PushBatcher<String> batcher = new PushBatcher<>("test", 50, 1000, new PushBatcher.Delivery<String>() {
+      @Override
+      public ListenableFuture<List<PushResult>> deliver(List<String> messages) {
+        List<PushResult> results = new ArrayList<>();
+
+        for (String message : messages) {
+          results.add(PushResult.success());
+        }
+
+        return Futures.immediateFuture(results);
+      }
+    });
+
+    batcher.stop();
+
+    assertThat(batcher.add("a", "late").get(1, TimeUnit.SECONDS).getStatus()).isEqualTo(PushResult.STATUS_SUCCESS);
+  }
+}
@@ -0,0 +1,107 @@
+package org.whispersystems.pushserver.senders;
+
+import org.junit.Test;
+import org.whispersystems.pushserver.config.RetryConfiguration;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RetrySchedulerTest {
+
+  @Test
+  public void testBackoffIsJitteredAndCapped() {
+    RetryScheduler scheduler = new RetryScheduler("test_backoff", new RetryConfiguration(10, 100, 1000, 10));
+
+    for (int i = 0; i < 100; i++) {
+      assertThat(scheduler.getBackoffMillis(1)).isBetween(50L, 100L);
+      assertThat(scheduler.getBackoffMillis(3)).isBetween(200L, 400L);
+      assertThat(scheduler.getBackoffMillis(8)).isBetween(500L, 1000L);
+      assertThat(scheduler.getBackoffMillis(64)).isBetween(500L, 1000L);
+    }
+
+    scheduler.stop();
+  }
+
+  @Test
+  public void testRetriesWithinBudget() throws Exception {
+    RetryScheduler scheduler = new RetryScheduler("test_budget", new RetryConfiguration(3, 1, 1, 10));
+    CountDownLatch ran       = new CountDownLatch(2);
+
+    assertThat(scheduler.retry(1, 0, new Latch(ran))).isTrue();
+    assertThat(scheduler.retry(2, 0, new Latch(ran))).isTrue();
+    assertThat(scheduler.retry(3, 0, new Latch(ran))).isFalse();
+
+    assertThat(ran.await(5, TimeUnit.SECONDS)).isTrue();
+
+    scheduler.stop();
+  }
+
+  @Test
+  public void testCapsRetriesInFlight() {
+    RetryScheduler scheduler = new RetryScheduler("test_cap", new RetryConfiguration(5, 60000, 60000, 2));
+    AtomicInteger  ran       = new AtomicInteger(0);
+    AtomicInteger  abandoned = new AtomicInteger(0);
+
+    assertThat(scheduler.retry(1, 0, new Counter(ran, abandoned))).isTrue();
+    assertThat(scheduler.retry(1, 0, new Counter(ran, abandoned))).isTrue();
+    assertThat(scheduler.retry(1, 0, new Counter(ran, abandoned))).isFalse();
+
+    scheduler.stop();
+
+    assertThat(ran.get()).isEqualTo(0);
+    assertThat(abandoned.get()).isEqualTo(2);
+    assertThat(scheduler.retry(1, 0, new Counter(ran, abandoned))).isFalse();
+  }
+
+  @Test
+  public void testHonorsRetryAfter() throws Exception {
+    RetryScheduler scheduler = new RetryScheduler("test_retry_after", new RetryConfiguration(5, 1, 1, 10));
+    CountDownLatch ran       = new CountDownLatch(1);
+    long           started   = System.currentTimeMillis();
+
+    assertThat(scheduler.retry(1, 200, new Latch(ran))).isTrue();
+    assertThat(ran.await(5, TimeUnit.SECONDS)).isTrue();
+    assertThat(System.currentTimeMillis() - started).isGreaterThanOrEqualTo(200);
+
+    scheduler.stop();
+  }
+
+  private static class Latch implements RetryScheduler.Task {
+    private final CountDownLatch latch;
+
+    private Latch(CountDownLatch latch) {
+      this.latch = latch;
+    }
+
+    @Override
+    public void retry() {
+      latch.countDown();
+    }
+
+    @Override
+    public void abandon() {}
+  }
+
+  private static class Counter implements RetryScheduler.Task {
+    private final AtomicInteger ran;
+    private final AtomicInteger abandoned;
+
+    private Counter(AtomicInteger ran, AtomicInteger abandoned) {
+      this.ran       = ran;
+      this.abandoned = abandoned;
+    }
+
+    @Override
+    public void retry() {
+      ran.incrementAndGet();
+    }
+
+    @Override
+    public void abandon() {
+      abandoned.incrementAndGet();
+    }
+  }
+}
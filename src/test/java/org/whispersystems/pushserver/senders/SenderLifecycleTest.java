@@ -0,0 +1,88 @@
+package org.whispersystems.pushserver.senders;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import io.dropwizard.lifecycle.Managed;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SenderLifecycleTest {
+
+  @Test
+  public void testStartsInParallelAndWarmsUp() throws Exception {
+    final CountDownLatch started = new CountDownLatch(2);
+    final CountDownLatch warm    = new CountDownLatch(1);
+
+    SenderLifecycle lifecycle = new SenderLifecycle();
+    lifecycle.add("apn", new WarmableSender(started, warm));
+    lifecycle.add("gcm", new Sender(started));
+
+    assertThat(lifecycle.getNotReady()).containsKeys("apn", "gcm");
+
+    lifecycle.start();
+
+    assertThat(lifecycle.getNotReady()).containsOnlyKeys("apn");
+
+    warm.countDown();
+
+    for (int i = 0; i < 100 && !lifecycle.getNotReady().isEmpty(); i++) {
+      Thread.sleep(50);
+    }
+
+    assertThat(lifecycle.getNotReady()).isEmpty();
+
+    lifecycle.stop();
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testStartFailure() throws Exception {
+    SenderLifecycle lifecycle = new SenderLifecycle();
+    lifecycle.add("apn", new Managed() {
+      @Override
+      public void start() {
+        throw new IllegalStateException("bad certificate");
+      }
+
+      @Override
+      public void stop() {}
+    });
+
+    lifecycle.start();
+  }
+
+  private static class Sender implements Managed {
+    private final CountDownLatch started;
+
+    private Sender(CountDownLatch started) {
+      this.started = started;
+    }
+
+    @Override
+    public void start() throws Exception {
+      started.countDown();
+
+      if (!started.await(5, TimeUnit.SECONDS)) {
+        throw new AssertionError("Senders were not started in parallel");
+      }
+    }
+
+    @Override
+    public void stop() {}
+  }
+
+  private static class WarmableSender extends Sender implements Warmable {
+    private final CountDownLatch warm;
+
+    private WarmableSender(CountDownLatch started, CountDownLatch warm) {
+      super(started);
+      this.warm = warm;
+    }
+
+    @Override
+    public void warmUp() throws Exception {
+      warm.await();
+    }
+  }
+}
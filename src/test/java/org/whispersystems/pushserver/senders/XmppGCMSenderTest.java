@@ -0,0 +1,275 @@
+package org.whispersystems.pushserver.senders;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.whispersystems.pushserver.config.CcsConfiguration;
+import org.whispersystems.pushserver.config.RetryConfiguration;
+import org.whispersystems.pushserver.entities.GcmMessage;
+import org.whispersystems.pushserver.entities.PushResult;
+import org.whispersystems.pushserver.entities.UnregisteredEvent;
+import org.whispersystems.pushserver.util.MockCcsServer;
+
+import javax.net.SocketFactory;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+public class XmppGCMSenderTest {
+
+  private final MockCcsServer     ccsServer         = new MockCcsServer();
+  private final UnregisteredQueue unregisteredQueue = mock(UnregisteredQueue.class);
+
+  private XmppGCMSender sender;
+
+  @Before
+  public void setup() throws Exception {
+    ccsServer.start();
+
+    sender = new XmppGCMSender(unregisteredQueue, 1234L, "secret",
+                               new CcsConfiguration(ccsServer.getHost(), ccsServer.getPort(), 2, 10, 100),
+                               new RetryConfiguration(3, 10, 10, 10), true, SocketFactory.getDefault());
+    sender.start();
+  }
+
+  @After
+  public void teardown() throws Exception {
+    sender.stop();
+    ccsServer.stop();
+  }
+
+  @Test
+  public void testSuccess() throws Exception {
+    PushResult result = sender.sendMessage(createMessage("gcm-id")).get(10, TimeUnit.SECONDS);
+
+    assertThat(result.getStatus()).isEqualTo(PushResult.STATUS_SUCCESS);
+
+    MockCcsServer.Received received = ccsServer.takeReceived();
+    assertThat(received.getTo()).isEqualTo("gcm-id");
+    assertThat(received.getJson().get("collapse_key")).isEqualTo("message");
+  }
+
+  @Test
+  public void testWarmUpWaitsForConnections() throws Exception {
+    sender.warmUp();
+
+    assertThat(sender.sendMessage(createMessage("gcm-id")).get(10, TimeUnit.SECONDS).getStatus())
+        .isEqualTo(PushResult.STATUS_SUCCESS);
+  }
+
+  @Test
+  public void testUnregistered() throws Exception {
+    ccsServer.nack("stale-id", "DEVICE_UNREGISTERED");
+
+    PushResult result = sender.sendMessage(createMessage("stale-id")).get(10, TimeUnit.SECONDS);
+
+    assertThat(result.getStatus()).isEqualTo(PushResult.STATUS_UNREGISTERED);
+
+    ArgumentCaptor<UnregisteredEvent> captor = ArgumentCaptor.forClass(UnregisteredEvent.class);
+    verify(unregisteredQueue).put(captor.capture());
+    assertThat(captor.getValue().getRegistrationId()).isEqualTo("stale-id");
+  }
+
+  @Test
+  public void testUnknownNackCompletes() throws Exception {
+    ccsServer.nack("busy-id", "DEVICE_MESSAGE_RATE_EXCEEDED");
+
+    PushResult result = sender.sendMessage(createMessage("busy-id")).get(10, TimeUnit.SECONDS);
+
+    assertThat(result.getStatus()).isEqualTo(PushResult.STATUS_TRANSIENT);
+    assertThat(result.getReason()).isEqualTo("DEVICE_MESSAGE_RATE_EXCEEDED");
+  }
+
+  @Test
+  public void testServerFailureRetriesThenGivesUp() throws Exception {
+    ccsServer.nack("down-id", "SERVICE_UNAVAILABLE");
+
+    PushResult result = sender.sendMessage(createMessage("down-id")).get(10, TimeUnit.SECONDS);
+
+    assertThat(result.getStatus()).isEqualTo(PushResult.STATUS_TRANSIENT);
+    assertThat(result.getReason()).isEqualTo("SERVICE_UNAVAILABLE");
+    assertThat(takeReceived(3)).extracting("to").containsOnly("down-id");
+
+    Thread.sleep(200);
+    assertThat(ccsServer.drainReceived()).isEmpty();
+  }
+
+  @Test
+  public void testCallsSkipQueueAndOverflow() throws Exception {
+    sender.stop();
+
+    sender = new XmppGCMSender(unregisteredQueue, 1234L, "secret",
+                               new CcsConfiguration(ccsServer.getHost(), ccsServer.getPort(), 1, 1, 2),
+                               new RetryConfiguration(), true, SocketFactory.getDefault());
+    sender.start();
+
+    ccsServer.setAutoAck(false);
+
+    sender.sendMessage(createMessage("gcm-0"));
+
+    MockCcsServer.Received first = ccsServer.takeReceived();
+    assertThat(first.getTo()).isEqualTo("gcm-0");
+
+    sender.sendMessage(createMessage("gcm-1"));
+    sender.sendMessage(createMessage("gcm-2"));
+
+    assertThat(sender.sendMessage(createMessage("gcm-3")).get(1, TimeUnit.SECONDS).getStatus())
+        .isEqualTo(PushResult.STATUS_TRANSIENT);
+
+    ListenableFuture<PushResult> call = sender.sendMessage(new GcmMessage("call-id", "+14152222222", 1, "ring",
+                                                                          false, false, false, true));
+
+    assertThat(call.isDone()).isFalse();
+
+    ccsServer.ack(first);
+
+    MockCcsServer.Received next = ccsServer.takeReceived();
+    assertThat(next.getTo()).isEqualTo("call-id");
+
+    ccsServer.ack(next);
+
+    assertThat(call.get(10, TimeUnit.SECONDS).getStatus()).isEqualTo(PushResult.STATUS_SUCCESS);
+  }
+
+  @Test
+  public void testMissingAckTimesOut() throws Exception {
+    sender.stop();
+
+    sender = new XmppGCMSender(unregisteredQueue, 1234L, "secret",
+                               new CcsConfiguration(ccsServer.getHost(), ccsServer.getPort(), 1, 1, 100, 200),
+                               new RetryConfiguration(), true, SocketFactory.getDefault());
+    sender.start();
+
+    ccsServer.setAutoAck(false);
+
+    ListenableFuture<PushResult> lost   = sender.sendMessage(createMessage("lost-id"));
+    ListenableFuture<PushResult> queued = sender.sendMessage(createMessage("queued-id"));
+
+    assertThat(lost.get(10, TimeUnit.SECONDS).getStatus()).isEqualTo(PushResult.STATUS_TRANSIENT);
+
+    MockCcsServer.Received received;
+
+    do {
+      received = ccsServer.takeReceived();
+      assertThat(received).isNotNull();
+    } while (!"queued-id".equals(received.getTo()));
+
+    ccsServer.ack(received);
+
+    assertThat(queued.get(10, TimeUnit.SECONDS).getStatus()).isEqualTo(PushResult.STATUS_SUCCESS);
+  }
+
+  @Test
+  public void testDrainingConnectionFinishesWindow() throws Exception {
+    sender.stop();
+
+    sender = new XmppGCMSender(unregisteredQueue, 1234L, "secret",
+                               new CcsConfiguration(ccsServer.getHost(), ccsServer.getPort(), 1, 10, 100),
+                               new RetryConfiguration(), true, SocketFactory.getDefault());
+    sender.start();
+
+    ccsServer.setAutoAck(false);
+
+    ListenableFuture<PushResult> inFlight = sender.sendMessage(createMessage("before-drain"));
+    MockCcsServer.Received       first    = ccsServer.takeReceived();
+    int                          drained  = first.getConnection();
+
+    ccsServer.drain(drained);
+
+    for (int i = 0; i < 100 && ccsServer.getConnectionCount() <= drained + 1; i++) {
+      Thread.sleep(50);
+    }
+
+    ListenableFuture<PushResult> next   = sender.sendMessage(createMessage("after-drain"));
+    MockCcsServer.Received       second = ccsServer.takeReceived();
+
+    assertThat(second.getTo()).isEqualTo("after-drain");
+    assertThat(second.getConnection()).isNotEqualTo(drained);
+    assertThat(ccsServer.isClosed(drained)).isFalse();
+
+    ccsServer.ack(first);
+    ccsServer.ack(second);
+
+    assertThat(inFlight.get(10, TimeUnit.SECONDS).getStatus()).isEqualTo(PushResult.STATUS_SUCCESS);
+    assertThat(next.get(10, TimeUnit.SECONDS).getStatus()).isEqualTo(PushResult.STATUS_SUCCESS);
+
+    for (int i = 0; i < 100 && !ccsServer.isClosed(drained); i++) {
+      Thread.sleep(50);
+    }
+
+    assertThat(ccsServer.isClosed(drained)).isTrue();
+    assertThat(ccsServer.drainReceived()).isEmpty();
+  }
+
+  @Test
+  public void testWindowsFillEvenlyThenQueue() throws Exception {
+    ccsServer.setAutoAck(false);
+
+    List<ListenableFuture<PushResult>> results = new LinkedList<>();
+
+    for (int i = 0; i < 50; i++) {
+      results.add(sender.sendMessage(createMessage("gcm-" + i)));
+    }
+
+    List<MockCcsServer.Received> received = takeReceived(20);
+
+    assertThat(ccsServer.getConnectionCount()).isEqualTo(2);
+    assertThat(ccsServer.getOutstanding(0)).isEqualTo(10);
+    assertThat(ccsServer.getOutstanding(1)).isEqualTo(10);
+
+    Thread.sleep(200);
+    assertThat(ccsServer.drainReceived()).isEmpty();
+
+    int acked = 0;
+
+    while (acked < 50) {
+      for (MockCcsServer.Received message : received) {
+        ccsServer.ack(message);
+        acked++;
+      }
+
+      received = takeReceived(Math.min(20, 50 - acked));
+    }
+
+    for (ListenableFuture<PushResult> result : results) {
+      assertThat(result.get(10, TimeUnit.SECONDS).getStatus()).isEqualTo(PushResult.STATUS_SUCCESS);
+    }
+
+    assertThat(ccsServer.getMaxOutstanding()).isEqualTo(10);
+  }
+
+  @Test
+  public void testOverflowFailsFast() throws Exception {
+    ccsServer.setAutoAck(false);
+
+    for (int i = 0; i < 120; i++) {
+      sender.sendMessage(createMessage("gcm-" + i));
+    }
+
+    PushResult result = sender.sendMessage(createMessage("gcm-overflow")).get(1, TimeUnit.SECONDS);
+
+    assertThat(result.getStatus()).isEqualTo(PushResult.STATUS_TRANSIENT);
+  }
+
+  private List<MockCcsServer.Received> takeReceived(int count) throws InterruptedException {
+    List<MockCcsServer.Received> received = new LinkedList<>();
+
+    while (received.size() < count) {
+      MockCcsServer.Received message = ccsServer.takeReceived();
+      assertThat(message).isNotNull();
+      received.add(message);
+    }
+
+    return received;
+  }
+
+  private GcmMessage createMessage(String gcmId) {
+    return new GcmMessage(gcmId, "+14152222222", 1, "hello", false, false, false, false);
+  }
+}
@@ -0,0 +1,90 @@
+package org.whispersystems.pushserver.util;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Protocol;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+/**
+ * A local stand-in for the APNs HTTP/2 provider API.  Speaks cleartext HTTP/2
+ * with prior knowledge, so clients must be built with H2_PRIOR_KNOWLEDGE.
+ */
+public class MockApnsServer {
+
+  private final MockWebServer server             = new MockWebServer();
+  private final Set<String>   unregisteredTokens = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  private final Set<String>   slowTokens         = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  public MockApnsServer() {
+    server.setProtocols(Collections.singletonList(Protocol.H2_PRIOR_KNOWLEDGE));
+    server.setDispatcher(new Dispatcher() {
+      @Override
+      public MockResponse dispatch(RecordedRequest request) {
+        String path = request.getPath();
+
+        if (!"POST".equals(request.getMethod()) || !path.startsWith("/3/device/")) {
+          return new MockResponse().setResponseCode(404).setBody("{\"reason\":\"BadPath\"}");
+        }
+
+        String token = path.substring("/3/device/".length());
+
+        if (unregisteredTokens.contains(token)) {
+          return new MockResponse().setResponseCode(410)
+                                   .setBody("{\"reason\":\"Unregistered\",\"timestamp\":" + System.currentTimeMillis() + "}");
+        }
+
+        if (!token.matches("[0-9a-fA-F]+")) {
+          return new MockResponse().setResponseCode(400).setBody("{\"reason\":\"BadDeviceToken\"}");
+        }
+
+        MockResponse response = new MockResponse().setResponseCode(200).setHeader("apns-id", UUID.randomUUID().toString());
+
+        if (slowTokens.contains(token)) {
+          response.setHeadersDelay(1, TimeUnit.SECONDS);
+        }
+
+        return response;
+      }
+    });
+  }
+
+  public void start() throws IOException {
+    server.start();
+  }
+
+  public void stop() throws IOException {
+    server.shutdown();
+  }
+
+  public void unregister(String token) {
+    unregisteredTokens.add(token);
+  }
+
+  /**
+   * Holds responses to this token for a second, keeping their streams open.
+   */
+  public void delay(String token) {
+    slowTokens.add(token);
+  }
+
+  public String getEndpoint() {
+    String url = server.url("/").toString();
+    return url.substring(0, url.length() - 1);
+  }
+
+  public RecordedRequest takeRequest() throws InterruptedException {
+    return server.takeRequest();
+  }
+
+  public int getRequestCount() {
+    return server.getRequestCount();
+  }
+}
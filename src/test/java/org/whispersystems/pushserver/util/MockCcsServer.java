@@ -0,0 +1,353 @@
+package org.whispersystems.pushserver.util;
+
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A local stand-in for GCM's Cloud Connection Server.  Speaks just enough
+ * cleartext XMPP for a client to log in with SASL PLAIN and bind, then
+ * records downstream messages and answers them with acks.
+ *
+ * With auto-ack turned off, messages are held unacknowledged until the test
+ * acks or nacks them, and the server tracks how many each connection had
+ * outstanding at once.
+ */
+public class MockCcsServer {
+
+  private final List<ClientConnection>   clients        = new CopyOnWriteArrayList<>();
+  private final BlockingQueue<Received>  received       = new LinkedBlockingQueue<>();
+  private final Map<String, Received>    outstanding    = new ConcurrentHashMap<>();
+  private final Map<String, String>      nackedTokens   = new ConcurrentHashMap<>();
+  private final AtomicInteger            maxOutstanding = new AtomicInteger(0);
+
+  private volatile boolean autoAck = true;
+
+  private ServerSocket serverSocket;
+  private Thread       acceptor;
+
+  public void start() throws IOException {
+    serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    acceptor     = new Thread("mock-ccs") {
+      @Override
+      public void run() {
+        while (!serverSocket.isClosed()) {
+          try {
+            ClientConnection client = new ClientConnection(serverSocket.accept(), clients.size());
+            clients.add(client);
+            client.start();
+          } catch (IOException e) {
+            return;
+          }
+        }
+      }
+    };
+
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  public void stop() throws IOException {
+    serverSocket.close();
+
+    for (ClientConnection client : clients) {
+      client.close();
+    }
+  }
+
+  public String getHost() {
+    return serverSocket.getInetAddress().getHostAddress();
+  }
+
+  public int getPort() {
+    return serverSocket.getLocalPort();
+  }
+
+  public void setAutoAck(boolean autoAck) {
+    this.autoAck = autoAck;
+  }
+
+  /**
+   * Answers any message to this registration id with a nack.
+   */
+  public void nack(String token, String error) {
+    nackedTokens.put(token, error);
+  }
+
+  public Received takeReceived() throws InterruptedException {
+    return received.poll(10, TimeUnit.SECONDS);
+  }
+
+  public List<Received> drainReceived() {
+    List<Received> results = new ArrayList<>();
+    received.drainTo(results);
+    return results;
+  }
+
+  public void ack(Received message) throws IOException {
+    outstanding.remove(message.getMessageId());
+    message.client.sendReceipt("ack", message.getMessageId(), message.getTo(), null);
+  }
+
+  /**
+   * Tells a connection that it is being drained, as CCS does ahead of
+   * closing it.
+   */
+  public void drain(int connection) throws IOException {
+    Map<String, Object> control = new HashMap<>();
+    control.put("message_type", "control");
+    control.put("control_type", "CONNECTION_DRAINING");
+
+    clients.get(connection).sendJson(control);
+  }
+
+  public int getConnectionCount() {
+    return clients.size();
+  }
+
+  public boolean isClosed(int connection) {
+    return clients.get(connection).closed;
+  }
+
+  public int getOutstanding(int connection) {
+    int count = 0;
+
+    for (Received message : outstanding.values()) {
+      if (message.getConnection() == connection) count++;
+    }
+
+    return count;
+  }
+
+  /**
+   * The most messages any one connection has had unacknowledged at once.
+   */
+  public int getMaxOutstanding() {
+    return maxOutstanding.get();
+  }
+
+  public static class Received {
+    private final ClientConnection   client;
+    private final Map<String, Object> json;
+
+    private Received(ClientConnection client, Map<String, Object> json) {
+      this.client = client;
+      this.json   = json;
+    }
+
+    public int getConnection() {
+      return client.index;
+    }
+
+    public String getMessageId() {
+      return (String) json.get("message_id");
+    }
+
+    public String getTo() {
+      return (String) json.get("to");
+    }
+
+    public Map<String, Object> getJson() {
+      return json;
+    }
+  }
+
+  private class ClientConnection extends Thread {
+
+    private final Socket socket;
+    private final Writer writer;
+    private final int    index;
+
+    private boolean          authenticated;
+    private volatile boolean closed;
+
+    private ClientConnection(Socket socket, int index) throws IOException {
+      super("mock-ccs-" + index);
+      this.socket = socket;
+      this.index  = index;
+      this.writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+      setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      try {
+        XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
+        factory.setNamespaceAware(true);
+
+        XmlPullParser parser = factory.newPullParser();
+        parser.setInput(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+
+        int streamDepth = 0;
+
+        for (int event = parser.getEventType(); event != XmlPullParser.END_DOCUMENT; event = parser.next()) {
+          if (event != XmlPullParser.START_TAG) {
+            continue;
+          }
+
+          if ("stream".equals(parser.getName())) {
+            streamDepth = parser.getDepth();
+            openStream();
+          } else if (parser.getDepth() == streamDepth + 1) {
+            handleStanza(parser);
+          }
+        }
+      } catch (Exception e) {
+        // fall through and close
+      }
+
+      close();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void handleStanza(XmlPullParser parser) throws Exception {
+      int depth = parser.getDepth();
+
+      switch (parser.getName()) {
+        case "auth":
+          skip(parser, depth);
+          authenticated = true;
+          write("<success xmlns=\"urn:ietf:params:xml:ns:xmpp-sasl\"/>");
+          break;
+        case "iq":
+          String id    = parser.getAttributeValue(null, "id");
+          String child = nextChild(parser, depth);
+          skip(parser, depth);
+
+          if ("bind".equals(child)) {
+            write("<iq type=\"result\" id=\"" + id + "\"><bind xmlns=\"urn:ietf:params:xml:ns:xmpp-bind\">" +
+                  "<jid>sender@gcm.googleapis.com/ccs-" + index + "</jid></bind></iq>");
+          } else {
+            write("<iq type=\"result\" id=\"" + id + "\"/>");
+          }
+          break;
+        case "message":
+          String payload = null;
+
+          while (parser.next() != XmlPullParser.END_TAG || parser.getDepth() != depth) {
+            if (parser.getEventType() == XmlPullParser.START_TAG && "gcm".equals(parser.getName())) {
+              payload = parser.nextText();
+            }
+          }
+
+          if (payload != null) {
+            handleDownstream((Map<String, Object>) JSONValue.parse(payload));
+          }
+          break;
+        default:
+          skip(parser, depth);
+      }
+    }
+
+    private void handleDownstream(Map<String, Object> json) throws IOException {
+      if ("ack".equals(json.get("message_type"))) {
+        return;
+      }
+
+      Received message = new Received(this, json);
+      String   nack    = nackedTokens.get(message.getTo());
+
+      if (nack != null) {
+        received.add(message);
+        sendReceipt("nack", message.getMessageId(), message.getTo(), nack);
+        return;
+      }
+
+      outstanding.put(message.getMessageId(), message);
+
+      int count = getOutstanding(index);
+      int max   = maxOutstanding.get();
+
+      while (count > max && !maxOutstanding.compareAndSet(max, count)) {
+        max = maxOutstanding.get();
+      }
+
+      received.add(message);
+
+      if (autoAck) {
+        ack(message);
+      }
+    }
+
+    @SuppressWarnings("unchecked")
+    private synchronized void sendReceipt(String type, String messageId, String from, String error) throws IOException {
+      Map<String, Object> receipt = new HashMap<>();
+      receipt.put("message_type", type);
+      receipt.put("message_id", messageId);
+      receipt.put("from", from);
+
+      if (error != null) {
+        receipt.put("error", error);
+      }
+
+      sendJson(receipt);
+    }
+
+    private void sendJson(Map<String, Object> json) throws IOException {
+      write("<message><gcm xmlns=\"google:mobile:data\">" +
+            JSONObject.toJSONString(json).replace("&", "&amp;").replace("<", "&lt;") +
+            "</gcm></message>");
+    }
+
+    private void openStream() throws IOException {
+      String features = authenticated
+          ? "<bind xmlns=\"urn:ietf:params:xml:ns:xmpp-bind\"/><session xmlns=\"urn:ietf:params:xml:ns:xmpp-session\"/>"
+          : "<mechanisms xmlns=\"urn:ietf:params:xml:ns:xmpp-sasl\"><mechanism>PLAIN</mechanism></mechanisms>";
+
+      write("<?xml version='1.0'?><stream:stream from=\"gcm.googleapis.com\" id=\"ccs-" + index + "-" + System.nanoTime() + "\" " +
+            "version=\"1.0\" xmlns=\"jabber:client\" xmlns:stream=\"http://etherx.jabber.org/streams\">" +
+            "<stream:features>" + features + "</stream:features>");
+    }
+
+    private String nextChild(XmlPullParser parser, int depth) throws Exception {
+      while (parser.next() != XmlPullParser.END_DOCUMENT) {
+        if (parser.getEventType() == XmlPullParser.START_TAG) return parser.getName();
+        if (parser.getEventType() == XmlPullParser.END_TAG && parser.getDepth() == depth) return null;
+      }
+
+      return null;
+    }
+
+    private void skip(XmlPullParser parser, int depth) throws Exception {
+      while (!(parser.getEventType() == XmlPullParser.END_TAG && parser.getDepth() == depth)) {
+        parser.next();
+      }
+    }
+
+    private synchronized void write(String xml) throws IOException {
+      writer.write(xml);
+      writer.flush();
+    }
+
+    private void close() {
+      closed = true;
+
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // already closed
+      }
+    }
+  }
+}
@@ -0,0 +1,161 @@
+package org.whispersystems.pushserver.util;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.Protocol;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+/**
+ * A local stand-in for the FCM HTTP v1 API and the OAuth token endpoint
+ * behind it.  Speaks cleartext HTTP/2 with prior knowledge, so clients must be
+ * built with H2_PRIOR_KNOWLEDGE.
+ */
+public class MockFcmServer {
+
+  public static final String ACCESS_TOKEN = "ya29.test-token";
+
+  private final MockWebServer       server             = new MockWebServer();
+  private final AtomicInteger       tokenRequests      = new AtomicInteger(0);
+  private final AtomicInteger       messageIds         = new AtomicInteger(0);
+  private final Set<String>         unregisteredTokens = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  private final Set<String>         missingTokens      = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  private final Map<String, String> invalidFields      = new ConcurrentHashMap<>();
+  private final Set<String>         heldTokens         = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  private final CountDownLatch      released           = new CountDownLatch(1);
+
+  public MockFcmServer() {
+    server.setProtocols(Collections.singletonList(Protocol.H2_PRIOR_KNOWLEDGE));
+    server.setDispatcher(new Dispatcher() {
+      @Override
+      public MockResponse dispatch(RecordedRequest request) {
+        String path = request.getPath();
+
+        if ("POST".equals(request.getMethod()) && "/token".equals(path)) {
+          tokenRequests.incrementAndGet();
+          return new MockResponse().setBody("{\"access_token\":\"" + ACCESS_TOKEN + "\",\"expires_in\":3600,\"token_type\":\"Bearer\"}");
+        }
+
+        if (!"POST".equals(request.getMethod()) || !path.startsWith("/v1/projects/") || !path.endsWith("/messages:send")) {
+          return new MockResponse().setResponseCode(404).setBody("{\"error\":{\"code\":404,\"status\":\"NOT_FOUND\"}}");
+        }
+
+        if (!("Bearer " + ACCESS_TOKEN).equals(request.getHeader("Authorization"))) {
+          return new MockResponse().setResponseCode(401).setBody("{\"error\":{\"code\":401,\"status\":\"UNAUTHENTICATED\"}}");
+        }
+
+        String body = request.getBody().clone().readUtf8();
+
+        for (String token : unregisteredTokens) {
+          if (body.contains("\"token\":\"" + token + "\"")) {
+            return new MockResponse().setResponseCode(404)
+                                     .setBody("{\"error\":{\"code\":404,\"status\":\"NOT_FOUND\",\"details\":[" +
+                                              "{\"@type\":\"type.googleapis.com/google.firebase.fcm.v1.FcmError\"," +
+                                              "\"errorCode\":\"UNREGISTERED\"}]}}");
+          }
+        }
+
+        for (String token : missingTokens) {
+          if (body.contains("\"token\":\"" + token + "\"")) {
+            return new MockResponse().setResponseCode(404).setBody("{\"error\":{\"code\":404,\"status\":\"NOT_FOUND\"}}");
+          }
+        }
+
+        for (Map.Entry<String, String> invalid : invalidFields.entrySet()) {
+          if (body.contains("\"token\":\"" + invalid.getKey() + "\"")) {
+            return new MockResponse().setResponseCode(400)
+                                     .setBody("{\"error\":{\"code\":400,\"status\":\"INVALID_ARGUMENT\",\"details\":[" +
+                                              "{\"@type\":\"type.googleapis.com/google.firebase.fcm.v1.FcmError\"," +
+                                              "\"errorCode\":\"INVALID_ARGUMENT\"}," +
+                                              "{\"@type\":\"type.googleapis.com/google.rpc.BadRequest\"," +
+                                              "\"fieldViolations\":[{\"field\":\"" + invalid.getValue() + "\"}]}]}}");
+          }
+        }
+
+        for (String token : heldTokens) {
+          if (body.contains("\"token\":\"" + token + "\"")) {
+            awaitRelease();
+          }
+        }
+
+        String project = path.substring("/v1/projects/".length(), path.length() - "/messages:send".length());
+
+        return new MockResponse().setBody("{\"name\":\"projects/" + project + "/messages/" + messageIds.incrementAndGet() + "\"}");
+      }
+    });
+  }
+
+  public void start() throws IOException {
+    server.start();
+  }
+
+  public void stop() throws IOException {
+    release();
+    server.shutdown();
+  }
+
+  public void unregister(String token) {
+    unregisteredTokens.add(token);
+  }
+
+  /**
+   * Answers pushes to this token with a 404 that carries no FCM error code,
+   * as FCM does for a request to the wrong project or URL.
+   */
+  public void notFound(String token) {
+    missingTokens.add(token);
+  }
+
+  /**
+   * Answers pushes to this token with INVALID_ARGUMENT, blaming the given
+   * request field.
+   */
+  public void invalidate(String token, String field) {
+    invalidFields.put(token, field);
+  }
+
+  /**
+   * Holds responses to pushes for this token until {@link #release()}.
+   */
+  public void hold(String token) {
+    heldTokens.add(token);
+  }
+
+  public void release() {
+    released.countDown();
+  }
+
+  private void awaitRelease() {
+    try {
+      released.await(30, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  public String getEndpoint() {
+    String url = server.url("/").toString();
+    return url.substring(0, url.length() - 1);
+  }
+
+  public String getTokenUri() {
+    return server.url("/token").toString();
+  }
+
+  public int getTokenRequestCount() {
+    return tokenRequests.get();
+  }
+
+  public RecordedRequest takeRequest() throws InterruptedException {
+    return server.takeRequest();
+  }
+}